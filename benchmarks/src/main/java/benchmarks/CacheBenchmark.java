@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.Constants;
+import dblockcache.DBuffer;
+import dblockcache.DBufferCache;
+import virtualdisk.VirtualDisk;
+
+/**
+ * DBufferCache.getBlock when the block is cached and when it must be read
+ * from the volume. Every data block is marked used, so a miss fetches the
+ * block instead of handing out a free one. Misses walk twice as many blocks
+ * as the cache holds, so each of them also pays its share of the evictions
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+	/**
+	 * Blocks the hits cycle through, all of them cached
+	 */
+	private static final int HOT_BLOCKS = 1024;
+
+	/**
+	 * Blocks the misses cycle through
+	 */
+	private static final int COLD_BLOCKS = 2 * Constants.NUM_OF_CACHE_BLOCKS;
+
+	private String _volume;
+	private DBufferCache _cache;
+	private int _next;
+
+	@Setup
+	public void setUp() throws IOException {
+		_volume = Volumes.create();
+		_cache = new DBufferCache(Constants.NUM_OF_CACHE_BLOCKS, new VirtualDisk(_volume, false));
+		for (int i = Volumes.FIRST_DATA_BLOCK; i < Volumes.END_DATA_BLOCK; i++) {
+			_cache.newUsedBlock(i);
+		}
+		for (int i = 0; i < HOT_BLOCKS; i++) {
+			DBuffer dbuffer = _cache.getBlock(Volumes.FIRST_DATA_BLOCK + i);
+			dbuffer.waitValid();
+			_cache.releaseBlock(dbuffer);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		_cache.terminate();
+		Volumes.delete(_volume);
+	}
+
+	@Benchmark
+	public DBuffer hit() {
+		_next = (_next + 1) % HOT_BLOCKS;
+		DBuffer dbuffer = _cache.getBlock(Volumes.FIRST_DATA_BLOCK + _next);
+		_cache.releaseBlock(dbuffer);
+		return dbuffer;
+	}
+
+	@Benchmark
+	public DBuffer miss() {
+		_next = (_next + 1) % COLD_BLOCKS;
+		DBuffer dbuffer = _cache.getBlock(Volumes.FIRST_DATA_BLOCK + HOT_BLOCKS + _next);
+		dbuffer.waitValid();
+		_cache.releaseBlock(dbuffer);
+		return dbuffer;
+	}
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.Constants;
+import dblockcache.DBuffer;
+import dblockcache.DBufferCache;
+import virtualdisk.VirtualDisk;
+
+/**
+ * The copies in and out of a cached DBuffer, to and from arrays and heap and
+ * direct ByteBuffers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBufferBenchmark {
+
+	@Param({ "64", "1024" })
+	public int bytes;
+
+	private String _volume;
+	private DBufferCache _cache;
+	private DBuffer _dbuffer;
+	private byte[] _array;
+	private ByteBuffer _heap;
+	private ByteBuffer _direct;
+
+	@Setup
+	public void setUp() throws IOException {
+		_volume = Volumes.create();
+		_cache = new DBufferCache(Constants.NUM_OF_CACHE_BLOCKS, new VirtualDisk(_volume, false));
+		_dbuffer = _cache.getNewBlock();
+		_array = new byte[Constants.BLOCK_SIZE];
+		_heap = ByteBuffer.allocate(Constants.BLOCK_SIZE);
+		_direct = ByteBuffer.allocateDirect(Constants.BLOCK_SIZE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_cache.terminate();
+		Volumes.delete(_volume);
+	}
+
+	@Benchmark
+	public int readArray() {
+		return _dbuffer.read(0, _array, 0, bytes);
+	}
+
+	@Benchmark
+	public int writeArray() {
+		return _dbuffer.write(0, _array, 0, bytes);
+	}
+
+	@Benchmark
+	public int readHeapBuffer() {
+		_heap.clear();
+		return _dbuffer.read(0, _heap, bytes);
+	}
+
+	@Benchmark
+	public int writeHeapBuffer() {
+		_heap.clear();
+		return _dbuffer.write(0, _heap, bytes);
+	}
+
+	@Benchmark
+	public int readDirectBuffer() {
+		_direct.clear();
+		return _dbuffer.read(0, _direct, bytes);
+	}
+
+	@Benchmark
+	public int writeDirectBuffer() {
+		_direct.clear();
+		return _dbuffer.write(0, _direct, bytes);
+	}
+}
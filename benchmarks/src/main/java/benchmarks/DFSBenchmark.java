@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.DFileID;
+import dfs.DFSImpl;
+
+/**
+ * Whole file reads and writes, and file creation and removal, through the
+ * DFS. Every benchmark thread works on a file of its own in one shared
+ * volume, so running with -t 1, 4 or 16 measures how the file system scales
+ * with the number of clients
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DFSBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Volume {
+		private String _volume;
+		private DFSImpl _dfs;
+
+		@Setup
+		public void setUp() throws IOException {
+			_volume = Volumes.create();
+			_dfs = new DFSImpl(_volume, false);
+			_dfs.init();
+		}
+
+		@TearDown
+		public void tearDown() {
+			_dfs.unmount();
+			Volumes.delete(_volume);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class File {
+		@Param({ "1024", "65536", "1048576" })
+		public int fileSize;
+
+		private DFileID _file;
+		private ByteBuffer[] _data;
+
+		@Setup
+		public void setUp(Volume volume) {
+			_file = volume._dfs.createDFile();
+			_data = new ByteBuffer[] { ByteBuffer.allocate(fileSize) };
+			volume._dfs.write(_file, 0, _data);
+		}
+
+		@TearDown
+		public void tearDown(Volume volume) {
+			volume._dfs.destroyDFile(_file);
+		}
+	}
+
+	@Benchmark
+	public int read(Volume volume, File file) {
+		file._data[0].clear();
+		return volume._dfs.read(file._file, 0, file._data);
+	}
+
+	@Benchmark
+	public int write(Volume volume, File file) {
+		file._data[0].clear();
+		return volume._dfs.write(file._file, 0, file._data);
+	}
+
+	@Benchmark
+	public void createDestroy(Volume volume) {
+		volume._dfs.destroyDFile(volume._dfs.createDFile());
+	}
+}
@@ -0,0 +1,108 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.Constants;
+import dblockcache.DBuffer;
+import dblockcache.DBufferCache;
+import virtualdisk.VirtualDisk;
+
+/**
+ * Block reads and writes through the request queue of the disk thread, in
+ * batches of BATCH blocks, sequential or in random order. The buffers are
+ * held by the benchmark, so the cache never gets in the way and each batch
+ * goes to the volume
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VirtualDiskBenchmark {
+
+	private static final int BATCH = 64;
+
+	/**
+	 * Blocks the batches cycle through
+	 */
+	private static final int SPAN = 64 * BATCH;
+
+	@Param({ "sequential", "random" })
+	public String order;
+
+	private String _volume;
+	private DBufferCache _cache;
+	private DBuffer[] _dbuffers;
+	private int _next;
+
+	@Setup
+	public void setUp() throws IOException {
+		_volume = Volumes.create();
+		_cache = new DBufferCache(Constants.NUM_OF_CACHE_BLOCKS, new VirtualDisk(_volume, false));
+		List<DBuffer> dbuffers = new ArrayList<>();
+		for (int i = 0; i < SPAN; i++) {
+			dbuffers.add(_cache.getNewBlock());
+		}
+		if (order.equals("random"))
+			Collections.shuffle(dbuffers, new Random(SPAN));
+		_dbuffers = dbuffers.toArray(new DBuffer[SPAN]);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_cache.terminate();
+		Volumes.delete(_volume);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void read() {
+		int first = nextBatch();
+		for (int i = first; i < first + BATCH; i++) {
+			_dbuffers[i].startFetch();
+		}
+		for (int i = first; i < first + BATCH; i++) {
+			_dbuffers[i].waitValid();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void write() {
+		int first = nextBatch();
+		byte[] data = new byte[Constants.BLOCK_SIZE];
+		for (int i = first; i < first + BATCH; i++) {
+			_dbuffers[i].write(data, 0, Constants.BLOCK_SIZE);
+			_dbuffers[i].startPush();
+		}
+		for (int i = first; i < first + BATCH; i++) {
+			_dbuffers[i].waitClean();
+		}
+	}
+
+	private int nextBatch() {
+		int first = _next;
+		_next = (_next + BATCH) % SPAN;
+		return first;
+	}
+}
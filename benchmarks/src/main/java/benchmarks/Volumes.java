@@ -0,0 +1,37 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import common.Constants;
+
+/**
+ * The volume files of the benchmarks. A new volume file is sparse and reads
+ * as zeros, which the DFS mounts as an empty volume, so no benchmark pays for
+ * a format
+ */
+final class Volumes {
+
+	/**
+	 * The first and one past the last block of the data region
+	 */
+	static final int FIRST_DATA_BLOCK = Constants.INODE_REGION_SIZE + 1;
+	static final int END_DATA_BLOCK = Constants.JOURNAL_REGION_START;
+
+	private Volumes() {
+	}
+
+	/**
+	 * @return the path of a new volume file, deleted when the JVM exits
+	 */
+	static String create() throws IOException {
+		File volume = File.createTempFile("defiler", ".dat");
+		volume.delete();
+		volume.deleteOnExit();
+		return volume.getPath();
+	}
+
+	static void delete(String volume) {
+		new File(volume).delete();
+	}
+}
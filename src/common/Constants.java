@@ -7,25 +7,26 @@ package common;
 public class Constants {
 
 	/* The below constants indicate that we have approximately 268 MB of
-	 * disk space with 67 MB of memory cache; a block can hold upto 32 inodes and
-	 * the maximum file size is constrained to be 500 blocks. These are compile
+	 * disk space with 67 MB of memory cache; a block can hold upto 8 inodes and
+	 * the maximum file size is constrained by the int size in the inode. These are compile
 	 * time constants and can be changed during evaluation.  Your implementation
 	 * should be free of any hard-coded constants.  
 	 */
 
 	public static final int NUM_OF_BLOCKS = 262144; // 2^18
 	public static final int BLOCK_SIZE = 1024; // 1kB
-	public static final int INODE_SIZE = 32; //32 Bytes
+	public static final int INODE_SIZE = 128; //128 Bytes, the data of tiny files fits in the inode
 	public static final int NUM_OF_CACHE_BLOCKS = 65536; // 2^16
-	public static final int MAX_FILE_SIZE = BLOCK_SIZE*500; // Constraint on the max file size
+	// Sizes are ints in the inode, the largest file is the last whole block below 2 GB
+	public static final int MAX_FILE_SIZE = BLOCK_SIZE * (Integer.MAX_VALUE / BLOCK_SIZE);
 
-	public static final int MAX_DFILES = 512; // For recylcing DFileIDs`
+	public static final int INODE_REGION_DFILES = 512; // Inodes in the fixed region after the superblock
 	
 	public static final int INODE_FID = 0;
 	public static final int INODE_FILE_SIZE = 1;
 	public static final int INODE_DATA_INDEX = 2;
 	public static final int INODES_IN_BLOCK = BLOCK_SIZE/INODE_SIZE;
-	public static final int INODE_REGION_SIZE = (int) Math.ceil((double) MAX_DFILES/
+	public static final int INODE_REGION_SIZE = (int) Math.ceil((double) INODE_REGION_DFILES/
 	                                                     ((double) BLOCK_SIZE/(double)INODE_SIZE));
 
 	
@@ -35,10 +36,58 @@ public class Constants {
 	public static final int BYTES_PER_INT = 4;
 	
 	public static final int INTS_IN_BLOCK = BLOCK_SIZE/BYTES_PER_INT;
+
+	/* Past the fixed region, the inode table grows into data blocks listed
+	 * in inode map blocks, whose ids are kept in the superblock from
+	 * SUPERBLOCK_INODE_MAP up to the root of the reference counts. The last
+	 * int is the root of the name index. Each map block lists INTS_IN_BLOCK
+	 * inode blocks */
+	public static final int SUPERBLOCK_INODE_MAP = 3;
+	public static final int SUPERBLOCK_REFCOUNTS = INTS_IN_BLOCK - 2;
+	public static final int SUPERBLOCK_NAME_INDEX = INTS_IN_BLOCK - 1;
+	public static final int INODE_MAP_BLOCKS = SUPERBLOCK_REFCOUNTS - SUPERBLOCK_INODE_MAP;
+	public static final int MAX_DFILES = INODE_REGION_DFILES + INODE_MAP_BLOCKS * INTS_IN_BLOCK * INODES_IN_BLOCK;
 	
 	public static final int POSITION_INDIRECT_BLOCK_REGION = 2;
+
+	/* Inode layout, in ints: file id, size, the ids of the first
+	 * INODE_INDIRECT_SLOTS indirect blocks, the id of a double indirect block
+	 * holding the ids of the next INTS_IN_BLOCK indirect blocks, and the id of a
+	 * triple indirect block holding the ids of double indirect blocks */
+	public static final int INODE_INDIRECT_SLOTS = 4;
+	public static final int INODE_DOUBLE_INDIRECT = POSITION_INDIRECT_BLOCK_REGION + INODE_INDIRECT_SLOTS;
+	public static final int INODE_TRIPLE_INDIRECT = INODE_DOUBLE_INDIRECT + 1;
+
+	/* After the block pointers come an int of flags and then, for a file
+	 * flagged inline, its data. An inline file maps no block at all */
+	public static final int INODE_FLAGS = INODE_TRIPLE_INDIRECT + 1;
+	public static final int INODE_FLAG_INLINE = 1;
+	public static final int INODE_FLAG_NAMED = 2; // the file has an entry in the name index
+	public static final int INODE_FLAG_SHARED = 4; // the file may share blocks with a clone
+	public static final int INODE_INLINE_DATA = (INODE_FLAGS + 1) * BYTES_PER_INT; // in bytes
+	public static final int INODE_INLINE_SIZE = INODE_SIZE - INODE_INLINE_DATA;
+
+	/* Superblock layout, in ints: magic number, sequence number of the first
+	 * journal record after the last checkpoint and its offset in the journal,
+	 * then the ids of the inode map blocks, the root of the reference counts
+	 * and the root of the name index */
+	public static final int SUPERBLOCK_ID = 0;
+	public static final int SUPERBLOCK_MAGIC = 0x0DF11E56;
+	public static final int SUPERBLOCK_MAGIC_INDEX = 0;
+	public static final int SUPERBLOCK_JOURNAL_SEQUENCE = 1;
+	public static final int SUPERBLOCK_JOURNAL_TAIL = 2;
+
+	/* The metadata journal and the allocation bitmap saved by checkpoints sit
+	 * at the end of the volume, data blocks end where the journal starts */
+	public static final int BITMAP_REGION_SIZE = (NUM_OF_BLOCKS / 8 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	public static final int BITMAP_REGION_START = NUM_OF_BLOCKS - BITMAP_REGION_SIZE;
+	public static final int JOURNAL_REGION_SIZE = 1024; // 1 MB of log
+	public static final int JOURNAL_REGION_START = BITMAP_REGION_START - JOURNAL_REGION_SIZE;
 	
 	
+	// Longest name of a file in the name index, in bytes of UTF-8
+	public static final int MAX_NAME_LENGTH = 255;
+
 	public static byte EOF = (byte) 0x1ceb00da;
 	
 	/* DStore Operation types */
@@ -1,16 +1,17 @@
 package common;
 
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import dblockcache.DBuffer;
 import dfs.Inode;
 
 public class DFile {
-	private ReadWriteLock _lock = new ReentrantReadWriteLock();
+	private MetadataLock _lock = new MetadataLock();
+	private RangeLock _rangeLock = new RangeLock();
 	private int _file = -1;
 	private int _iNodeBlock = -1;
 	private int _iNodePosition = -1;
+	private int _iNodeSlot = -1;
 	private Inode _inode;
 
 	public DFile(int fileId) {
@@ -18,21 +19,112 @@ public class DFile {
 		_inode = new Inode(fileId, 0);
 	}
 
-	public DFile(int fileId, int size, int iNodeBlock, int iNodePosition) {
+	/**
+	 * @param iNodeSlot
+	 *            the slot of the inode in the inode table, held in block
+	 *            iNodeBlock
+	 */
+	public DFile(int fileId, int size, int iNodeBlock, int iNodeSlot) {
 		_file = fileId;
+		_iNodeSlot = iNodeSlot;
 		setINodeBlock(iNodeBlock);
-		setINodePosition(iNodePosition);
+		setINodePosition(iNodeSlot % Constants.INODES_IN_BLOCK);
 		_inode = new Inode(fileId, size);
 	}
 	
-	public void mapFile(List<DBuffer> indirect, List<Integer> direct) {
-	    _inode.mapFile(indirect, direct);
+	public void setIndirectBlock(int index, int blockID) {
+	    _inode.setIndirectBlock(index, blockID);
 	}
 
-	public ReadWriteLock getLock() {
+	public void unmapBlocks(List<DBuffer> indirect, int firstSlot, int count) {
+	    _inode.unmapBlocks(indirect, firstSlot, count);
+	}
+
+	public void addIndirectBlock(int blockID) {
+	    _inode.addIndirectBlock(blockID);
+	}
+
+	public int removeLastIndirectBlock() {
+	    return _inode.removeLastIndirectBlock();
+	}
+
+	public int getDoubleIndirectBlock() {
+	    return _inode.getDoubleIndirectBlock();
+	}
+
+	public void setDoubleIndirectBlock(int blockID) {
+	    _inode.setDoubleIndirectBlock(blockID);
+	}
+
+	public int getTripleIndirectBlock() {
+	    return _inode.getTripleIndirectBlock();
+	}
+
+	public void setTripleIndirectBlock(int blockID) {
+	    _inode.setTripleIndirectBlock(blockID);
+	}
+
+	public List<Integer> getTripleChildren() {
+	    return _inode.getTripleChildren();
+	}
+
+	public List<Integer> getPointerBlocks() {
+	    return _inode.getPointerBlocks();
+	}
+
+	public boolean isInline() {
+	    return _inode.isInline();
+	}
+
+	public void setInline(boolean inline) {
+	    _inode.setInline(inline);
+	}
+
+	public boolean isNamed() {
+	    return _inode.isNamed();
+	}
+
+	public void setNamed(boolean named) {
+	    _inode.setNamed(named);
+	}
+
+	public boolean isShared() {
+	    return _inode.isShared();
+	}
+
+	public void setShared(boolean shared) {
+	    _inode.setShared(shared);
+	}
+
+	public void readInline(int pos, ByteBuffer dst, int count) {
+	    _inode.readInline(pos, dst, count);
+	}
+
+	public void writeInline(int pos, ByteBuffer src, int count) {
+	    _inode.writeInline(pos, src, count);
+	}
+
+	public void clearInline(int pos) {
+	    _inode.clearInline(pos);
+	}
+
+	/**
+	 * @return the lock of the size and the mapping of the file. Reads and
+	 *         writes of data hold it shared, anything changing the metadata
+	 *         holds it exclusive, and the metadata alone can be read
+	 *         optimistically with no lock held
+	 */
+	public MetadataLock getLock() {
 		return _lock;
 	}
 
+	/**
+	 * @return the lock of the blocks of the file, taken before getLock
+	 */
+	public RangeLock getRangeLock() {
+		return _rangeLock;
+	}
+
 	public Integer getFileId() {
 		return _file;
 	}
@@ -69,6 +161,10 @@ public class DFile {
 		this._iNodePosition = iNodePosition;
 	}
 
+	public int getINodeSlot() {
+		return _iNodeSlot;
+	}
+
 	public byte[] getINodeMetadata() {
 		return _inode.getMetadata();
 	}
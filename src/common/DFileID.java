@@ -14,12 +14,19 @@ public class DFileID {
 	}
 	    
 	public boolean equals(Object other){
+		if(!(other instanceof DFileID)){
+			return false;
+		}
 		DFileID otherID =  (DFileID) other;
 		if(otherID.getDFileID() == _dFID){
 			return true;
 		}
 		return false;
 	}
+
+	public int hashCode(){
+		return _dFID;
+	}
 	    
 	public String toString(){
 		return _dFID+"";
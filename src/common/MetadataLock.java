@@ -0,0 +1,105 @@
+package common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The lock of the metadata of a DFile. It is a ReentrantReadWriteLock whose
+ * write lock also holds the write lock of a StampedLock, so the metadata can
+ * be read optimistically, with no lock taken at all: a reader gets a stamp,
+ * reads, and keeps what it read only if no exclusive section started since
+ *
+ * An optimistic reader may see the metadata halfway through a change, so it
+ * must not act on what it read before the stamp is validated, and must be
+ * ready for what it read to make no sense
+ */
+public class MetadataLock implements ReadWriteLock {
+
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private final StampedLock _version = new StampedLock();
+	private final Lock _writeLock = new WriteLock();
+
+	/* Written only by the holder of the write lock */
+	private long _stamp;
+
+	@Override
+	public Lock readLock() {
+		return _lock.readLock();
+	}
+
+	@Override
+	public Lock writeLock() {
+		return _writeLock;
+	}
+
+	/**
+	 * @return a stamp to validate once the metadata is read, 0 if the write
+	 *         lock is held right now
+	 */
+	public long tryOptimisticRead() {
+		return _version.tryOptimisticRead();
+	}
+
+	/**
+	 * @return true if the write lock was not taken since stamp was returned
+	 *         by tryOptimisticRead, so that what was read meanwhile holds
+	 */
+	public boolean validate(long stamp) {
+		return stamp != 0 && _version.validate(stamp);
+	}
+
+	/**
+	 * Write lock of _lock that takes the write lock of _version on its first
+	 * hold and gives it back on its last
+	 */
+	private class WriteLock implements Lock {
+
+		@Override
+		public void lock() {
+			_lock.writeLock().lock();
+			if (_lock.getWriteHoldCount() == 1)
+				_stamp = _version.writeLock();
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			_lock.writeLock().lockInterruptibly();
+			if (_lock.getWriteHoldCount() == 1)
+				_stamp = _version.writeLock();
+		}
+
+		@Override
+		public boolean tryLock() {
+			if (!_lock.writeLock().tryLock())
+				return false;
+			if (_lock.getWriteHoldCount() == 1)
+				_stamp = _version.writeLock();
+			return true;
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			if (!_lock.writeLock().tryLock(time, unit))
+				return false;
+			if (_lock.getWriteHoldCount() == 1)
+				_stamp = _version.writeLock();
+			return true;
+		}
+
+		@Override
+		public void unlock() {
+			if (_lock.getWriteHoldCount() == 1)
+				_version.unlockWrite(_stamp);
+			_lock.writeLock().unlock();
+		}
+
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException("The write lock of a DFile has no conditions");
+		}
+	}
+}
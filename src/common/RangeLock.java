@@ -0,0 +1,108 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks ranges of blocks of a file. A range is held shared or exclusive, and
+ * only ranges that overlap with at least one of them exclusive wait on each
+ * other, so writers of disjoint parts of a file go on in parallel and readers
+ * only wait for the writers of the blocks they read
+ *
+ * Requests are served in order: a range waits for every conflicting range
+ * asked for before it, held or not, so a stream of readers cannot starve a
+ * writer. A range given back only wakes the waiting ranges it overlapped
+ *
+ * The ranges guard the data of the blocks only. The size and the mapping of
+ * the file are guarded by the lock of the DFile, always taken after the range
+ */
+public class RangeLock {
+
+	/**
+	 * A range held, from block first to block last - 1
+	 */
+	public static final class Range {
+		private final int _first;
+		private final int _last;
+		private final boolean _exclusive;
+
+		/* Guarded by the lock of the RangeLock */
+		private boolean _granted;
+		private Condition _ready;
+
+		private Range(int first, int last, boolean exclusive) {
+			_first = first;
+			_last = last;
+			_exclusive = exclusive;
+		}
+
+		private boolean overlaps(Range other) {
+			return _first < other._last && other._first < _last;
+		}
+
+		private boolean conflicts(Range other) {
+			return overlaps(other) && (_exclusive || other._exclusive);
+		}
+	}
+
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	/* The ranges held and waiting, in the order they were asked for. Guarded by _lock */
+	private final List<Range> _queue = new ArrayList<>();
+
+	/**
+	 * Takes the blocks first to last - 1, waiting until no range that
+	 * conflicts with them and was asked for earlier is held or waiting
+	 *
+	 * @return the range taken, to be given back to unlock
+	 */
+	public Range lock(int first, int last, boolean exclusive) {
+		Range range = new Range(first, last, exclusive);
+		_lock.lock();
+		try {
+			_queue.add(range);
+			if (isBlocked(range, _queue.size() - 1)) {
+				range._ready = _lock.newCondition();
+				while (!range._granted) {
+					range._ready.awaitUninterruptibly();
+				}
+			}
+			range._granted = true;
+		} finally {
+			_lock.unlock();
+		}
+		return range;
+	}
+
+	public void unlock(Range range) {
+		_lock.lock();
+		try {
+			int index = _queue.indexOf(range);
+			_queue.remove(index);
+			// Only the ranges behind it that it overlapped may have been waiting for it
+			for (int i = index; i < _queue.size(); i++) {
+				Range waiting = _queue.get(i);
+				if (!waiting._granted && waiting.overlaps(range) && !isBlocked(waiting, i)) {
+					waiting._granted = true;
+					waiting._ready.signal();
+				}
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if a range asked for before the one at index in the queue
+	 *         conflicts with it
+	 */
+	private boolean isBlocked(Range range, int index) {
+		for (int i = 0; i < index; i++) {
+			if (_queue.get(i).conflicts(range))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,91 @@
+package dblockcache;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the cache: the misses, the evictions of a full
+ * cache and the syncs, each with how long it took. An
+ * eviction records the sync it starts with as a flush of its own, so a run
+ * of evictions shows as a run of flushes. Until a recording enables them, an
+ * event is an allocation the JIT drops and a flag check
+ */
+final class CacheEvents {
+
+	private CacheEvents() {
+	}
+
+	@Name("defiler.CacheMiss")
+	@Label("Cache Miss")
+	@Category({ "DeFiler", "Cache" })
+	@Description("A block not in the cache, the duration being the time it took to make room for it")
+	static class Miss extends Event {
+		@Label("Block ID")
+		int blockID;
+
+		@Label("Background")
+		boolean background;
+
+		@Label("Fetched")
+		@Description("False for a free block, which is not read from the volume")
+		boolean fetched;
+
+		void missed(int blockID, boolean background, boolean fetched) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.blockID = blockID;
+			this.background = background;
+			this.fetched = fetched;
+			commit();
+		}
+	}
+
+	@Name("defiler.CacheEviction")
+	@Label("Cache Eviction")
+	@Category({ "DeFiler", "Cache" })
+	@Description("Blocks dropped from a full cache, after a sync")
+	static class Eviction extends Event {
+		@Label("Evicted")
+		int evicted;
+
+		@Label("Skipped")
+		@Description("Pinned or dirty blocks that could not be dropped")
+		int skipped;
+
+		void evicted(int evicted, int skipped) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.evicted = evicted;
+			this.skipped = skipped;
+			commit();
+		}
+	}
+
+	@Name("defiler.CacheFlush")
+	@Label("Cache Flush")
+	@Category({ "DeFiler", "Cache" })
+	@Description("A sync of the cache, writing back every dirty block")
+	static class Flush extends Event {
+		@Label("Blocks")
+		@Description("Blocks in the cache")
+		int blocks;
+
+		@Label("Dirty")
+		@Description("Blocks written back")
+		int dirty;
+
+		void flushed(int blocks, int dirty) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.blocks = blocks;
+			this.dirty = dirty;
+			commit();
+		}
+	}
+}
@@ -2,7 +2,9 @@ package dblockcache;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import common.Constants;
 import common.Constants.DiskOperationType;
 import virtualdisk.IVirtualDisk;
@@ -12,6 +14,10 @@ import virtualdisk.IVirtualDisk;
  * It keeps track of the state of the block and makes reads and writes on the disk
  * It can also be read from and written to
  * 
+ * Its state is guarded by a ReentrantLock rather than the monitor of the
+ * buffer, so a virtual thread waiting for the disk unmounts from its carrier
+ * instead of pinning it
+ * 
  * @author henriquemoraes
  *
  */
@@ -20,7 +26,23 @@ public class DBuffer {
 	private byte[] _dBuffer;
 	private boolean _isValid;
 	private boolean _isBusy;
+	private boolean _isPinned;
+	private boolean _isDirtiedWhileBusy;
+	private boolean _isPushWanted;
 	private int _blockID;
+
+	/**
+	 * Callers that got the buffer from the cache and have not released it
+	 * yet. Guarded by the lock of the cache, which never evicts a held buffer
+	 */
+	private int _holds;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	/**
+	 * Signalled whenever an I/O completes or the contents change
+	 */
+	private final Condition _ioDone = _lock.newCondition();
 	
 	private IVirtualDisk _disk;
      
@@ -50,14 +72,43 @@ public class DBuffer {
 	    }
 	}
 	
+	/**
+	 *  Same as startFetch, but the read is queued behind every regular request
+	 *  of the disk
+	 **/
+	public void startBackgroundFetch() {
+	    _isValid = false;
+	    _isBusy = true;
+
+	    try {
+	        _disk.startBackgroundRequest(this, DiskOperationType.READ);
+	    }
+	    catch (IllegalArgumentException | IOException e) {
+	        e.printStackTrace();
+	    }
+	}
+
 	/** 
 	 * Start an asynchronous write of buffer contents to block on volume 
 	 * 
-	 * Returns immediately is buffer is clean
+	 * Returns immediately is buffer is clean or pinned. While an I/O is under
+	 * way the push is queued when it completes instead: two requests for the
+	 * same buffer in the queue would let the second complete with the buffer
+	 * marked clean although a write made while it was served never reached
+	 * the volume
 	 **/
 	public void startPush() {
-	    if (_isClean) return;
-	    _isBusy = true;
+	    _lock.lock();
+	    try {
+	        if (_isClean || _isPinned) return;
+	        if (_isBusy) {
+	            _isPushWanted = true;
+	            return;
+	        }
+	        _isBusy = true;
+	    } finally {
+	        _lock.unlock();
+	    }
 	    
 	    try {
 	        _disk.startRequest(this, DiskOperationType.WRITE);
@@ -65,8 +116,11 @@ public class DBuffer {
 	    catch (IllegalArgumentException | IOException e) {
 	        e.printStackTrace();
 	    }
-	    synchronized(this) {
-	        notifyAll();
+	    _lock.lock();
+	    try {
+	        _ioDone.signalAll();
+	    } finally {
+	        _lock.unlock();
 	    }
 	}
 
@@ -80,16 +134,16 @@ public class DBuffer {
 	/**
 	 *  Wait until the buffer has valid data, i.e., wait for fetch to complete 
 	 *  */
-	public synchronized boolean waitValid() {
-	    while (!_isValid) {
-	        try {
-	            wait();
-	        }
-	        catch (InterruptedException e) {
-	            e.printStackTrace();
+	public boolean waitValid() {
+	    _lock.lock();
+	    try {
+	        while (!_isValid) {
+	            _ioDone.awaitUninterruptibly();
 	        }
+	        return true;
+	    } finally {
+	        _lock.unlock();
 	    }
-	    return true;
 	}
 	
 	/**
@@ -100,21 +154,60 @@ public class DBuffer {
 	}
 	
 	/**
-	 *  Wait until the buffer is clean, i.e., wait until a push operation completes 
+	 *  Wait until the buffer is clean, i.e., wait until a push operation completes.
+	 *  Returns right away for a pinned buffer, which is not pushed until unpinned,
+	 *  and for a buffer with no push under way, which was written again since
+	 *  its last push and would otherwise be waited on forever
 	 *  */
-	public synchronized boolean waitClean() {
-	    while (!_isClean) {
-	        try {
-	            wait();
-	        }
-	        catch (InterruptedException e) {
-	            e.printStackTrace();
+	public boolean waitClean() {
+	    _lock.lock();
+	    try {
+	        while (!_isClean && !_isPinned && _isBusy) {
+	            _ioDone.awaitUninterruptibly();
 	        }
-	    }
 	    
-	    return true;
+	        return true;
+	    } finally {
+	        _lock.unlock();
+	    }
 	}
 	
+	/**
+	 *  Keeps the buffer from being pushed until unpin is called. Used by the
+	 *  journal for metadata blocks holding changes that are not checkpointed
+	 *  yet. Waits for any I/O already under way, so no change made after this
+	 *  call reaches the volume through a push started before it
+	 *  */
+	public void pin() {
+	    _lock.lock();
+	    try {
+	        _isPinned = true;
+	        while (_isBusy) {
+	            _ioDone.awaitUninterruptibly();
+	        }
+	    } finally {
+	        _lock.unlock();
+	    }
+	}
+
+	public void unpin() {
+	    _lock.lock();
+	    try {
+	        _isPinned = false;
+	    } finally {
+	        _lock.unlock();
+	    }
+	}
+
+	public boolean isPinned() {
+	    _lock.lock();
+	    try {
+	        return _isPinned;
+	    } finally {
+	        _lock.unlock();
+	    }
+	}
+
 	/**
 	 *  Check if buffer is evictable: not evictable if I/O in progress, or buffer is held 
 	 *  */
@@ -131,31 +224,33 @@ public class DBuffer {
 	 * If it hits the end of the file, it returns the number of bytes read up
 	 * to that point
 	 */
-	public synchronized int read(byte[] buffer, int startOffset, int count) {
-	    
-	    if(startOffset + count > buffer.length || startOffset < 0)
-                return Constants.DBUFFER_ERROR;
-	    
-	    if(!_isValid)
-	        return -1;
-            
-	    // Read from the whole dBuffer
-	    if(count > _dBuffer.length)
-	        count = _dBuffer.length;
-            
-            // read into dBuff
-            for (int i = 0; i < count; i++) {
-                
-                buffer[i + startOffset] = _dBuffer[i];
-                /*
-                if(_dBuffer[i] == Constants.EOF) 
-                    return i;*/
-            }
-            
-            synchronized(this){
-                notifyAll();
-            }
-            return count;
+	public int read(byte[] buffer, int startOffset, int count) {
+	    return read(0, buffer, startOffset, count);
+	}
+
+	/**
+	 * Same as read(byte[], int, int) but starts copying from blockOffset
+	 * within this DBuffer. At most BLOCK_SIZE - blockOffset bytes are read
+	 */
+	public int read(int blockOffset, byte[] buffer, int startOffset, int count) {
+	    _lock.lock();
+	    try {
+	        if (startOffset + count > buffer.length || startOffset < 0
+	                || blockOffset < 0 || blockOffset > _dBuffer.length)
+	            return Constants.DBUFFER_ERROR;
+
+	        if (!_isValid)
+	            return -1;
+
+	        if (count > _dBuffer.length - blockOffset)
+	            count = _dBuffer.length - blockOffset;
+
+	        System.arraycopy(_dBuffer, blockOffset, buffer, startOffset, count);
+	        _ioDone.signalAll();
+	        return count;
+	    } finally {
+	        _lock.unlock();
+	    }
 	}
 
 	/**
@@ -166,61 +261,153 @@ public class DBuffer {
 	 * 
 	 * If count is greater than a block size, only BLOCK_SIZE bytes will be written 
 	 */
-	public synchronized int write(byte[] buffer, int startOffset, int count) {
-//	    ByteBuffer bytes = ByteBuffer.wrap(buffer);
-//            IntBuffer ints = bytes.asIntBuffer();
-//            System.out.println("Receiving write in buffer, buffer is: ");
-//            while(ints.hasRemaining()){
-//                System.out.print(" "+ints.get());
-//            }
-//            System.out.println("");
-	    
-	    if(startOffset + count > buffer.length || startOffset < 0)
-	        return Constants.DBUFFER_ERROR;
-	    
-	    int readBytes = count;
-	    
-	    // Write on the whole dBuffer
-	    if(count > _dBuffer.length) {
-	        readBytes = _dBuffer.length;
+	public int write(byte[] buffer, int startOffset, int count) {
+	    if (count > _dBuffer.length)
 	        System.out.println("Warning! Count > dbuff size!");
+	    return write(0, buffer, startOffset, count);
+	}
+
+	/**
+	 * Same as write(byte[], int, int) but starts copying at blockOffset within
+	 * this DBuffer, leaving the rest of the block untouched. At most
+	 * BLOCK_SIZE - blockOffset bytes are written
+	 */
+	public int write(int blockOffset, byte[] buffer, int startOffset, int count) {
+	    _lock.lock();
+	    try {
+	        if (startOffset + count > buffer.length || startOffset < 0
+	                || blockOffset < 0 || blockOffset > _dBuffer.length)
+	            return Constants.DBUFFER_ERROR;
+
+	        if (count > _dBuffer.length - blockOffset)
+	            count = _dBuffer.length - blockOffset;
+
+	        System.arraycopy(buffer, startOffset, _dBuffer, blockOffset, count);
+
+	        // Passed tests and got written, mark dBuff as dirty but valid
+	        markDirty();
+	        _isValid = true;
+	        _ioDone.signalAll();
+	        return count;
+	    } finally {
+	        _lock.unlock();
+	    }
+	}
+
+	/**
+	 * Reads count bytes starting at blockOffset of this DBuffer into dst, which
+	 * may be a heap or a direct buffer. Upon an error it returns -1, otherwise
+	 * the number of bytes read
+	 */
+	public int read(int blockOffset, ByteBuffer dst, int count) {
+	    _lock.lock();
+	    try {
+	        if (!_isValid || blockOffset < 0 || count < 0 || blockOffset + count > _dBuffer.length
+	                || count > dst.remaining())
+	            return Constants.DBUFFER_ERROR;
+
+	        dst.put(_dBuffer, blockOffset, count);
+	        return count;
+	    } finally {
+	        _lock.unlock();
+	    }
+	}
+
+	/**
+	 * Writes count bytes of src into this DBuffer starting at blockOffset and
+	 * marks it dirty. src may be a heap or a direct buffer. Upon an error it
+	 * returns -1, otherwise the number of bytes written
+	 */
+	public int write(int blockOffset, ByteBuffer src, int count) {
+	    _lock.lock();
+	    try {
+	        if (blockOffset < 0 || count < 0 || blockOffset + count > _dBuffer.length
+	                || count > src.remaining())
+	            return Constants.DBUFFER_ERROR;
+
+	        src.get(_dBuffer, blockOffset, count);
+	        markDirty();
+	        _isValid = true;
+	        _ioDone.signalAll();
+	        return count;
+	    } finally {
+	        _lock.unlock();
+	    }
+	}
+
+	/**
+	 * Reads the int stored in the index-th int slot of this DBuffer. Used to
+	 * look up single entries of indirect blocks
+	 */
+	public int getInt(int index) {
+	    _lock.lock();
+	    try {
+	        int offset = index * Constants.BYTES_PER_INT;
+	        return ((_dBuffer[offset] & 0xff) << 24) | ((_dBuffer[offset + 1] & 0xff) << 16)
+	                | ((_dBuffer[offset + 2] & 0xff) << 8) | (_dBuffer[offset + 3] & 0xff);
+	    } finally {
+	        _lock.unlock();
+	    }
+	}
+
+	/**
+	 * Stores value in the index-th int slot of this DBuffer and marks it
+	 * dirty. Only the 4 bytes of the slot are touched
+	 */
+	public void putInt(int index, int value) {
+	    _lock.lock();
+	    try {
+	        int offset = index * Constants.BYTES_PER_INT;
+	        _dBuffer[offset] = (byte) (value >>> 24);
+	        _dBuffer[offset + 1] = (byte) (value >>> 16);
+	        _dBuffer[offset + 2] = (byte) (value >>> 8);
+	        _dBuffer[offset + 3] = (byte) value;
+	        markDirty();
+	        _isValid = true;
+	    } finally {
+	        _lock.unlock();
 	    }
-	    System.out.println("Writing in dbuff. Start is "+startOffset+" count is "+count);
-	    // write into dBuff
-	    for (int i = 0; i < readBytes; i++) 
-	        _dBuffer[i] = buffer[i + startOffset];
-	    
-//	    bytes = ByteBuffer.wrap(_dBuffer);
-//            ints = bytes.asIntBuffer();
-//            System.out.println("Just wrote into buffer with id "+_blockID+":");
-//            while(ints.hasRemaining()){
-//                System.out.print(" "+ints.get());
-//            }
-//            System.out.println("");
-	    
-	    // To prevent wrong readings, add EOF
-	   // if (readBytes < _dBuffer.length)
-	     //   _dBuffer[count] = Constants.EOF;
-	   
-	    synchronized(this){
-                notifyAll();
-                // Passed tests and got written, mark dBuff as dirty but valid
-                _isClean = false;
-                _isValid = true;
-            }
-	    return readBytes;
 	}
 	
+	/**
+	 *  Marks the buffer dirty. A push may be copying the block out right now,
+	 *  so a write landing during it keeps the buffer dirty once it completes
+	 *  */
+	private void markDirty() {
+	    _isClean = false;
+	    if (_isBusy)
+	        _isDirtiedWhileBusy = true;
+	}
+
 	/**
 	 *  An upcall from VirtualDisk layer to inform the completion of an IO operation 
 	 *  */
-	public synchronized void ioComplete() {
-	    _isBusy = false;
-	    _isValid = true;
-	    _isClean = true;
+	public void ioComplete() {
+	    boolean push;
+	    _lock.lock();
+	    try {
+	        _isValid = true;
+	        _isClean = !_isDirtiedWhileBusy;
+	        _isDirtiedWhileBusy = false;
+	        push = _isPushWanted && !_isClean && !_isPinned;
+	        _isPushWanted = false;
+	        // A push asked for during the I/O keeps the buffer busy, so
+	        // waitClean waits for it as well
+	        _isBusy = push;
 	    
-	    //Wake threads waiting on this dBuffer's state
-	    notifyAll();
+	        //Wake threads waiting on this dBuffer's state
+	        _ioDone.signalAll();
+	    } finally {
+	        _lock.unlock();
+	    }
+	    if (push) {
+	        try {
+	            _disk.startRequest(this, DiskOperationType.WRITE);
+	        }
+	        catch (IllegalArgumentException | IOException e) {
+	            e.printStackTrace();
+	        }
+	    }
 	}
 	
 	/**
@@ -238,10 +425,27 @@ public class DBuffer {
 	}
 	
 	/**
-	 * Signals as "held"
-	 * @param busy sets whether this buffer is busy or not
+	 * Counts one more caller of the buffer, see DBufferCache.getBlock. Called
+	 * under the lock of the cache
+	 */
+	void hold() {
+	    _holds++;
+	}
+
+	/**
+	 * Called under the lock of the cache
+	 * @return whether anyone still holds the buffer
+	 */
+	boolean release() {
+	    if (_holds == 0)
+	        throw new IllegalStateException("Block " + _blockID + " released more often than it was taken");
+	    return --_holds > 0;
+	}
+
+	/**
+	 * Called under the lock of the cache
 	 */
-	public void setBusy(boolean busy) {
-	    _isBusy = busy;
+	boolean isHeld() {
+	    return _holds > 0;
 	}
 }
@@ -1,12 +1,19 @@
 package dblockcache;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import virtualdisk.VirtualDisk;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import virtualdisk.IVirtualDisk;
 import common.Constants;
 
 /**
@@ -27,7 +34,37 @@ import common.Constants;
  */
 public class DBufferCache {
 
-	private VirtualDisk _disk;
+	/**
+	 * Number of blocks dropped from a full cache at once
+	 */
+	private static final int EVICTION_BATCH = Constants.NUM_OF_CACHE_BLOCKS / 16;
+
+	/**
+	 * Milliseconds a miss on a cache that could not be emptied waits before
+	 * trying again. Buffers are also unpinned by checkpoints, which do not
+	 * signal the misses
+	 */
+	private static final long ROOM_WAIT_MS = 10;
+
+	private IVirtualDisk _disk;
+
+	/**
+	 * Guards the map and the LRU queue. Never held while waiting for the
+	 * disk: syncs and evictions collect the buffers under it and write them
+	 * back after releasing it
+	 */
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a buffer is released by its last holder
+	 */
+	private final Condition _released = _lock.newCondition();
+
+	/**
+	 * Held by the thread making room in a full cache, so that the misses
+	 * finding it full wait for one eviction instead of each running one
+	 */
+	private final ReentrantLock _evictionLock = new ReentrantLock();
 
 	/**
 	 * Use of a priority queue to mark the free blocks from the disk
@@ -49,7 +86,7 @@ public class DBufferCache {
 	 * Constructor: allocates a cacheSize number of cache blocks, each
 	 * containing BLOCK-size bytes data, in memory
 	 */
-	public DBufferCache(int cacheSize, VirtualDisk disk) {
+	public DBufferCache(int cacheSize, IVirtualDisk disk) {
 		_replacementBlocks = new ArrayDeque<>();
 		_freeBlocksInDisk = new TreeSet<>();
 		_blocksInCache = new TreeMap<>();
@@ -60,57 +97,213 @@ public class DBufferCache {
 		diskThread.start();
 	}
 
-	private synchronized void initializeCache() {
+	private void initializeCache() {
+		_lock.lock();
+		try {
 
-		// Skip block zero and inode region
-		for (int i = Constants.INODE_REGION_SIZE + 1; i < Constants.NUM_OF_BLOCKS; i++) {
-			_freeBlocksInDisk.add(i);
-		}
+			// Skip block zero, the inode region, the journal and the bitmap region
+			for (int i = Constants.INODE_REGION_SIZE + 1; i < Constants.JOURNAL_REGION_START; i++) {
+				_freeBlocksInDisk.add(i);
+			}
 
-		// Initialize inode region blocks and put them in cache, skip block 0
-		for (int i = 1; i <= Constants.INODE_REGION_SIZE; i++) {
-			_blocksInCache.put(i, new DBuffer(_disk, i));
+			// Initialize inode region blocks and put them in cache, skip block 0
+			for (int i = 1; i <= Constants.INODE_REGION_SIZE; i++) {
+				_blocksInCache.put(i, new DBuffer(_disk, i));
+			}
+		} finally {
+			_lock.unlock();
 		}
 	}
 
 	/**
 	 * Get buffer for block specified by blockID. The buffer is "held" until the
-	 * caller releases it. A "held" buffer cannot be evicted: its block ID
-	 * cannot change.
+	 * caller releases it with releaseBlock. A "held" buffer cannot be evicted:
+	 * its block ID cannot change. Every buffer returned by this class is held
 	 * 
 	 */
 	public DBuffer getBlock(int blockID) {
-		if (_blocksInCache.containsKey(blockID)) {
-			updateLRUBlock(blockID);
-			return _blocksInCache.get(blockID);
-		}
+		return getBlock(blockID, false);
+	}
 
-		checkLRULatency();
-		DBuffer buffer = null;
-		buffer = new DBuffer(_disk, blockID);
+	/**
+	 * Same as getBlock, but a block that is not cached is fetched at
+	 * background priority, behind every regular request of the disk. A free
+	 * block is never taken by this method
+	 * 
+	 * @return the buffer of the block, or null if the block is free on disk
+	 */
+	public DBuffer getBlockInBackground(int blockID) {
+		return getBlock(blockID, true);
+	}
 
-		synchronized (_freeBlocksInDisk) {
-		    if (!_freeBlocksInDisk.contains(blockID))
-		        buffer.startFetch();
-		    else {			
-		        _freeBlocksInDisk.remove(blockID);	
-		    }
+	/**
+	 * A miss on a full cache makes room with the lock released and tries
+	 * again, so hits go on while the evicted blocks are written back. The
+	 * cache never grows past its size: if no room was made, every block being
+	 * held or pinned, the miss waits for a block to be released
+	 */
+	private DBuffer getBlock(int blockID, boolean background) {
+		CacheEvents.Miss event = null;
+		while (true) {
+			_lock.lock();
+			try {
+				DBuffer buffer = _blocksInCache.get(blockID);
+				if (buffer != null) {
+					buffer.hold();
+					updateLRUBlock(blockID);
+					return buffer;
+				}
+				if (event == null) {
+					event = new CacheEvents.Miss();
+					event.begin();
+				}
+				if (_blocksInCache.size() < Constants.NUM_OF_CACHE_BLOCKS) {
+					buffer = new DBuffer(_disk, blockID);
+					boolean fetched;
+					synchronized (_freeBlocksInDisk) {
+					    fetched = !_freeBlocksInDisk.contains(blockID);
+					    if (fetched) {
+					        if (background)
+					            buffer.startBackgroundFetch();
+					        else
+					            buffer.startFetch();
+					    } else if (background) {
+					        return null;
+					    } else {
+					        _freeBlocksInDisk.remove(blockID);
+					    }
+					}
+					buffer.hold();
+					_blocksInCache.put(blockID, buffer);
+					_replacementBlocks.add(blockID);
+					event.missed(blockID, background, fetched);
+					return buffer;
+				}
+			} finally {
+				_lock.unlock();
+			}
+			makeRoom();
 		}
+	}
 
-		_blocksInCache.put(blockID, buffer);
-		_replacementBlocks.add(blockID);
+	/**
+	 * Allocates the first free block on disk and returns a zeroed buffer for
+	 * it. The stale contents of the block are never fetched from the volume
+	 * 
+	 * @return the buffer of the new block, or null if the disk is full
+	 */
+	public DBuffer getNewBlock() {
+		int blockID;
+		synchronized (_freeBlocksInDisk) {
+			if (_freeBlocksInDisk.isEmpty())
+				return null;
+			blockID = _freeBlocksInDisk.first();
+			_freeBlocksInDisk.remove(blockID);
+		}
+		return getZeroBlock(blockID);
+	}
 
+	/**
+	 * Returns a zeroed buffer for blockID without fetching its contents from
+	 * the volume, for a block that is about to be overwritten. A fetch of the
+	 * block already under way is waited for first, so it cannot land over the
+	 * new contents. The free blocks are left untouched
+	 */
+	public DBuffer getZeroBlock(int blockID) {
+		DBuffer buffer = null;
+		boolean cached = false;
+		while (buffer == null) {
+			_lock.lock();
+			try {
+				buffer = _blocksInCache.get(blockID);
+				if (buffer != null) {
+					cached = true;
+					updateLRUBlock(blockID);
+				} else if (_blocksInCache.size() < Constants.NUM_OF_CACHE_BLOCKS) {
+					buffer = new DBuffer(_disk, blockID);
+					_blocksInCache.put(blockID, buffer);
+					_replacementBlocks.add(blockID);
+				}
+				if (buffer != null)
+					buffer.hold();
+			} finally {
+				_lock.unlock();
+			}
+			if (buffer == null)
+				makeRoom();
+		}
+		// A cached buffer that is not valid is being fetched
+		if (cached && !buffer.checkValid())
+			buffer.waitValid();
+		buffer.write(new byte[Constants.BLOCK_SIZE], 0, Constants.BLOCK_SIZE);
 		return buffer;
 	}
 
 	/**
-	 * Creates space in cache according to LRU policy in case cache is full
+	 * Evicts blocks from a full cache, and waits for a block to be released
+	 * if none could be. Must be called without the lock of the cache
+	 */
+	private void makeRoom() {
+		checkLRULatency();
+		_lock.lock();
+		try {
+			if (_blocksInCache.size() >= Constants.NUM_OF_CACHE_BLOCKS)
+				_released.await(ROOM_WAIT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates space in cache according to LRU policy in case cache is full.
+	 * The dirty blocks are written back first with the lock of the cache
+	 * released, and the blocks still clean once it is taken again are
+	 * dropped. Held and pinned buffers, and buffers written again since, are
+	 * skipped.
+	 * A full cache drops EVICTION_BATCH blocks at once, so the sync is paid
+	 * once per batch of misses rather than on every one of them, and the
+	 * misses that find the cache full meanwhile wait for that batch. Must be
+	 * called without the lock of the cache
 	 */
-	public synchronized void checkLRULatency() {
-		sync();
-		while (_blocksInCache.size() >= Constants.NUM_OF_CACHE_BLOCKS) {
-			Integer blockID = _replacementBlocks.poll();
-			_blocksInCache.remove(blockID);
+	public void checkLRULatency() {
+		_evictionLock.lock();
+		try {
+			if (!isFull())
+				return;
+			CacheEvents.Eviction event = new CacheEvents.Eviction();
+			event.begin();
+			sync();
+			_lock.lock();
+			try {
+				int size = _blocksInCache.size();
+				int skipped = 0;
+				while (_blocksInCache.size() > Constants.NUM_OF_CACHE_BLOCKS - EVICTION_BATCH
+						&& skipped < _replacementBlocks.size()) {
+					Integer blockID = _replacementBlocks.poll();
+					DBuffer buffer = _blocksInCache.get(blockID);
+					if (buffer.isHeld() || buffer.isPinned() || !buffer.checkClean()) {
+						_replacementBlocks.add(blockID);
+						skipped++;
+						continue;
+					}
+					_blocksInCache.remove(blockID);
+				}
+				event.evicted(size - _blocksInCache.size(), skipped);
+			} finally {
+				_lock.unlock();
+			}
+		} finally {
+			_evictionLock.unlock();
+		}
+	}
+
+	private boolean isFull() {
+		_lock.lock();
+		try {
+			return _blocksInCache.size() >= Constants.NUM_OF_CACHE_BLOCKS;
+		} finally {
+			_lock.unlock();
 		}
 	}
 
@@ -119,33 +312,65 @@ public class DBufferCache {
 	 * 
 	 * @param blockID
 	 */
-	public synchronized void updateLRUBlock(int blockID) {
-		if (blockID <= Constants.INODE_REGION_SIZE)
-			return;
-		if (_replacementBlocks.contains(blockID)) {
-			_replacementBlocks.remove(blockID);
-			_replacementBlocks.add(blockID);
+	public void updateLRUBlock(int blockID) {
+		_lock.lock();
+		try {
+			if (blockID <= Constants.INODE_REGION_SIZE)
+				return;
+			if (_replacementBlocks.contains(blockID)) {
+				_replacementBlocks.remove(blockID);
+				_replacementBlocks.add(blockID);
+			}
+		} finally {
+			_lock.unlock();
 		}
 	}
 
 	/**
-	 * Release the buffer so that others waiting on it can use it
+	 * Release the buffer so that others waiting on it can use it. Every
+	 * buffer taken from the cache must be released once, after the last
+	 * copy in or out of it; it may be evicted from then on
 	 */
 	public void releaseBlock(DBuffer buf) {
-		buf.setBusy(false);
+		_lock.lock();
+		try {
+			if (!buf.release())
+				_released.signalAll();
+		} finally {
+			_lock.unlock();
+		}
 	}
 
 	/**
 	 * sync() writes back all dirty blocks to the volume and wait for
 	 * completion. The sync() method should maintain clean block copies in
-	 * DBufferCache.
+	 * DBufferCache. Pinned blocks are left dirty, they are written once
+	 * unpinned. The dirty blocks are collected under the lock of the cache and
+	 * written back after it is released, blocks dirtied meanwhile are left
+	 * for the next sync
 	 */
 	public void sync() {
-		for (Integer i : _blocksInCache.keySet()) {
-			DBuffer buffer = _blocksInCache.get(i);
+		CacheEvents.Flush event = new CacheEvents.Flush();
+		event.begin();
+		List<DBuffer> dirty = new ArrayList<>();
+		int blocks;
+		_lock.lock();
+		try {
+			blocks = _blocksInCache.size();
+			for (DBuffer buffer : _blocksInCache.values()) {
+				if (!buffer.checkClean() && !buffer.isPinned())
+					dirty.add(buffer);
+			}
+		} finally {
+			_lock.unlock();
+		}
+		for (DBuffer buffer : dirty) {
 			buffer.startPush();
+		}
+		for (DBuffer buffer : dirty) {
 			buffer.waitClean();
 		}
+		event.flushed(blocks, dirty.size());
 	}
 
 	/**
@@ -156,11 +381,15 @@ public class DBufferCache {
 	}
 
 	public boolean containsUsedBlock(Integer ID) {
-		return !_freeBlocksInDisk.contains(ID);
+		synchronized (_freeBlocksInDisk) {
+			return !_freeBlocksInDisk.contains(ID);
+		}
 	}
 
 	public boolean containsFreeBlock(Integer ID) {
-		return _freeBlocksInDisk.contains(ID);
+		synchronized (_freeBlocksInDisk) {
+			return _freeBlocksInDisk.contains(ID);
+		}
 	}
 
 	public void newFreeBlock(Integer ID) {
@@ -183,7 +412,37 @@ public class DBufferCache {
 	}
 
 	public int numOfFreeBlocks() {
-		return _freeBlocksInDisk.size();
+		synchronized (_freeBlocksInDisk) {
+			return _freeBlocksInDisk.size();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the blocks in use, as a bitmap indexed by block id
+	 */
+	public BitSet getUsedBlocks() {
+		BitSet used = new BitSet(Constants.NUM_OF_BLOCKS);
+		used.set(0, Constants.NUM_OF_BLOCKS);
+		synchronized (_freeBlocksInDisk) {
+			for (int i : _freeBlocksInDisk) {
+				used.clear(i);
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Replaces the free blocks: every data block that is not set in used
+	 * becomes free
+	 */
+	public void setUsedBlocks(BitSet used) {
+		synchronized (_freeBlocksInDisk) {
+			_freeBlocksInDisk.clear();
+			for (int i = Constants.INODE_REGION_SIZE + 1; i < Constants.JOURNAL_REGION_START; i++) {
+				if (!used.get(i))
+					_freeBlocksInDisk.add(i);
+			}
+		}
 	}
 
 	public Integer getNextFreeBlock() {
@@ -193,4 +452,35 @@ public class DBufferCache {
 			return first;
 		}
 	}
+
+	/**
+	 * Takes length consecutive free blocks: the first run that long found
+	 * from block from on, or from the start of the data region if there is
+	 * none past it. The blocks are not zeroed, see getZeroBlock
+	 *
+	 * @return the first block of the run, or -1 if no run is that long
+	 */
+	public int getFreeRun(int length, int from) {
+		synchronized (_freeBlocksInDisk) {
+			int first = findFreeRun(_freeBlocksInDisk.tailSet(from), length);
+			if (first < 0)
+				first = findFreeRun(_freeBlocksInDisk, length);
+			if (first >= 0)
+				_freeBlocksInDisk.subSet(first, first + length).clear();
+			return first;
+		}
+	}
+
+	private static int findFreeRun(SortedSet<Integer> blocks, int length) {
+		int first = -1;
+		int last = -1;
+		for (int blockID : blocks) {
+			if (first < 0 || blockID != last + 1)
+				first = blockID;
+			last = blockID;
+			if (last - first + 1 == length)
+				return first;
+		}
+		return -1;
+	}
 }
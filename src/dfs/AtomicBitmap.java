@@ -0,0 +1,88 @@
+package dfs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size bitmap of taken and free entries that can be updated by
+ * several threads at once. Entries are taken and released with CAS on the
+ * word that holds them, and the search for a free entry starts at the last
+ * word that had one, or at the lowest word an entry was freed in since, so
+ * full words are skipped in the common case and low entries are reused first
+ */
+class AtomicBitmap {
+
+	private static final int BITS_PER_WORD = Long.SIZE;
+
+	private final int _size;
+	private final AtomicLongArray _words;
+	private final AtomicInteger _nextWord = new AtomicInteger();
+
+	AtomicBitmap(int size) {
+		_size = size;
+		_words = new AtomicLongArray((size + BITS_PER_WORD - 1) / BITS_PER_WORD);
+	}
+
+	/**
+	 * Takes a free entry, the lowest one in the first word that has any
+	 *
+	 * @return the index of the entry taken, or -1 if all are taken
+	 */
+	int allocate() {
+		int words = _words.length();
+		int start = _nextWord.get();
+		for (int n = 0; n < words; n++) {
+			int word = (start + n) % words;
+			long bits;
+			while ((bits = _words.get(word)) != -1L) {
+				int bit = Long.numberOfTrailingZeros(~bits);
+				int index = word * BITS_PER_WORD + bit;
+				if (index >= _size)
+					break;
+				if (_words.compareAndSet(word, bits, bits | (1L << bit))) {
+					_nextWord.set(word);
+					return index;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Takes a specific entry
+	 *
+	 * @return false if the entry was already taken
+	 */
+	boolean claim(int index) {
+		int word = index / BITS_PER_WORD;
+		long mask = 1L << (index % BITS_PER_WORD);
+		long bits;
+		do {
+			bits = _words.get(word);
+			if ((bits & mask) != 0)
+				return false;
+		} while (!_words.compareAndSet(word, bits, bits | mask));
+		return true;
+	}
+
+	/**
+	 * Frees an entry so that allocate can hand it out again
+	 */
+	void release(int index) {
+		int word = index / BITS_PER_WORD;
+		long mask = 1L << (index % BITS_PER_WORD);
+		long bits;
+		do {
+			bits = _words.get(word);
+		} while (!_words.compareAndSet(word, bits, bits & ~mask));
+		_nextWord.accumulateAndGet(word, Math::min);
+	}
+
+	boolean isTaken(int index) {
+		return (_words.get(index / BITS_PER_WORD) & (1L << (index % BITS_PER_WORD))) != 0;
+	}
+
+	int size() {
+		return _size;
+	}
+}
@@ -1,6 +1,9 @@
 package dfs;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import common.Constants;
 import common.DFileID;
@@ -44,6 +47,51 @@ public abstract class DFS {
 	/** destroys the file specified by the DFileID */
 	public abstract void destroyDFile(DFileID dFID);
 
+	/**
+	 * creates count new DFiles at once. The inodes of the new files that share
+	 * a block of the inode table are written together, in one transaction
+	 * 
+	 * @return the ids of the new files, fewer than count if the DFS ran out
+	 *         of files
+	 */
+	public abstract List<DFileID> createDFiles(int count);
+
+	/**
+	 * destroys all the files specified. The inodes that share a block of the
+	 * inode region are cleared together, and ids of files that do not exist
+	 * are skipped
+	 */
+	public abstract void destroyDFiles(Collection<DFileID> dFIDs);
+
+	/**
+	 * creates a new DFile under name, recorded in the name index of the
+	 * volume. Returns null if the name is taken, empty or longer than
+	 * MAX_NAME_LENGTH bytes of UTF-8
+	 */
+	public abstract DFileID createDFile(String name);
+
+	/** returns the DFileID of the file created under name, or null */
+	public abstract DFileID lookupDFile(String name);
+
+	/** destroys the file created under name, and removes the name */
+	public abstract void destroyDFile(String name);
+
+	/**
+	 * lists in order at most limit names starting with prefix with their
+	 * DFileIDs. A page starts after the name after, the last name of the
+	 * previous page, or at the first name for after null. Names are ordered
+	 * by their bytes in UTF-8
+	 */
+	public abstract Map<String, DFileID> listDFiles(String prefix, String after, int limit);
+
+	/**
+	 * creates a new DFile holding the same bytes as the file named by
+	 * DFileID. The two files share their blocks until either of them writes
+	 * to one, so a clone costs the same whatever the size of the file.
+	 * Returns null if the file does not exist or no file can be created
+	 */
+	public abstract DFileID cloneDFile(DFileID dFID);
+
 	/**
 	 * reads the file dfile named by DFileID into the buffer starting from the
 	 * buffer offset startOffset; at most count bytes are transferred
@@ -56,6 +104,31 @@ public abstract class DFS {
 	 */
 	public abstract int write(DFileID dFID, byte[] buffer, int startOffset, int count);
 
+	/**
+	 * reads the file named by DFileID starting at byte pos of the file into
+	 * the buffers dsts, filling each one up to its limit before moving to the
+	 * next; heap and direct buffers are both accepted. Returns the number of
+	 * bytes read, 0 if pos is past the end of the file
+	 */
+	public abstract int read(DFileID dFID, long pos, ByteBuffer[] dsts);
+
+	/**
+	 * writes the remaining bytes of the buffers srcs, in order, to the file
+	 * specified by DFileID starting at byte pos of the file, growing it if
+	 * needed; heap and direct buffers are both accepted. Returns the number of
+	 * bytes written
+	 */
+	public abstract int write(DFileID dFID, long pos, ByteBuffer[] srcs);
+
+	/**
+	 * sets the size of the file specified by DFileID to newSize bytes. A
+	 * smaller size frees only the blocks past the new end; a larger one adds a
+	 * hole that reads as zeros and takes no block until it is written. Returns
+	 * the new size, or DBUFFER_ERROR if the file does not exist or newSize is
+	 * out of range
+	 */
+	public abstract int truncate(DFileID dFID, long newSize);
+
 	/** returns the size in bytes of the file indicated by DFileID. */
 	public abstract int sizeDFile(DFileID dFID);
 
@@ -66,4 +139,11 @@ public abstract class DFS {
 
 	/** Write back all dirty blocks to the volume, and wait for completion. */
 	public abstract void sync();
+
+	/**
+	 * Checkpoint the journal, writing back all dirty blocks and leaving the
+	 * journal empty so the next mount replays nothing, and stop the disk. The
+	 * DFS cannot be used afterwards
+	 */
+	public abstract void unmount();
 }
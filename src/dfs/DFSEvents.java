@@ -0,0 +1,107 @@
+package dfs;
+
+import common.DFileID;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the file operations of DFSImpl, each with the
+ * time it took from the call to the return, locks and disk waits included.
+ * Next to the events of the cache and of the disk, they tell where a slow
+ * operation spent its time. Until a recording enables them, an event is an
+ * allocation the JIT drops and a flag check
+ */
+final class DFSEvents {
+
+	private DFSEvents() {
+	}
+
+	@Category({ "DeFiler", "File System" })
+	abstract static class Transfer extends Event {
+		@Label("File ID")
+		int fileID;
+
+		@Label("Position")
+		long position;
+
+		@Label("Bytes")
+		@Description("Bytes transferred, -1 for an error")
+		@DataAmount
+		long bytes;
+
+		/**
+		 * Records the transfer of bytes bytes of a file from position on
+		 */
+		void transferred(DFileID dFID, long position, int bytes) {
+			end();
+			if (!shouldCommit())
+				return;
+			fileID = dFID.getDFileID();
+			this.position = position;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+
+	@Name("defiler.FileRead")
+	@Label("File Read")
+	static class Read extends Transfer {
+	}
+
+	@Name("defiler.FileWrite")
+	@Label("File Write")
+	static class Write extends Transfer {
+	}
+
+	@Name("defiler.FileCreate")
+	@Label("File Create")
+	@Category({ "DeFiler", "File System" })
+	static class Create extends Event {
+		@Label("File ID")
+		@Description("The file created, the first one of a batch, -1 if none was")
+		int fileID;
+
+		@Label("Files")
+		int files;
+
+		void created(DFileID first, int files) {
+			end();
+			if (!shouldCommit())
+				return;
+			fileID = first == null ? -1 : first.getDFileID();
+			this.files = files;
+			commit();
+		}
+	}
+
+	@Name("defiler.FileDestroy")
+	@Label("File Destroy")
+	@Category({ "DeFiler", "File System" })
+	static class Destroy extends Event {
+		@Label("File ID")
+		@Description("The file destroyed, the lowest id of a batch, -1 if none was")
+		int fileID;
+
+		@Label("Files")
+		int files;
+
+		@Label("Bytes")
+		@Description("Size of the files destroyed")
+		@DataAmount
+		long bytes;
+
+		void destroyed(int fileID, int files, long bytes) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.fileID = fileID;
+			this.files = files;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+}
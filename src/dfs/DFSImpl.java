@@ -1,21 +1,37 @@
 package dfs;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
+import virtualdisk.CompressedDisk;
+import virtualdisk.IVirtualDisk;
 import virtualdisk.VirtualDisk;
 import common.Constants;
 import common.DFile;
 import common.DFileID;
+import common.MetadataLock;
+import common.RangeLock;
 import dblockcache.DBuffer;
 import dblockcache.DBufferCache;
 
@@ -63,7 +79,81 @@ import dblockcache.DBufferCache;
 public class DFSImpl extends DFS {
 
 	DBufferCache _cache;
-	Map<Integer, DFile> _fileMap = new HashMap<Integer, DFile>();
+	FileTable _files = new FileTable(Constants.MAX_DFILES);
+
+	/**
+	 * Where every inode slot lives. The slot and block of each file are kept
+	 * in its DFile, so an inode is found or placed without reading the table
+	 */
+	InodeTable _inodes = new InodeTable(this);
+
+	/**
+	 * The names of the files created with a name
+	 */
+	NameIndex _names = new NameIndex(this);
+
+	/**
+	 * How many files share each block of the cloned files
+	 */
+	RefCounts _refs = new RefCounts(this);
+
+	/**
+	 * The blocks held once for all the files writing the same data
+	 */
+	Dedup _dedup = new Dedup(this);
+
+	/**
+	 * Most blocks a file shrinks by, or has allocated for its holes, in one
+	 * transaction, so that the record of any resize fits in the journal
+	 */
+	private static final int RESIZE_STEP = 16 * Constants.INTS_IN_BLOCK;
+
+	/**
+	 * Most inodes written or cleared in one transaction by createDFiles and
+	 * destroyDFiles, for the same reason
+	 */
+	private static final int INODE_STEP = 64 * Constants.INODES_IN_BLOCK;
+
+	/**
+	 * Most blocks of a read or write fetched at once. The next window is
+	 * fetched while the blocks of the current one are copied, so a request
+	 * holds two windows of the cache at most, whatever its size
+	 */
+	private static final int PREFETCH_WINDOW = 4 * Constants.INTS_IN_BLOCK;
+
+	/**
+	 * What a hole reads as
+	 */
+	private static final byte[] ZEROS = new byte[Constants.BLOCK_SIZE];
+
+	/**
+	 * Returned by an optimistic read that must be done again holding the locks
+	 */
+	private static final int RETRY = -2;
+
+	/**
+	 * The blocks of block ids copied by unshareBlock: indirect blocks, blocks
+	 * pointing to indirect blocks, and triple indirect blocks
+	 */
+	private static final int LEVEL_INDIRECT = 1;
+	private static final int LEVEL_POINTER = 2;
+	private static final int LEVEL_TRIPLE = 3;
+
+	private Scrubber _scrubber;
+
+	private Defragmenter _defragmenter;
+
+	/**
+	 * Runs the requests of readAsync, writeAsync and syncAsync
+	 */
+	private final ExecutorService _asyncExecutor = newAsyncExecutor();
+
+	Journal _journal = new Journal(this);
+
+	/**
+	 * Whether the volume is a CompressedDisk rather than a VirtualDisk
+	 */
+	private boolean _compressed;
 
 	public DFSImpl() {
 		super();
@@ -77,11 +167,24 @@ public class DFSImpl extends DFS {
 		super(volName, format);
 	}
 
+	/**
+	 * @param compressed
+	 *            if true the volume stores its blocks compressed, see
+	 *            CompressedDisk. A volume must always be mounted the way it
+	 *            was formatted
+	 */
+	public DFSImpl(String volName, boolean format, boolean compressed) {
+		super(volName, format);
+		_compressed = compressed;
+	}
+
 	@Override
 	public void init() {
 		if (_cache == null) {
 			try {
-				_cache = new DBufferCache(Constants.NUM_OF_CACHE_BLOCKS, new VirtualDisk(super._volName, super._format));
+				IVirtualDisk disk = _compressed ? new CompressedDisk(super._volName, super._format)
+						: new VirtualDisk(super._volName, super._format);
+				_cache = new DBufferCache(Constants.NUM_OF_CACHE_BLOCKS, disk);
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
@@ -89,410 +192,2496 @@ public class DFSImpl extends DFS {
 			}
 		}
 
-		// Scan Inode Region for files and check file consistency
-		for (int i = 1; i <= Constants.INODE_REGION_SIZE; i++) {
-			DBuffer dbuffer = _cache.getBlock(i);
-			if (!dbuffer.checkValid()) {
-				dbuffer.startFetch();
-				dbuffer.waitValid();
+		// Replay the journal before the inode region is scanned, it may hold newer inodes
+		boolean recovered = _journal.recover();
+
+		_names.load();
+		_refs.load();
+
+		// Fetch the blocks of the inode table a window at a time and scan them for files
+		List<Integer> inodeBlocks = _inodes.load();
+		int slot = 0;
+		for (int from = 0; from < inodeBlocks.size(); from += PREFETCH_WINDOW) {
+			int to = Math.min(inodeBlocks.size(), from + PREFETCH_WINDOW);
+			for (DBuffer dbuffer : prefetchBlocks(inodeBlocks.subList(from, to))) {
+				if (dbuffer != null) {
+					dbuffer.waitValid();
+					readInodes(dbuffer, slot);
+					_cache.releaseBlock(dbuffer);
+				}
+				slot += Constants.INODES_IN_BLOCK;
 			}
-			readInodes(dbuffer);
 		}
 
-		checkFileConsistency();
+		// Without a journal the used blocks are only known from a scan
+		if (!recovered)
+			checkFileConsistency();
+		_journal.checkpoint();
+		_journal.start();
+	}
+
+	/**
+	 * Starts checking the volume in the background while it is in use. Any
+	 * scrubber already running is stopped first, and the scrubber is stopped
+	 * by unmount
+	 * 
+	 * @param listener
+	 *            receives the problems found, may be null
+	 * @param blocksPerSecond
+	 *            the most blocks the scrubber reads per second, 0 for no limit
+	 * @return the scrubber, which holds the counts of what it has checked
+	 */
+	public synchronized Scrubber startScrubber(Scrubber.Listener listener, int blocksPerSecond) {
+		if (_cache == null)
+			throw new IllegalStateException("The DFS must be initialized before it is scrubbed");
+		if (_scrubber != null)
+			_scrubber.stop();
+		_scrubber = new Scrubber(this, listener, blocksPerSecond);
+		_scrubber.start();
+		return _scrubber;
+	}
+
+	/**
+	 * Starts moving the data blocks of fragmented files into contiguous runs
+	 * in the background while the volume is in use. Any defragmenter already
+	 * running is stopped first, and the defragmenter is stopped by unmount
+	 * 
+	 * @param blocksPerSecond
+	 *            the most blocks the defragmenter reads and moves per
+	 *            second, 0 for no limit
+	 * @return the defragmenter, which holds the counts of what it has moved
+	 *         and the fragmentation of the volume before and after its last
+	 *         pass
+	 */
+	public synchronized Defragmenter startDefragmenter(int blocksPerSecond) {
+		if (_cache == null)
+			throw new IllegalStateException("The DFS must be initialized before it is defragmented");
+		if (_defragmenter != null)
+			_defragmenter.stop();
+		_defragmenter = new Defragmenter(this, blocksPerSecond);
+		_defragmenter.start();
+		return _defragmenter;
+	}
+
+	/**
+	 * Turns deduplication on or off. While it is on, every data block written
+	 * is looked up by its content at the next sync or unmount: a block
+	 * holding only zeros becomes a hole, and a block holding the same bytes
+	 * as a block already kept is mapped to that block, shared as a clone
+	 * shares it, and freed. Writing to a deduplicated block copies it first
+	 */
+	public void setDeduplication(boolean enabled) {
+		_dedup.setEnabled(enabled);
+	}
 
+	@Override
+	public void unmount() {
+		synchronized (this) {
+			if (_scrubber != null)
+				_scrubber.stop();
+			if (_defragmenter != null)
+				_defragmenter.stop();
+		}
+		// Let the asynchronous requests already submitted finish first
+		_asyncExecutor.shutdown();
+		try {
+			_asyncExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		deduplicate();
+		_journal.close();
+		_cache.terminate();
 	}
 
 	@Override
 	public DFileID createDFile() {
-		synchronized (_fileMap) {
-			for (int i = 1; i <= Constants.MAX_DFILES; i++) {
-				if (_fileMap.containsKey(i)) {
-					continue;
-				}
-				_fileMap.put(i, writeInode(new DFile(i)));
-				return new DFileID(i);
-			}
+		DFSEvents.Create event = new DFSEvents.Create();
+		event.begin();
+		DFileID dFID = createFile();
+		event.created(dFID, dFID == null ? 0 : 1);
+		return dFID;
+	}
+
+	private DFileID createFile() {
+		int fileID = _files.allocateId();
+		if (fileID == -1)
+			return null;
+		DFile file = newDFile(fileID);
+		if (file == null) {
+			_files.releaseId(fileID);
+			throw new IllegalStateException("File could not be written. Exceeded Inode Space");
 		}
-		return null;
+		Journal.Transaction tx = _journal.begin();
+		try {
+			writeINodeRecord(tx, file);
+		} finally {
+			_journal.commit(tx);
+		}
+		_files.put(file);
+		return new DFileID(fileID);
 	}
 
 	@Override
-	public void destroyDFile(DFileID dFID) {
-		synchronized (_fileMap) {
-			DFile file = _fileMap.get(dFID.getDFileID());
+	public List<DFileID> createDFiles(int count) {
+		DFSEvents.Create event = new DFSEvents.Create();
+		event.begin();
+		List<DFileID> list = createFiles(count);
+		event.created(list.isEmpty() ? null : list.get(0), list.size());
+		return list;
+	}
+
+	private List<DFileID> createFiles(int count) {
+		List<DFile> files = new ArrayList<>();
+		while (files.size() < count) {
+			int fileID = _files.allocateId();
+			if (fileID == -1)
+				break;
+			DFile file = newDFile(fileID);
 			if (file == null) {
-				System.out.println("The Dfile was not found!");
-				return;
+				_files.releaseId(fileID);
+				break;
 			}
-			// lock file writer, avoid readers from reading this file
-			file.getLock().writeLock().lock();
-			DBuffer dbuffer = _cache.getBlock(file.getINodeBlock());
-			if (!dbuffer.checkValid()) {
-				dbuffer.startFetch();
-				dbuffer.waitValid();
-			}
-			int position = file.getINodePosition();
-			byte[] buffer = new byte[Constants.INODE_SIZE];
-			dbuffer.write(buffer, position, position + Constants.INODE_SIZE);
-			dbuffer.startPush();
-			if (file.getIndirectBlocks() != null && !file.getIndirectBlocks().isEmpty()) {
-				for (int indBlocks : file.getIndirectBlocks()) {
-					_cache.newFreeBlock(indBlocks);
-				}
+			files.add(file);
+		}
+		List<DFileID> list = new ArrayList<>();
+		for (int first = 0; first < files.size(); first += INODE_STEP) {
+			List<DFile> step = files.subList(first, Math.min(files.size(), first + INODE_STEP));
+			Journal.Transaction tx = _journal.begin();
+			try {
+				writeINodeRecords(tx, step, false);
+			} finally {
+				_journal.commit(tx);
 			}
-			List<Integer> mappedBlocks = getMappedBlockIDs(file);
-			if (mappedBlocks != null && !mappedBlocks.isEmpty()) {
-				for (Integer dataBlocks : getMappedBlockIDs(file)) {
-					_cache.newFreeBlock(dataBlocks);
-				}
+			for (DFile file : step) {
+				_files.put(file);
+				list.add(new DFileID(file.getFileId()));
 			}
-			_fileMap.remove(file.getFileId());
 		}
+		return list;
 	}
 
-	@Override
-	public int read(DFileID dFID, byte[] buffer, int startOffset, int count) {
-	    System.out.println("Reading...");
-		DFile file = _fileMap.get(dFID.getDFileID());
-		if (file == null) {
-			System.out.println("Error: bad file request");
-			return Constants.DBUFFER_ERROR;
+	/**
+	 * Makes an empty inline file with a free slot of the inode table, growing
+	 * the table if the slot lies past its end. Must be called with no
+	 * transaction open
+	 * 
+	 * @return the file, or null if the inode table is full
+	 */
+	private DFile newDFile(int fileID) {
+		int slot = _inodes.allocate();
+		if (slot == -1)
+			return null;
+		int block;
+		try {
+			block = _inodes.getBlock(slot);
+		} catch (IllegalStateException e) {
+			_inodes.release(slot);
+			return null;
 		}
-		file.getLock().readLock().lock();
-		List<Integer> blockIDs = getMappedBlockIDs(file);
-		System.out.println("Size of block ids is "+blockIDs.size()+"with numbers\n"+blockIDs.toString());
-		int size = blockIDs.size();
-		int start = startOffset;
-		int howMany = count;
-		if (file.getSize() < count)
-			howMany = file.getSize();
-
-		for (int i = 0; i < size; i++) {
-			DBuffer dbuffer = _cache.getBlock(blockIDs.get(i));
+		DFile file = new DFile(fileID, 0, block, slot);
+		file.setInline(true);
+		return file;
+	}
 
-			if (!dbuffer.checkValid()) {
-				dbuffer.startFetch();
-				dbuffer.waitValid();
-			}
-	
-			int read = dbuffer.read(buffer, start, howMany);
-			howMany -= read;
-			start += read;
-		}
-		file.getLock().readLock().unlock();
-		return count;
+	@Override
+	public void destroyDFile(DFileID dFID) {
+		destroyDFiles(Collections.singletonList(dFID));
 	}
 
 	@Override
-	public int write(DFileID dFID, byte[] buffer, int startOffset, int count) {
-		DFile file = _fileMap.get(dFID.getDFileID());
-		if (file == null) {
-			System.out.println("Error: bad file request");
-			return Constants.DBUFFER_ERROR;
-		}
-		file.getLock().writeLock().lock();
+	public DFileID createDFile(String name) {
+		DFSEvents.Create event = new DFSEvents.Create();
+		event.begin();
+		DFileID dFID = createFile(name);
+		event.created(dFID, dFID == null ? 0 : 1);
+		return dFID;
+	}
 
-		List<Integer> blockIDs = getMappedBlockIDs(file);
-		int deltaBlocks = file.deltaBlocks(count + startOffset);
-		System.out.println("Delta blocks is "+deltaBlocks);
-		if (deltaBlocks < 0) {
-			deltaBlocks *= -1;
-			for (int i = blockIDs.size(); i > blockIDs.size() - deltaBlocks; i--) {
-				_cache.newFreeBlock(blockIDs.get(i - 1));
+	private DFileID createFile(String name) {
+		byte[] key = NameIndex.key(name);
+		if (key == null)
+			return null;
+		_names.getLock().writeLock().lock();
+		try {
+			if (_names.lookup(key) != 0)
+				return null;
+			int fileID = _files.allocateId();
+			if (fileID == -1)
+				return null;
+			DFile file = newDFile(fileID);
+			if (file == null) {
+				_files.releaseId(fileID);
+				throw new IllegalStateException("File could not be written. Exceeded Inode Space");
 			}
-		} else {
-			// Adding blocks
-			int intialSize = blockIDs.size();
-			for (int i = intialSize; i < intialSize + deltaBlocks; i++) {
-				if (_cache.numOfFreeBlocks() > 0) {
-					int newBlock = _cache.getNextFreeBlock();
-					_cache.newUsedBlock(newBlock);
-					blockIDs.add(newBlock);
-				}
+			file.setNamed(true);
+			// The inode and the name go in the same record, neither is ever seen without the other
+			Journal.Transaction tx = _journal.begin();
+			try {
+				writeINodeRecord(tx, file);
+				_names.insert(tx, key, fileID);
+			} finally {
+				_journal.commit(tx);
 			}
+			_files.put(file);
+			return new DFileID(fileID);
+		} finally {
+			_names.getLock().writeLock().unlock();
 		}
-		System.out.println("Size of block ids is "+blockIDs.size()+"with numbers\n"+blockIDs.toString());
+	}
 
-		file.setSize(count);
-		List<DBuffer> indirect = new ArrayList<>();
-		if (!file.isMapped()) {
-			for (int i = 0; i < file.getNumIndirectBlocks(); i++) {
-				int newBlock = _cache.getNextFreeBlock();
-				_cache.newUsedBlock(newBlock);
-				DBuffer dbuffer = _cache.getBlock(newBlock);
-				System.out.println("Got indirect id "+newBlock);
-				indirect.add(dbuffer);
-				if (!dbuffer.checkValid()) {
-					dbuffer.startFetch();
-					dbuffer.waitValid();
-				}
-			}
-		} else {
-			while (file.getIndirectBlocks().size() < file.getNumIndirectBlocks()) {
-				int newBlock = _cache.getNextFreeBlock();
-				DBuffer dbuffer = _cache.getBlock(newBlock);
-				indirect.add(dbuffer);
-				if (!dbuffer.checkValid()) {
-					dbuffer.startFetch();
-					dbuffer.waitValid();
-				}
-			}
-			for (Integer i : file.getIndirectBlocks()) {
-				DBuffer dbuffer = _cache.getBlock(i);
-				indirect.add(dbuffer);
-				if (!dbuffer.checkValid()) {
-					dbuffer.startFetch();
-					dbuffer.waitValid();
-				}
-			}
-		}
-		file.mapFile(indirect, blockIDs);
-		
-		DBuffer dbuffer = _cache.getBlock(file.getINodeBlock());
-                if (!dbuffer.checkValid()) {
-                        dbuffer.startFetch();
-                        dbuffer.waitValid();
-                }
-		byte[] metadata = file.getINodeMetadata();
-		byte[] blockData = dbuffer.getBuffer();
-		for(int z=0; z<metadata.length; z++) {
-                    blockData[file.getINodePosition() + z]=metadata[z];
-                }
-		dbuffer.write(blockData, 0, Constants.BLOCK_SIZE);
-
-		blockIDs = getMappedBlockIDs(file);
-		System.out.println("New mapped block IDs has size "+blockIDs.size()+" and ids:\n"+blockIDs.toString());
-		int startBlock = (int) Math.floor((double) startOffset / (double) Constants.BLOCK_SIZE);
-		int start = startOffset;
-		int howMany = count;
-		int written = 0;
-		// Actually write now
-		for (int i = startBlock; i < blockIDs.size(); i++) {
-			System.out.println("Requesting direct block "+blockIDs.get(i));
-			DBuffer d = _cache.getBlock(blockIDs.get(i));
-			if (!d.checkValid()) {
-				d.startFetch();
-				d.waitValid();
-			}
-
-			written = d.write(buffer, start, howMany);
-			howMany -= written;
-			start += written;
-		}
-		System.out.println("Written bytes "+(start-startOffset));
-		file = writeInode(file);
-		_fileMap.put(file.getFileId(), file);
-		file.getLock().writeLock().unlock();
-		return count;
+	@Override
+	public DFileID lookupDFile(String name) {
+		byte[] key = NameIndex.key(name);
+		if (key == null)
+			return null;
+		int fileID = _names.lookup(key);
+		return fileID == 0 ? null : new DFileID(fileID);
 	}
 
 	@Override
-	public int sizeDFile(DFileID dFID) {
-		synchronized (_fileMap) {
-			DFile file = _fileMap.get(dFID.getDFileID());
-			return file.getSize();
+	public void destroyDFile(String name) {
+		byte[] key = NameIndex.key(name);
+		int fileID = key == null ? 0 : _names.lookup(key);
+		if (fileID == 0) {
+			System.out.println("The Dfile was not found!");
+			return;
 		}
+		destroyDFiles(Collections.singletonList(new DFileID(fileID)), key);
 	}
 
 	@Override
-	public List<DFileID> listAllDFiles() {
-		List<DFileID> list = new ArrayList<>();
-		synchronized (_fileMap) {
-			if (_fileMap.keySet().isEmpty())
-				return list;
-			for (int file : _fileMap.keySet()) {
-				list.add(new DFileID(file));
-			}
+	public Map<String, DFileID> listDFiles(String prefix, String after, int limit) {
+		byte[] from = prefix == null ? new byte[0] : prefix.getBytes(StandardCharsets.UTF_8);
+		byte[] last = after == null ? null : after.getBytes(StandardCharsets.UTF_8);
+		Map<String, DFileID> list = new LinkedHashMap<>();
+		for (Map.Entry<String, Integer> entry : _names.scan(from, last, limit).entrySet()) {
+			list.put(entry.getKey(), new DFileID(entry.getValue()));
 		}
 		return list;
 	}
 
+	/**
+	 * The clone maps the blocks of the file through the same indirect blocks,
+	 * and only the blocks the inode points to are counted as shared, so a
+	 * clone logs an inode and a few counts however large the file is. Both
+	 * files are flagged as sharing blocks from then on, and copy a shared
+	 * block before they change it
+	 */
 	@Override
-	public void sync() {
-		_cache.sync();
-		System.out.println("Sync completed");
+	public DFileID cloneDFile(DFileID dFID) {
+		DFile file = _files.get(dFID.getDFileID());
+		if (file == null)
+			return null;
+		// Wait for the writes in flight, the clone holds each of them whole or not at all
+		RangeLock.Range range = lockRange(file, 0, Constants.MAX_FILE_SIZE, false);
+		try {
+			if (!lockFile(file, true))
+				return null;
+			try {
+				return cloneDFile(file);
+			} finally {
+				file.getLock().writeLock().unlock();
+			}
+		} finally {
+			file.getRangeLock().unlock(range);
+		}
 	}
 
 	/**
-	 * Maps the blocks from a file
-	 * 
-	 * @param file
-	 *            the file to have its blocks mapped
-	 * @return list with indexes of blocks with data
+	 * Clones a file locked exclusive
 	 */
-	private List<Integer> getMappedBlockIDs(DFile file) {
-		List<Integer> blockIDs = new ArrayList<>();
-		if (!file.isMapped())
-			return blockIDs;
-		List<Integer> indirectBlocks = file.getIndirectBlocks();
-		for (int i : indirectBlocks) {
-			DBuffer dbuffer = _cache.getBlock(i);
-			if (!dbuffer.checkValid()) {
-				dbuffer.startFetch();
-				dbuffer.waitValid();
+	private DFileID cloneDFile(DFile file) {
+		int fileID = _files.allocateId();
+		if (fileID == -1)
+			return null;
+		DFile clone = newDFile(fileID);
+		if (clone == null) {
+			_files.releaseId(fileID);
+			return null;
+		}
+		boolean cloned = false;
+		Journal.Transaction tx = _journal.begin();
+		try {
+			if (file.isInline()) {
+				ByteBuffer data = ByteBuffer.allocate(file.getSize());
+				file.readInline(0, data, file.getSize());
+				data.flip();
+				clone.writeInline(0, data, file.getSize());
+				clone.setSize(file.getSize());
+				writeINodeRecord(tx, clone);
+				cloned = true;
+			} else {
+				cloned = shareBlocks(tx, file, clone);
 			}
-			byte[] bytes = dbuffer.getBuffer();
-			try {
-				ByteArrayInputStream bos = new ByteArrayInputStream(bytes);
-				DataInputStream dos = new DataInputStream(bos);
-				while (dos.available() >= Constants.BYTES_PER_INT) {
-					int j = 0;
-					if ((j = dos.readInt()) != 0) {
-						blockIDs.add(j);
-					}
-				}
-				dos.close();
-				// Create a new byte array of the correct size
-			} catch (IOException e) {
-				e.printStackTrace();
+		} finally {
+			_journal.commit(tx);
+			if (!cloned) {
+				_inodes.release(clone.getINodeSlot());
+				_files.releaseId(fileID);
 			}
 		}
-		return blockIDs;
+		if (!cloned)
+			return null;
+		_files.put(clone);
+		return new DFileID(fileID);
 	}
 
 	/**
-	 * Reads the Inodes from a DBuffer from the Inode region during
-	 * initialization.
+	 * Maps in clone the blocks of file, counting the blocks its inode points
+	 * to as shared by one more file
 	 * 
-	 * @param buf
+	 * @return false if one of those blocks is already shared by as many files
+	 *         as its count allows, nothing is changed then
 	 */
-	private void readInodes(DBuffer buf) {
-		for (int i = 0; i < Constants.INODES_IN_BLOCK; i++) {
-			byte[] buffer = new byte[Constants.INODE_SIZE];
-			byte[] integer = new byte[4];
-			if (buf.read(buffer, i * Constants.INODE_SIZE, (i+1)*Constants.INODE_SIZE) == -1)
+	private boolean shareBlocks(Journal.Transaction tx, DFile file, DFile clone) {
+		_refs.hold(tx);
+		List<Integer> indirectBlocks = file.getIndirectBlocks();
+		List<Integer> top = new ArrayList<>(
+				indirectBlocks.subList(0, Math.min(indirectBlocks.size(), Constants.INODE_INDIRECT_SLOTS)));
+		top.add(file.getDoubleIndirectBlock());
+		top.add(file.getTripleIndirectBlock());
+		for (int blockID : top) {
+			if (blockID != 0 && !_refs.canShare(blockID))
+				return false;
+		}
+		for (int blockID : top) {
+			if (blockID != 0)
+				_refs.share(tx, blockID);
+		}
+		clone.setInline(false);
+		clone.setIndirectBlocks(new ArrayList<>(indirectBlocks));
+		clone.setDoubleIndirectBlock(file.getDoubleIndirectBlock());
+		clone.setTripleIndirectBlock(file.getTripleIndirectBlock());
+		clone.getTripleChildren().addAll(file.getTripleChildren());
+		clone.setSize(file.getSize());
+		clone.setMapped();
+		clone.setShared(true);
+		writeINodeRecord(tx, clone);
+		if (!file.isShared()) {
+			file.setShared(true);
+			writeINodeRecord(tx, file);
+		}
+		return true;
+	}
+
+	@Override
+	public void destroyDFiles(Collection<DFileID> dFIDs) {
+		destroyDFiles(dFIDs, null);
+	}
+
+	/**
+	 * @param key
+	 *            the name the only file of dFIDs was looked up by, or null.
+	 *            The name of a named file destroyed by id is searched for in
+	 *            the whole name index
+	 */
+	private void destroyDFiles(Collection<DFileID> dFIDs, byte[] key) {
+		DFSEvents.Destroy event = new DFSEvents.Destroy();
+		event.begin();
+		long bytes = 0;
+		// Lock the files in order of id, so two batches never wait on each other
+		TreeSet<Integer> ids = new TreeSet<>();
+		for (DFileID dFID : dFIDs) {
+			ids.add(dFID.getDFileID());
+		}
+		List<DFile> files = new ArrayList<>();
+		for (int fileID : ids) {
+			// lock file writer, avoid readers from reading this file
+			DFile file = lockFile(new DFileID(fileID), true);
+			if (file == null) {
+				System.out.println("The Dfile was not found!");
 				continue;
-			else {
-				integer = Arrays.copyOfRange(buffer, Constants.BYTES_PER_INT * Constants.INODE_FID,
-						Constants.BYTES_PER_INT * (Constants.INODE_FID + 1));
-				int fileId = ByteBuffer.wrap(integer).getInt();
-				if (fileId == 0) {
-					continue;
-				}
+			}
+			bytes += file.getSize();
+			// Shared blocks pointing to indirect blocks go first, each at once
+			boolean dropped = file.isShared();
+			while (dropped)
+				dropped = dropSharedPointers(file, 0);
+			// Cut a large file down first, so the blocks freed below fit in one transaction
+			if (blocksFor(file.getSize()) > RESIZE_STEP)
+				resizeFile(file, RESIZE_STEP * Constants.BLOCK_SIZE);
+			files.add(file);
+		}
 
-				if (fileId < 1 || fileId > 512) {
-					throw new IllegalStateException("Invalid DFileId value of: " + fileId);
-				}
-				integer = Arrays.copyOfRange(buffer, Constants.BYTES_PER_INT * Constants.INODE_FILE_SIZE,
-						Constants.BYTES_PER_INT * (Constants.INODE_FILE_SIZE + 1));
-				int fileSize = ByteBuffer.wrap(integer).getInt();
-				List<Integer> indirectBlocks = new ArrayList<>();
-				for (int j = Constants.POSITION_INDIRECT_BLOCK_REGION; j < 4; j++) {
-					integer = Arrays
-							.copyOfRange(buffer, Constants.BYTES_PER_INT * j, Constants.BYTES_PER_INT * (j + 1));
-					int indBlock = ByteBuffer.wrap(integer).getInt();
-					if (indBlock > 0) {
-						indirectBlocks.add(indBlock);
-					}
-				}
-				if (fileSize > Constants.MAX_FILE_SIZE) {
-					throw new IllegalStateException("Invalid File Size");
-				}
-				DFile file = new DFile(fileId, fileSize, buf.getBlockID(), i);
-				file.setIndirectBlocks(indirectBlocks);
-				file.setMapped();
-				if (_fileMap.containsKey(fileId)) {
-					throw new IllegalStateException("One Inode should only map to one file");
+		// The index is locked after the files
+		Set<Integer> named = new HashSet<>();
+		for (DFile file : files) {
+			if (file.isNamed())
+				named.add(file.getFileId());
+		}
+		if (!named.isEmpty())
+			removeNames(named, key);
+
+		// As many files go in a transaction as it takes to free RESIZE_STEP blocks
+		int next = 0;
+		while (next < files.size()) {
+			int first = next;
+			int freed = 0;
+			Journal.Transaction tx = _journal.begin();
+			try {
+				while (next < files.size() && (next == first || freed < RESIZE_STEP && next - first < INODE_STEP)) {
+					freed += freeBlocks(tx, files.get(next++));
 				}
-				_fileMap.put(fileId, file);
+				writeINodeRecords(tx, files.subList(first, next), true);
+			} finally {
+				_journal.commit(tx);
 			}
 		}
+		boolean pastRegion = false;
+		for (DFile file : files) {
+			_files.remove(file.getFileId());
+			_inodes.release(file.getINodeSlot());
+			pastRegion |= file.getINodeSlot() >= Constants.INODE_REGION_DFILES;
+			file.getLock().writeLock().unlock();
+		}
+		// Files destroyed past the fixed region may leave blocks at the end of the table empty
+		if (pastRegion)
+			_inodes.shrink();
+		event.destroyed(files.isEmpty() ? -1 : files.get(0).getFileId(), files.size(), bytes);
 	}
 
 	/**
-	 * Checks consistency of a DFile. Finds the used blocks.
-	 * 
-	 * @param file
+	 * Removes the names of files being destroyed, before their inodes are
+	 * cleared: a crash in between leaves files without a name, never a name
+	 * without its file. A single file looked up by key is found with one walk
+	 * down the tree, any other by a walk of all the leaves
 	 */
-	private void checkFileConsistency() {
-		synchronized (_fileMap) {
-			byte[] buffer = new byte[Constants.BLOCK_SIZE];
-			byte[] integer = new byte[4];
-
-			if (_fileMap.isEmpty())
-				return;
-			for (DFile file : _fileMap.values()) {
-				file.getLock().readLock().lock();
-				for (int i : file.getIndirectBlocks()) {
-				    System.out.println("File has indirect "+i);
-					DBuffer indirectBlock = _cache.getBlock(i);
-					if (!indirectBlock.checkValid()) {
-						indirectBlock.startFetch();
-						indirectBlock.waitValid();
-					}
-					if (i > Constants.NUM_OF_BLOCKS || i < Constants.INODE_REGION_SIZE)
-						throw new IllegalStateException("Invalid block index.");
-					indirectBlock.read(buffer, 0, Constants.BLOCK_SIZE);
-//					if (_cache.containsUsedBlock(i)) {
-//						throw new IllegalStateException("One block should only be mapped by one file.");
-//					}
-					// read datablocks
-					List<Integer> dataBlocks = new ArrayList<>();
-					for (int j = 0; j < Constants.INTS_IN_BLOCK; j++) {
-						integer = Arrays.copyOfRange(buffer, Constants.BYTES_PER_INT * j, Constants.BYTES_PER_INT
-								* (j + 1));
-						int dataBlockId = ByteBuffer.wrap(integer).getInt();
-						if (dataBlockId == 0)
-							continue;
-						if (dataBlockId > Constants.NUM_OF_BLOCKS || dataBlockId < Constants.INODE_REGION_SIZE)
-							throw new IllegalStateException("Invalid block index.");
-						if (_cache.containsUsedBlock(dataBlockId)) {
-							throw new IllegalStateException("One block should only be mapped by one file.");
-						}
-						_cache.newUsedBlock(dataBlockId);
-						dataBlocks.add(dataBlockId);
-					}
-
+	private void removeNames(Set<Integer> named, byte[] key) {
+		_names.getLock().writeLock().lock();
+		try {
+			if (key != null && named.size() == 1 && named.contains(_names.lookup(key))) {
+				Journal.Transaction tx = _journal.begin();
+				try {
+					_names.remove(tx, key);
+				} finally {
+					_journal.commit(tx);
 				}
-				file.getLock().readLock().unlock();
+			} else {
+				_names.removeFiles(named);
 			}
+		} finally {
+			_names.getLock().writeLock().unlock();
+		}
+	}
 
+	/**
+	 * Frees every block mapped by a file being destroyed
+	 * 
+	 * @return the number of blocks freed
+	 */
+	private int freeBlocks(Journal.Transaction tx, DFile file) {
+		if (file.isShared()) {
+			int mapped = file.isInline() ? 0 : blocksFor(file.getSize());
+			shrinkSharedFile(tx, file, mapped, mapped);
+			return mapped;
+		}
+		int freed = 0;
+		for (Integer dataBlocks : getMappedBlockIDs(file)) {
+			if (dataBlocks != 0) {
+				tx.free(dataBlocks);
+				freed++;
+			}
 		}
+		for (int indBlocks : file.getIndirectBlocks()) {
+			if (indBlocks != 0) {
+				tx.free(indBlocks);
+				freed++;
+			}
+		}
+		for (int pointerBlock : file.getPointerBlocks()) {
+			tx.free(pointerBlock);
+			freed++;
+		}
+		return freed;
 	}
 
-	private DFile writeInode(DFile file) {
+	@Override
+	public int read(DFileID dFID, byte[] buffer, int startOffset, int count) {
+		DFSEvents.Read event = new DFSEvents.Read();
+		event.begin();
+		int read = readFile(dFID, buffer, startOffset, count);
+		event.transferred(dFID, 0, read);
+		return read;
+	}
 
-		for (int i = 1; i <= Constants.INODE_REGION_SIZE; i++) {
-			DBuffer dbuffer = _cache.getBlock(i);
-			if (!dbuffer.checkValid()) {
-				dbuffer.startFetch();
-				dbuffer.waitValid();
-			}
-			byte[] block = new byte[Constants.BLOCK_SIZE];
-			dbuffer.read(block, 0, Constants.BLOCK_SIZE);
-			byte[] integer = new byte[Constants.BYTES_PER_INT];
-			
-			for (int j = 0; j < Constants.INODES_IN_BLOCK; j++) {
-                            int position = j * Constants.INODE_SIZE;
-                            integer = Arrays.copyOfRange(block, position, position + Constants.BYTES_PER_INT);
-                            
-                            int dfileId = ByteBuffer.wrap(integer).getInt();
-                            if (dfileId == file.getFileId()) {
-                                byte[] metadata = Arrays.copyOfRange(block, j * Constants.INODE_SIZE, (j + 1) * Constants.INODE_SIZE);
-                                file.setMetadata(metadata);
-                                    file.setINodeBlock(i);
-                                    file.setINodePosition(j);
-                                    return file;
-                            }
-                    }
-			
-			for (int j = 0; j < Constants.INODES_IN_BLOCK; j++) {
-				int position = j * Constants.INODE_SIZE;
-				integer = Arrays.copyOfRange(block, position, position + Constants.BYTES_PER_INT);	
-				int dfileId = ByteBuffer.wrap(integer).getInt();
-				if (dfileId == 0) {
-				    byte[] size = ByteBuffer.allocate(4).putInt(file.getFileId()).array();
-				    for(int z=0; z<4; z++) {
-				        block[j * Constants.INODE_SIZE+z]=size[z];
-				    }
-					dbuffer.write(block, 0, Constants.BLOCK_SIZE);
-					file.setINodeBlock(i);
-					file.setINodePosition(j);
-					return file;
-				}
+	private int readFile(DFileID dFID, byte[] buffer, int startOffset, int count) {
+		DFile file = _files.get(dFID.getDFileID());
+		if (file == null) {
+			System.out.println("Error: bad file request");
+			return Constants.DBUFFER_ERROR;
+		}
+		RangeLock.Range range = lockRange(file, 0, count, false);
+		try {
+			if (!lockFile(file, false)) {
+				System.out.println("Error: bad file request");
+				return Constants.DBUFFER_ERROR;
 			}
+			return read(file, buffer, startOffset, count);
+		} finally {
+			file.getRangeLock().unlock(range);
+		}
+	}
+
+	/**
+	 * Body of read(DFileID, byte[], int, int), called with the file locked.
+	 * Releases the lock of the file
+	 */
+	private int read(DFile file, byte[] buffer, int startOffset, int count) {
+		int howMany = count;
+		if (file.getSize() < count)
+			howMany = file.getSize();
+		readBlocks(file, 0, new ByteBuffer[] { ByteBuffer.wrap(buffer, startOffset, howMany) }, howMany);
+		file.getLock().readLock().unlock();
+		return count;
+	}
+
+	@Override
+	public int write(DFileID dFID, byte[] buffer, int startOffset, int count) {
+		DFSEvents.Write event = new DFSEvents.Write();
+		event.begin();
+		int written = writeFile(dFID, buffer, startOffset, count);
+		event.transferred(dFID, 0, written);
+		return written;
+	}
+
+	private int writeFile(DFileID dFID, byte[] buffer, int startOffset, int count) {
+		DFile file = lockFile(dFID, true);
+		if (file == null) {
+			System.out.println("Error: bad file request");
+			return Constants.DBUFFER_ERROR;
 		}
-		throw new IllegalStateException("File could not be written. Exceeded Inode Space");
+
+		count = resizeFile(file, count);
+		if (!file.isInline())
+			count = allocateRange(file, 0, count);
+		count = writeBlocks(file, 0, new ByteBuffer[] { ByteBuffer.wrap(buffer, startOffset, count) }, count);
+		file.getLock().writeLock().unlock();
+		return count;
+	}
+
+	@Override
+	public int read(DFileID dFID, long pos, ByteBuffer[] dsts) {
+		DFSEvents.Read event = new DFSEvents.Read();
+		event.begin();
+		int read = readFile(dFID, pos, dsts);
+		event.transferred(dFID, pos, read);
+		return read;
+	}
+
+	private int readFile(DFileID dFID, long pos, ByteBuffer[] dsts) {
+		if (pos < 0)
+			return Constants.DBUFFER_ERROR;
+		DFile file = _files.get(dFID.getDFileID());
+		if (file == null)
+			return Constants.DBUFFER_ERROR;
+		if (file.isInline()) {
+			int read = readOptimistic(file, pos, dsts);
+			if (read == RETRY)
+				read = readInline(file, pos, dsts);
+			if (read != RETRY)
+				return read;
+		}
+		RangeLock.Range range = lockRange(file, pos, remaining(dsts), false);
+		try {
+			if (!lockFile(file, false))
+				return Constants.DBUFFER_ERROR;
+			try {
+				if (pos >= file.getSize())
+					return 0;
+				int count = (int) Math.min(remaining(dsts), file.getSize() - pos);
+				return readBlocks(file, (int) pos, dsts, count);
+			} finally {
+				file.getLock().readLock().unlock();
+			}
+		} finally {
+			file.getRangeLock().unlock(range);
+		}
+	}
+
+	/**
+	 * Reads an inline file holding its lock shared only. Its data is part of
+	 * its metadata and written holding the lock exclusive, so no range lock is
+	 * needed
+	 * 
+	 * @return the number of bytes read, or RETRY if the file is no longer
+	 *         inline
+	 */
+	private int readInline(DFile file, long pos, ByteBuffer[] dsts) {
+		if (!lockFile(file, false))
+			return Constants.DBUFFER_ERROR;
+		try {
+			if (!file.isInline())
+				return RETRY;
+			if (pos >= file.getSize())
+				return 0;
+			return readBlocks(file, (int) pos, dsts, (int) Math.min(remaining(dsts), file.getSize() - pos));
+		} finally {
+			file.getLock().readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads an inline file with no lock held. Its data is part of its
+	 * metadata, so any write that raced with the copy took the file lock
+	 * exclusive and the stamp tells: the positions of dsts are then put back
+	 * and the read must be done again holding the locks. The bytes are copied
+	 * straight out of the inode, bounded by the inline area, so a file
+	 * promoted to blocks meanwhile is never read through its block map
+	 * 
+	 * @return the number of bytes read, or RETRY
+	 */
+	private int readOptimistic(DFile file, long pos, ByteBuffer[] dsts) {
+		MetadataLock lock = file.getLock();
+		long stamp = lock.tryOptimisticRead();
+		if (stamp == 0)
+			return RETRY;
+		int[] positions = new int[dsts.length];
+		for (int i = 0; i < dsts.length; i++) {
+			positions[i] = dsts[i].position();
+		}
+		int size = file.getSize();
+		int read;
+		if (!file.isInline() || _files.get(file.getFileId()) != file || size > Constants.INODE_INLINE_SIZE)
+			read = RETRY;
+		else if (pos >= size)
+			read = 0;
+		else
+			read = copyInline(file, (int) pos, dsts, (int) Math.min(remaining(dsts), size - pos));
+		if (read != RETRY && lock.validate(stamp))
+			return read;
+		for (int i = 0; i < dsts.length; i++) {
+			dsts[i].position(positions[i]);
+		}
+		return RETRY;
+	}
+
+	/**
+	 * The blocks written are locked exclusive, and the data is copied holding
+	 * the lock of the file shared, so writers of disjoint ranges of a file go
+	 * on in parallel. Only a write that grows the file or fills some of its
+	 * holes takes the lock of the file exclusive, for as long as that change
+	 * takes
+	 */
+	@Override
+	public int write(DFileID dFID, long pos, ByteBuffer[] srcs) {
+		DFSEvents.Write event = new DFSEvents.Write();
+		event.begin();
+		int written = writeFile(dFID, pos, srcs);
+		event.transferred(dFID, pos, written);
+		return written;
+	}
+
+	private int writeFile(DFileID dFID, long pos, ByteBuffer[] srcs) {
+		if (pos < 0 || pos >= Constants.MAX_FILE_SIZE)
+			return Constants.DBUFFER_ERROR;
+		DFile file = _files.get(dFID.getDFileID());
+		if (file == null)
+			return Constants.DBUFFER_ERROR;
+		int count = (int) Math.min(remaining(srcs), Constants.MAX_FILE_SIZE - pos);
+		if (file.isInline() && pos + count <= Constants.INODE_INLINE_SIZE) {
+			int written = writeInline(file, (int) pos, srcs, count);
+			if (written != RETRY)
+				return written;
+		}
+		RangeLock.Range range = lockRange(file, pos, count, true);
+		try {
+			if (!lockFile(file, false))
+				return Constants.DBUFFER_ERROR;
+			// A file sharing some of the blocks it writes has to copy them first
+			if (!isAllocated(file, (int) pos, count)
+					|| file.isShared() && mapsSharedBlocks(file, (int) pos / Constants.BLOCK_SIZE, blocksFor((int) pos + count))) {
+				file.getLock().readLock().unlock();
+				if (!lockFile(file, true))
+					return Constants.DBUFFER_ERROR;
+				try {
+					count = prepareWrite(file, (int) pos, count);
+					// The data of an inline file is in its inode, it is written exclusive
+					if (file.isInline())
+						return writeBlocks(file, (int) pos, srcs, count);
+					file.getLock().readLock().lock();
+				} finally {
+					file.getLock().writeLock().unlock();
+				}
+			}
+			try {
+				return writeBlocks(file, (int) pos, srcs, count);
+			} finally {
+				file.getLock().readLock().unlock();
+			}
+		} finally {
+			file.getRangeLock().unlock(range);
+		}
+	}
+
+	/**
+	 * Writes a file that stays inline holding its lock exclusive only, which
+	 * keeps out every reader and writer of its data without a range lock
+	 * 
+	 * @return the number of bytes written, or RETRY if the file is no longer
+	 *         inline
+	 */
+	private int writeInline(DFile file, int pos, ByteBuffer[] srcs, int count) {
+		if (!lockFile(file, true))
+			return Constants.DBUFFER_ERROR;
+		try {
+			if (!file.isInline())
+				return RETRY;
+			return writeBlocks(file, pos, srcs, prepareWrite(file, pos, count));
+		} finally {
+			file.getLock().writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if any of the blocks first to last - 1 of a file, or a
+	 *         block on the way to them, is shared with another file or held by
+	 *         the index of deduplicated blocks, so that it must not be written
+	 *         in place. While the file is locked, no count of its blocks goes
+	 *         up but those of indexed blocks
+	 */
+	private boolean mapsSharedBlocks(DFile file, int first, int last) {
+		for (int index = first / Constants.INTS_IN_BLOCK; index * Constants.INTS_IN_BLOCK < last
+				&& index < file.getIndirectBlocks().size(); index++) {
+			if (isIndirectShared(file, index))
+				return true;
+			int indirectID = file.getIndirectBlocks().get(index);
+			if (indirectID == 0)
+				continue;
+			DBuffer indirect = getValidBlock(indirectID);
+			int base = index * Constants.INTS_IN_BLOCK;
+			boolean shared = false;
+			for (int slot = Math.max(first, base); slot < Math.min(last, base + Constants.INTS_IN_BLOCK)
+					&& !shared; slot++) {
+				int blockID = indirect.getInt(slot - base);
+				shared = blockID != 0 && _refs.count(blockID) > 0;
+			}
+			_cache.releaseBlock(indirect);
+			if (shared)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the index-th indirect block of a file, or a block
+	 *         pointing to it, is shared
+	 */
+	private boolean isIndirectShared(DFile file, int index) {
+		int i = index - Constants.INODE_INDIRECT_SLOTS;
+		if (i >= Constants.INTS_IN_BLOCK) {
+			i -= Constants.INTS_IN_BLOCK;
+			int triple = file.getTripleIndirectBlock();
+			List<Integer> children = file.getTripleChildren();
+			if (triple != 0 && _refs.count(triple) > 0 || i / Constants.INTS_IN_BLOCK < children.size()
+					&& _refs.count(children.get(i / Constants.INTS_IN_BLOCK)) > 0)
+				return true;
+		} else if (i >= 0) {
+			int doubleIndirect = file.getDoubleIndirectBlock();
+			if (doubleIndirect != 0 && _refs.count(doubleIndirect) > 0)
+				return true;
+		}
+		int blockID = file.getIndirectBlocks().get(index);
+		return blockID != 0 && _refs.count(blockID) > 0;
+	}
+
+	/**
+	 * @return true if count bytes from byte pos on lie within a file that is
+	 *         not inline and are all backed by blocks, so that writing them
+	 *         changes no metadata
+	 */
+	private boolean isAllocated(DFile file, int pos, int count) {
+		if (file.isInline() || pos + count > file.getSize())
+			return false;
+		return !getMappedBlockIDs(file, pos / Constants.BLOCK_SIZE, blocksFor(pos + count)).contains(0);
+	}
+
+	/**
+	 * Grows a file to hold count bytes from byte pos on and gives the holes
+	 * among them a block. Any gap between the old end and pos is left as a
+	 * hole. Called with the file locked exclusive
+	 * 
+	 * @return the number of bytes that can be written, fewer than count if
+	 *         the disk filled up
+	 */
+	private int prepareWrite(DFile file, int pos, int count) {
+		if (pos + count > file.getSize()) {
+			int newSize = resizeFile(file, pos + count);
+			// The disk may have filled up before the file reached its new size
+			count = Math.max(0, Math.min(count, newSize - pos));
+		}
+		if (file.isInline())
+			return count;
+		return allocateRange(file, pos, count);
+	}
+
+	/**
+	 * Gives the holes among count bytes of a file from byte pos on a block
+	 * 
+	 * @return the number of bytes from pos on that are backed by blocks
+	 */
+	private int allocateRange(DFile file, int pos, int count) {
+		if (count <= 0)
+			return 0;
+		int first = pos / Constants.BLOCK_SIZE;
+		int last = blocksFor(pos + count);
+		int allocated = allocateBlocks(file, first, last);
+		if (allocated < last - first)
+			count = Math.max(0, Math.min(count, (first + allocated) * Constants.BLOCK_SIZE - pos));
+		return count;
+	}
+
+	/**
+	 * Takes the range lock of the blocks of a file holding count bytes from
+	 * byte pos on
+	 */
+	private static RangeLock.Range lockRange(DFile file, long pos, long count, boolean exclusive) {
+		int first = (int) (Math.min(pos, Constants.MAX_FILE_SIZE) / Constants.BLOCK_SIZE);
+		int last = blocksFor((int) Math.min(pos + count, Constants.MAX_FILE_SIZE));
+		return file.getRangeLock().lock(first, Math.max(first, last), exclusive);
+	}
+
+	/**
+	 * Single buffer version of read(DFileID, long, ByteBuffer[])
+	 */
+	int read(DFileID dFID, long pos, ByteBuffer dst) {
+		return read(dFID, pos, new ByteBuffer[] { dst });
+	}
+
+	/**
+	 * Single buffer version of write(DFileID, long, ByteBuffer[])
+	 */
+	int write(DFileID dFID, long pos, ByteBuffer src) {
+		return write(dFID, pos, new ByteBuffer[] { src });
+	}
+
+	@Override
+	public int truncate(DFileID dFID, long newSize) {
+		if (newSize < 0 || newSize > Constants.MAX_FILE_SIZE)
+			return Constants.DBUFFER_ERROR;
+		DFile file = lockFile(dFID, true);
+		if (file == null)
+			return Constants.DBUFFER_ERROR;
+		try {
+			if (newSize == file.getSize())
+				return file.getSize();
+			return resizeFile(file, (int) newSize);
+		} finally {
+			file.getLock().writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Opens a channel over the file positioned at its start. The channel
+	 * keeps its own cursor, so several channels can be open on one file
+	 */
+	public DFileChannel openChannel(DFileID dFID) {
+		return new DFileChannel(this, dFID);
+	}
+
+	/**
+	 * Opens a stream that reads the file from its start
+	 */
+	public InputStream newInputStream(DFileID dFID) {
+		return Channels.newInputStream(openChannel(dFID));
+	}
+
+	/**
+	 * Opens a stream that writes the file from its start. If append is true
+	 * the stream writes after the current end of the file instead, otherwise
+	 * the file is emptied first
+	 */
+	public OutputStream newOutputStream(DFileID dFID, boolean append) {
+		DFileChannel channel = openChannel(dFID);
+		if (append) {
+			channel.position(sizeDFile(dFID));
+		} else {
+			truncate(dFID, 0);
+		}
+		return Channels.newOutputStream(channel);
+	}
+
+	/**
+	 * Asynchronous version of read(DFileID, long, ByteBuffer[]). The future
+	 * completes with what read returns. dsts must not be touched until then
+	 */
+	public CompletableFuture<Integer> readAsync(DFileID dFID, long pos, ByteBuffer[] dsts) {
+		return CompletableFuture.supplyAsync(() -> read(dFID, pos, dsts), _asyncExecutor);
+	}
+
+	/**
+	 * Asynchronous version of write(DFileID, long, ByteBuffer[]). The future
+	 * completes with what write returns. srcs must not be touched until then
+	 */
+	public CompletableFuture<Integer> writeAsync(DFileID dFID, long pos, ByteBuffer[] srcs) {
+		return CompletableFuture.supplyAsync(() -> write(dFID, pos, srcs), _asyncExecutor);
+	}
+
+	/**
+	 * Asynchronous version of sync. The future completes once every block
+	 * dirty when it was called is on the volume
+	 */
+	public CompletableFuture<Void> syncAsync() {
+		return CompletableFuture.runAsync(this::sync, _asyncExecutor);
+	}
+
+	/**
+	 * Every asynchronous request runs on a thread of its own: a virtual thread
+	 * on a runtime that has them, so that tens of thousands of requests can
+	 * wait on the disk at once, and a pooled daemon thread otherwise. The
+	 * waits on the disk use locks rather than monitors, so a virtual thread
+	 * does not pin its carrier while it waits
+	 */
+	private static ExecutorService newAsyncExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "DFS async");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	@Override
+	public int sizeDFile(DFileID dFID) {
+		DFile file = _files.get(dFID.getDFileID());
+		if (file == null)
+			return Constants.DBUFFER_ERROR;
+		MetadataLock lock = file.getLock();
+		long stamp = lock.tryOptimisticRead();
+		int size = file.getSize();
+		if (lock.validate(stamp))
+			return size;
+		// A resize was under way, wait for it
+		lock.readLock().lock();
+		try {
+			return file.getSize();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<DFileID> listAllDFiles() {
+		List<DFileID> list = new ArrayList<>();
+		for (DFile file : _files.files()) {
+			list.add(new DFileID(file.getFileId()));
+		}
+		return list;
+	}
+
+	@Override
+	public void sync() {
+		deduplicate();
+		_journal.flush();
+		_cache.sync();
+		System.out.println("Sync completed");
+	}
+
+	/**
+	 * Gets a file and takes its read or write lock. A file destroyed while
+	 * waiting for the lock is released and reported as missing
+	 * 
+	 * @return the locked file, or null if it does not exist
+	 */
+	private DFile lockFile(DFileID dFID, boolean write) {
+		DFile file = _files.get(dFID.getDFileID());
+		if (file == null || !lockFile(file, write))
+			return null;
+		return file;
+	}
+
+	/**
+	 * Takes the read or write lock of a file found before
+	 * 
+	 * @return false if the file was destroyed meanwhile, nothing is held then
+	 */
+	private boolean lockFile(DFile file, boolean write) {
+		Lock lock = write ? file.getLock().writeLock() : file.getLock().readLock();
+		lock.lock();
+		if (_files.get(file.getFileId()) != file) {
+			lock.unlock();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the size of a file. A file shrinks in as many transactions as it
+	 * takes to keep each of them within RESIZE_STEP blocks, every one of them
+	 * leaving the file consistent at an intermediate size. A file grows in one
+	 * transaction, since the blocks it grows by are holes
+	 * 
+	 * @return the new size of the file, smaller than size if the disk filled up
+	 */
+	private int resizeFile(DFile file, int size) {
+		size = Math.min(size, Constants.MAX_FILE_SIZE);
+		while (true) {
+			int mapped = blocksFor(file.getSize());
+			if (file.isShared() && blocksFor(size) < mapped - RESIZE_STEP && dropSharedPointers(file, size))
+				continue;
+			int step = size;
+			if (blocksFor(size) < mapped - RESIZE_STEP)
+				step = (mapped - RESIZE_STEP) * Constants.BLOCK_SIZE;
+			int reached;
+			Journal.Transaction tx = _journal.begin();
+			try {
+				reached = resizeFile(tx, file, step);
+			} finally {
+				_journal.commit(tx);
+			}
+			if (step == size || reached < step)
+				return reached;
+		}
+	}
+
+	/**
+	 * Sets the size of a file, mapping holes at its end or freeing the blocks
+	 * past the new size, and records it in the inode. The bytes a file grows
+	 * by read as zeros. If the disk fills up, the file only grows as far as
+	 * the indirect blocks it could get
+	 * 
+	 * @return the new size of the file
+	 */
+	private int resizeFile(Journal.Transaction tx, DFile file, int size) {
+		size = Math.min(size, Constants.MAX_FILE_SIZE);
+		if (file.isInline()) {
+			if (size > Constants.INODE_INLINE_SIZE)
+				return promoteFile(tx, file, size);
+			file.clearInline(Math.min(size, file.getSize()));
+			file.setSize(size);
+			writeINodeRecord(tx, file);
+			return size;
+		}
+		int mapped = blocksFor(file.getSize());
+		int deltaBlocks = blocksFor(size) - mapped;
+		int tail = file.getSize() % Constants.BLOCK_SIZE;
+		if (size > file.getSize() && tail != 0 && (!file.isShared() || unshareBlocks(tx, file, mapped - 1, mapped) > 0)) {
+			// A shrink leaves stale bytes past the end of the last block, they must read as zeros
+			int blockID = getMappedBlockIDs(file, mapped - 1, mapped).get(0);
+			if (blockID != 0) {
+				DBuffer dbuffer = getValidBlock(blockID);
+				dbuffer.write(tail, ZEROS, 0, Constants.BLOCK_SIZE - tail);
+				_cache.releaseBlock(dbuffer);
+			}
+		}
+		if (deltaBlocks < 0) {
+			shrinkFile(tx, file, mapped, -deltaBlocks);
+		} else if (deltaBlocks > 0) {
+			int added = extendFile(tx, file, mapped, deltaBlocks);
+			if (added < deltaBlocks)
+				size = (mapped + added) * Constants.BLOCK_SIZE;
+		}
+		// An emptied file maps no block, so its next bytes can go inline again
+		if (size == 0)
+			file.setInline(true);
+		file.setSize(size);
+		writeINodeRecord(tx, file);
+		return size;
+	}
+
+	/**
+	 * Moves the data of an inline file to a block of its own and grows the
+	 * file to size bytes. The rest of the file is left as holes
+	 * 
+	 * @return the new size of the file. If no block could be had for the
+	 *         data, the file is left inline at its old size
+	 */
+	private int promoteFile(Journal.Transaction tx, DFile file, int size) {
+		int oldSize = file.getSize();
+		// An indirect block and a data block
+		if (oldSize > 0 && _cache.numOfFreeBlocks() < 2)
+			return oldSize;
+		ByteBuffer data = ByteBuffer.allocate(oldSize);
+		file.readInline(0, data, oldSize);
+		file.setInline(false);
+		file.setSize(0);
+		int added = extendFile(tx, file, 0, 1);
+		if (oldSize > 0) {
+			// The block taken is zeroed in the cache, not fetched
+			allocateBlocks(tx, file, 0, 1);
+			DBuffer dbuffer = getValidBlock(getMappedBlockIDs(file, 0, 1).get(0));
+			dbuffer.write(0, data.array(), 0, oldSize);
+			_cache.releaseBlock(dbuffer);
+		}
+		added += extendFile(tx, file, 1, blocksFor(size) - 1);
+		if (added < blocksFor(size))
+			size = added * Constants.BLOCK_SIZE;
+		file.setSize(size);
+		writeINodeRecord(tx, file);
+		return size;
+	}
+
+	/**
+	 * @return the number of blocks holding size bytes
+	 */
+	private static int blocksFor(int size) {
+		return (size + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+	}
+
+	/**
+	 * @return the number of indirect blocks mapping size bytes, holes included
+	 */
+	private static int indirectBlocksFor(int size) {
+		return (blocksFor(size) + Constants.INTS_IN_BLOCK - 1) / Constants.INTS_IN_BLOCK;
+	}
+
+	/**
+	 * Copies count bytes of the file starting at byte pos into dsts, filling
+	 * each buffer before moving to the next one. The blocks in that range are
+	 * fetched a window at a time, the next one while the current one is
+	 * copied straight out of its cached frames. Holes read as zeros and the
+	 * data of an inline file is copied out of its inode, neither with any
+	 * block I/O
+	 */
+	private int readBlocks(DFile file, int pos, ByteBuffer[] dsts, int count) {
+		if (count <= 0)
+			return 0;
+		if (file.isInline())
+			return copyInline(file, pos, dsts, count);
+		int blockOffset = pos % Constants.BLOCK_SIZE;
+		int read = 0;
+		int next = 0;
+		int last = (pos + count - 1) / Constants.BLOCK_SIZE + 1;
+		int from = pos / Constants.BLOCK_SIZE;
+		List<DBuffer> window = fetchWindow(file, from, last, 0, 0);
+		while (window != null) {
+			from = windowEnd(from, last);
+			List<DBuffer> ahead = from < last ? fetchWindow(file, from, last, 0, 0) : null;
+			for (DBuffer dbuffer : window) {
+				if (dbuffer != null)
+					dbuffer.waitValid();
+				int inBlock = Math.min(Constants.BLOCK_SIZE - blockOffset, count - read);
+				while (inBlock > 0) {
+					while (!dsts[next].hasRemaining())
+						next++;
+					int n = Math.min(inBlock, dsts[next].remaining());
+					if (dbuffer == null)
+						dsts[next].put(ZEROS, 0, n);
+					else
+						n = dbuffer.read(blockOffset, dsts[next], n);
+					blockOffset += n;
+					inBlock -= n;
+					read += n;
+				}
+				if (dbuffer != null)
+					_cache.releaseBlock(dbuffer);
+				blockOffset = 0;
+			}
+			window = ahead;
+		}
+		return read;
+	}
+
+	/**
+	 * @return the end of the window of blocks starting at block from, at most
+	 *         last. Windows are aligned on PREFETCH_WINDOW blocks, so they
+	 *         span whole indirect blocks
+	 */
+	private static int windowEnd(int from, int last) {
+		return Math.min(last, (from / PREFETCH_WINDOW + 1) * PREFETCH_WINDOW);
+	}
+
+	/**
+	 * Maps the blocks of the window starting at block from of a file and
+	 * starts fetching them, see prefetchBlocks. A block that a write of the
+	 * bytes start to end - 1 covers whole is not fetched, its buffer is
+	 * zeroed instead
+	 */
+	private List<DBuffer> fetchWindow(DFile file, int from, int last, int start, int end) {
+		List<Integer> blockIDs = getMappedBlockIDs(file, from, windowEnd(from, last));
+		List<DBuffer> buffers = new ArrayList<>(blockIDs.size());
+		long blockStart = (long) from * Constants.BLOCK_SIZE;
+		for (int blockID : blockIDs) {
+			if (blockID == 0)
+				buffers.add(null);
+			else if (blockStart >= start && blockStart + Constants.BLOCK_SIZE <= end)
+				buffers.add(_cache.getZeroBlock(blockID));
+			else
+				buffers.add(prefetchBlock(blockID));
+			blockStart += Constants.BLOCK_SIZE;
+		}
+		return buffers;
+	}
+
+	/**
+	 * Copies count bytes of the inline data of a file from byte pos on into
+	 * dsts. Touches the inode only
+	 */
+	private static int copyInline(DFile file, int pos, ByteBuffer[] dsts, int count) {
+		int read = 0;
+		int next = 0;
+		while (read < count) {
+			while (!dsts[next].hasRemaining())
+				next++;
+			int n = Math.min(count - read, dsts[next].remaining());
+			file.readInline(pos + read, dsts[next], n);
+			read += n;
+		}
+		return read;
+	}
+
+	/**
+	 * Copies count bytes out of srcs into the file starting at byte pos,
+	 * draining each buffer before moving to the next one. The blocks of the
+	 * range must have been allocated already. Those that are only partly
+	 * overwritten, the first and the last at most, are fetched first, a
+	 * window at a time as readBlocks does. The data of an inline file is
+	 * written to its inode and logged with it
+	 */
+	private int writeBlocks(DFile file, int pos, ByteBuffer[] srcs, int count) {
+		if (count <= 0)
+			return 0;
+		if (file.isInline()) {
+			int written = 0;
+			int next = 0;
+			while (written < count) {
+				while (!srcs[next].hasRemaining())
+					next++;
+				int n = Math.min(count - written, srcs[next].remaining());
+				file.writeInline(pos + written, srcs[next], n);
+				written += n;
+			}
+			Journal.Transaction tx = _journal.begin();
+			try {
+				writeINodeRecord(tx, file);
+			} finally {
+				_journal.commit(tx);
+			}
+			return written;
+		}
+		int blockOffset = pos % Constants.BLOCK_SIZE;
+		int written = 0;
+		int next = 0;
+		int last = blocksFor(pos + count);
+		int from = pos / Constants.BLOCK_SIZE;
+		List<DBuffer> window = fetchWindow(file, from, last, pos, pos + count);
+		while (window != null) {
+			from = windowEnd(from, last);
+			List<DBuffer> ahead = from < last ? fetchWindow(file, from, last, pos, pos + count) : null;
+			for (DBuffer dbuffer : window) {
+				dbuffer.waitValid();
+				int inBlock = Math.min(Constants.BLOCK_SIZE - blockOffset, count - written);
+				while (inBlock > 0) {
+					while (!srcs[next].hasRemaining())
+						next++;
+					int n = dbuffer.write(blockOffset, srcs[next], Math.min(inBlock, srcs[next].remaining()));
+					blockOffset += n;
+					inBlock -= n;
+					written += n;
+				}
+				_cache.releaseBlock(dbuffer);
+				blockOffset = 0;
+			}
+			window = ahead;
+		}
+		_dedup.written(file.getFileId(), pos / Constants.BLOCK_SIZE, blocksFor(pos + written));
+		return written;
+	}
+
+	/**
+	 * Total number of bytes remaining in buffers
+	 */
+	private static long remaining(ByteBuffer[] buffers) {
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		return remaining;
+	}
+
+	/**
+	 * Grows the mapping of a file by numBlocks blocks. The new blocks are
+	 * holes: no data block is taken for them until they are written, only the
+	 * indirect block positions covering them are added, as holes themselves.
+	 * The blocks pointing to those positions are taken here, if there is room
+	 * 
+	 * @param mapped
+	 *            the number of blocks currently mapped by the file
+	 * @return the number of blocks mapped, fewer than numBlocks if the disk
+	 *         filled up
+	 */
+	private int extendFile(Journal.Transaction tx, DFile file, int mapped, int numBlocks) {
+		int indirect = indirectBlocksFor((mapped + numBlocks) * Constants.BLOCK_SIZE);
+		while (file.getIndirectBlocks().size() < indirect) {
+			if (_cache.numOfFreeBlocks() < pointerBlocksFor(file.getIndirectBlocks().size()))
+				break;
+			addIndirectBlock(tx, file);
+		}
+		return Math.min(numBlocks, file.getIndirectBlocks().size() * Constants.INTS_IN_BLOCK - mapped);
+	}
+
+	/**
+	 * Takes a data block for every hole among the blocks first to last - 1 of
+	 * a file, in as many transactions as it takes to keep each of them within
+	 * RESIZE_STEP blocks. The blocks taken are zeroed in the cache, not read
+	 * 
+	 * @return the number of blocks from first on that are backed by a data
+	 *         block, fewer than last - first if the disk filled up
+	 */
+	private int allocateBlocks(DFile file, int first, int last) {
+		int slot = first;
+		while (slot < last) {
+			int step = Math.min(last, slot + RESIZE_STEP);
+			int reached;
+			Journal.Transaction tx = _journal.begin();
+			try {
+				// The blocks of a file sharing them are its own before they are written
+				int end = file.isShared() ? slot + unshareBlocks(tx, file, slot, step) : step;
+				reached = allocateBlocks(tx, file, slot, end);
+			} finally {
+				_journal.commit(tx);
+			}
+			slot += reached;
+			if (slot < step)
+				break;
+		}
+		return slot - first;
+	}
+
+	/**
+	 * Whether count blocks are free, once the blocks freed by the records not
+	 * yet flushed are given back if too few are
+	 */
+	private boolean hasFreeBlocks(int count) {
+		return _cache.numOfFreeBlocks() >= count
+				|| (_journal.releaseFreed() && _cache.numOfFreeBlocks() >= count);
+	}
+
+	/**
+	 * Takes a data block for every hole among the blocks first to last - 1 of
+	 * a file, along with any indirect block holding them that is a hole too.
+	 * Only the slots filled are logged
+	 * 
+	 * @return the number of blocks from first on that are backed by a data
+	 *         block
+	 */
+	private int allocateBlocks(Journal.Transaction tx, DFile file, int first, int last) {
+		boolean inodeChanged = false;
+		int slot = first;
+		try {
+			while (slot < last) {
+				int index = slot / Constants.INTS_IN_BLOCK;
+				int base = index * Constants.INTS_IN_BLOCK;
+				int end = Math.min(last, base + Constants.INTS_IN_BLOCK);
+				DBuffer indirect;
+				if (file.getIndirectBlocks().get(index) == 0) {
+					if (!hasFreeBlocks(2))
+						return slot - first;
+					indirect = _cache.getNewBlock();
+					tx.logNewBlock(indirect);
+					setIndirectBlock(tx, file, index, indirect.getBlockID());
+					inodeChanged |= index < Constants.INODE_INDIRECT_SLOTS;
+				} else {
+					indirect = getValidBlock(file.getIndirectBlocks().get(index));
+				}
+				int changed = -1;
+				try {
+					for (; slot < end; slot++) {
+						if (indirect.getInt(slot - base) != 0)
+							continue;
+						if (!hasFreeBlocks(1))
+							return slot - first;
+						if (changed < 0) {
+							tx.pin(indirect);
+							changed = slot;
+						}
+						int blockID = _cache.getNextFreeBlock();
+						tx.logAlloc(blockID);
+						_cache.releaseBlock(_cache.getZeroBlock(blockID));
+						indirect.putInt(slot - base, blockID);
+					}
+				} finally {
+					if (changed >= 0)
+						tx.logWrite(indirect, (changed - base) * Constants.BYTES_PER_INT,
+								(slot - changed) * Constants.BYTES_PER_INT);
+					_cache.releaseBlock(indirect);
+				}
+			}
+			return slot - first;
+		} finally {
+			if (inodeChanged)
+				writeINodeRecord(tx, file);
+		}
+	}
+
+	/**
+	 * Frees the last numBlocks blocks of a file. Their slots are cleared only
+	 * in the indirect block that is kept, indirect blocks left empty are freed
+	 * altogether. Holes have nothing to free
+	 * 
+	 * @param mapped
+	 *            the number of blocks currently mapped by the file
+	 */
+	private void shrinkFile(Journal.Transaction tx, DFile file, int mapped, int numBlocks) {
+		if (file.isShared()) {
+			shrinkSharedFile(tx, file, mapped, numBlocks);
+			return;
+		}
+		int firstSlot = mapped - numBlocks;
+		List<Integer> freed = getMappedBlockIDs(file, firstSlot, mapped);
+		int keepIndirect = (firstSlot + Constants.INTS_IN_BLOCK - 1) / Constants.INTS_IN_BLOCK;
+		int clearEnd = Math.min(mapped, keepIndirect * Constants.INTS_IN_BLOCK);
+		int kept = clearEnd > firstSlot ? file.getIndirectBlocks().get(firstSlot / Constants.INTS_IN_BLOCK) : 0;
+		if (kept != 0) {
+			List<DBuffer> indirect = new ArrayList<>();
+			indirect.add(getValidBlock(kept));
+			tx.pin(indirect.get(0));
+			file.unmapBlocks(indirect, firstSlot, clearEnd - firstSlot);
+			logSlots(tx, indirect, firstSlot, clearEnd - firstSlot);
+			_cache.releaseBlock(indirect.get(0));
+		}
+		while (file.getIndirectBlocks().size() > keepIndirect) {
+			removeIndirectBlock(tx, file);
+		}
+		for (int blockID : freed) {
+			if (blockID != 0)
+				tx.free(blockID);
+		}
+	}
+
+	/**
+	 * Counterpart of shrinkFile for a file that may share blocks with other
+	 * files. A shared block the file lets go of only has its count lowered,
+	 * and the blocks under it are left to the files still sharing it. A shared
+	 * block pointing to indirect blocks that is not kept at all goes at once;
+	 * any other shared block on the way to the slots cleared is copied first
+	 * 
+	 * @param mapped
+	 *            the number of blocks currently mapped by the file
+	 */
+	private void shrinkSharedFile(Journal.Transaction tx, DFile file, int mapped, int numBlocks) {
+		_refs.hold(tx);
+		int firstSlot = mapped - numBlocks;
+		int keepIndirect = (firstSlot + Constants.INTS_IN_BLOCK - 1) / Constants.INTS_IN_BLOCK;
+		int clearEnd = Math.min(mapped, keepIndirect * Constants.INTS_IN_BLOCK);
+		if (clearEnd > firstSlot) {
+			int index = firstSlot / Constants.INTS_IN_BLOCK;
+			unshareIndirectBlock(tx, file, index);
+			int kept = file.getIndirectBlocks().get(index);
+			if (kept != 0) {
+				List<Integer> freed = getMappedBlockIDs(file, firstSlot, clearEnd);
+				List<DBuffer> indirect = new ArrayList<>();
+				indirect.add(getValidBlock(kept));
+				tx.pin(indirect.get(0));
+				file.unmapBlocks(indirect, firstSlot, clearEnd - firstSlot);
+				logSlots(tx, indirect, firstSlot, clearEnd - firstSlot);
+				_cache.releaseBlock(indirect.get(0));
+				for (int blockID : freed) {
+					if (blockID != 0)
+						freeBlock(tx, file, blockID);
+				}
+			}
+		}
+		while (file.getIndirectBlocks().size() > keepIndirect) {
+			if (dropSharedPointers(tx, file, keepIndirect))
+				continue;
+			int index = file.getIndirectBlocks().size() - 1;
+			unsharePointers(tx, file, index);
+			int blockID = file.getIndirectBlocks().get(index);
+			// The data blocks of a shared indirect block stay with the files sharing it
+			if (blockID != 0 && _refs.count(blockID) == 0) {
+				for (int dataBlock : readPointers(blockID, Constants.INTS_IN_BLOCK)) {
+					if (dataBlock != 0)
+						freeBlock(tx, file, dataBlock);
+				}
+			}
+			removeIndirectBlock(tx, file);
+		}
+	}
+
+	/**
+	 * Drops, in a transaction of its own, the indirect blocks at the end of a
+	 * file that sit under a shared block pointing to them, if none of them is
+	 * kept at size bytes. The file is left at the size those that remain map
+	 * 
+	 * @return false if the last indirect blocks are not under such a block
+	 */
+	private boolean dropSharedPointers(DFile file, int size) {
+		Journal.Transaction tx = _journal.begin();
+		try {
+			if (!dropSharedPointers(tx, file, indirectBlocksFor(size)))
+				return false;
+			file.setSize(Math.min(file.getSize(),
+					file.getIndirectBlocks().size() * Constants.INTS_IN_BLOCK * Constants.BLOCK_SIZE));
+			writeINodeRecord(tx, file);
+			return true;
+		} finally {
+			_journal.commit(tx);
+		}
+	}
+
+	/**
+	 * Drops the last indirect blocks of a file at once when they are all
+	 * under the triple indirect block, the last block under it or the double
+	 * indirect block, that block is shared and none of them is kept: only the
+	 * count of that block goes down, however much it maps. The inode is
+	 * logged by the caller
+	 * 
+	 * @param keepIndirect
+	 *            the number of indirect blocks the file keeps
+	 * @return true if blocks were dropped
+	 */
+	private boolean dropSharedPointers(Journal.Transaction tx, DFile file, int keepIndirect) {
+		_refs.hold(tx);
+		List<Integer> indirectBlocks = file.getIndirectBlocks();
+		int tripleStart = Constants.INODE_INDIRECT_SLOTS + Constants.INTS_IN_BLOCK;
+		int first;
+		if (indirectBlocks.size() > tripleStart) {
+			List<Integer> children = file.getTripleChildren();
+			if (keepIndirect <= tripleStart && _refs.release(tx, file.getTripleIndirectBlock())) {
+				children.clear();
+				file.setTripleIndirectBlock(0);
+				first = tripleStart;
+			} else {
+				int last = children.size() - 1;
+				first = tripleStart + last * Constants.INTS_IN_BLOCK;
+				if (first < keepIndirect || _refs.count(children.get(last)) == 0)
+					return false;
+				unshareTriple(tx, file);
+				_refs.release(tx, children.remove(last));
+				if (children.isEmpty()) {
+					freeBlock(tx, file, file.getTripleIndirectBlock());
+					file.setTripleIndirectBlock(0);
+				} else {
+					setPointer(tx, file.getTripleIndirectBlock(), last, 0);
+				}
+			}
+		} else if (indirectBlocks.size() > Constants.INODE_INDIRECT_SLOTS
+				&& keepIndirect <= Constants.INODE_INDIRECT_SLOTS
+				&& _refs.release(tx, file.getDoubleIndirectBlock())) {
+			file.setDoubleIndirectBlock(0);
+			first = Constants.INODE_INDIRECT_SLOTS;
+		} else {
+			return false;
+		}
+		indirectBlocks.subList(first, indirectBlocks.size()).clear();
+		return true;
+	}
+
+	/**
+	 * Gives a file blocks of its own in place of the blocks first to last - 1
+	 * it shares with other files, and of the indirect blocks holding them and
+	 * the blocks pointing to those. Holes are left as they are. The copies of
+	 * data blocks are written to the volume before the transaction commits,
+	 * so no record ever maps a copy that does not hold its data yet
+	 * 
+	 * @return the number of blocks from first on the file has to itself,
+	 *         fewer than last - first if the disk filled up
+	 */
+	private int unshareBlocks(Journal.Transaction tx, DFile file, int first, int last) {
+		_refs.hold(tx);
+		List<DBuffer> copies = new ArrayList<>();
+		int slot = first;
+		try {
+			while (slot < last) {
+				int index = slot / Constants.INTS_IN_BLOCK;
+				int base = index * Constants.INTS_IN_BLOCK;
+				int end = Math.min(last, base + Constants.INTS_IN_BLOCK);
+				unshareIndirectBlock(tx, file, index);
+				int indirectID = file.getIndirectBlocks().get(index);
+				if (indirectID == 0) {
+					slot = end;
+					continue;
+				}
+				DBuffer indirect = getValidBlock(indirectID);
+				try {
+					for (; slot < end; slot++) {
+						int blockID = indirect.getInt(slot - base);
+						if (blockID == 0 || _refs.count(blockID) == 0)
+							continue;
+						// A block held by the index alone is the file's own once dropped from it
+						if (_refs.unindex(tx, blockID))
+							continue;
+						DBuffer copy = copyDataBlock(tx, blockID);
+						if (copy == null)
+							return slot - first;
+						copies.add(copy);
+						freeBlock(tx, file, blockID);
+						tx.pin(indirect);
+						indirect.putInt(slot - base, copy.getBlockID());
+						tx.logWrite(indirect, (slot - base) * Constants.BYTES_PER_INT, Constants.BYTES_PER_INT);
+					}
+				} finally {
+					_cache.releaseBlock(indirect);
+				}
+			}
+			return slot - first;
+		} finally {
+			for (DBuffer copy : copies) {
+				copy.startPush();
+			}
+			for (DBuffer copy : copies) {
+				copy.waitClean();
+				_cache.releaseBlock(copy);
+			}
+		}
+	}
+
+	/**
+	 * Gives a file an index-th indirect block of its own if it shares it,
+	 * along with the blocks pointing to it
+	 */
+	private void unshareIndirectBlock(Journal.Transaction tx, DFile file, int index) {
+		unsharePointers(tx, file, index);
+		int blockID = file.getIndirectBlocks().get(index);
+		if (blockID == 0)
+			return;
+		int copy = unshareBlock(tx, blockID, LEVEL_INDIRECT);
+		if (copy != blockID) {
+			setIndirectBlock(tx, file, index, copy);
+			if (index < Constants.INODE_INDIRECT_SLOTS)
+				writeINodeRecord(tx, file);
+		}
+	}
+
+	/**
+	 * Gives a file blocks of its own in place of the shared blocks pointing to
+	 * its index-th indirect block, which may be one past its last, so that
+	 * the pointer to it can be changed
+	 */
+	private void unsharePointers(Journal.Transaction tx, DFile file, int index) {
+		_refs.hold(tx);
+		int i = index - Constants.INODE_INDIRECT_SLOTS;
+		if (i < 0)
+			return;
+		if (i < Constants.INTS_IN_BLOCK) {
+			int doubleIndirect = file.getDoubleIndirectBlock();
+			int copy = doubleIndirect == 0 ? 0 : unshareBlock(tx, doubleIndirect, LEVEL_POINTER);
+			if (copy != doubleIndirect) {
+				file.setDoubleIndirectBlock(copy);
+				writeINodeRecord(tx, file);
+			}
+			return;
+		}
+		i -= Constants.INTS_IN_BLOCK;
+		unshareTriple(tx, file);
+		List<Integer> children = file.getTripleChildren();
+		int c = i / Constants.INTS_IN_BLOCK;
+		if (c < children.size()) {
+			int child = children.get(c);
+			int copy = unshareBlock(tx, child, LEVEL_POINTER);
+			if (copy != child) {
+				children.set(c, copy);
+				setPointer(tx, file.getTripleIndirectBlock(), c, copy);
+			}
+		}
+	}
+
+	/**
+	 * Gives a file a triple indirect block of its own if it shares it
+	 */
+	private void unshareTriple(Journal.Transaction tx, DFile file) {
+		int triple = file.getTripleIndirectBlock();
+		int copy = triple == 0 ? 0 : unshareBlock(tx, triple, LEVEL_TRIPLE);
+		if (copy != triple) {
+			file.setTripleIndirectBlock(copy);
+			writeINodeRecord(tx, file);
+		}
+	}
+
+	/**
+	 * Copies a block of block ids if it is shared. The copy points to the
+	 * same blocks, which are counted as shared once more, and the block
+	 * copied is counted as shared once less
+	 * 
+	 * @param level
+	 *            LEVEL_INDIRECT, LEVEL_POINTER or LEVEL_TRIPLE, for what the
+	 *            block points to
+	 * @return the id of the copy, or blockID if it was not shared
+	 */
+	private int unshareBlock(Journal.Transaction tx, int blockID, int level) {
+		if (_refs.count(blockID) == 0)
+			return blockID;
+		int copy = copyPointerBlock(tx, blockID, level);
+		_refs.release(tx, blockID);
+		return copy;
+	}
+
+	/**
+	 * Copies a block of block ids, sharing every block it points to with the
+	 * copy. A block already shared by as many files as its count allows is
+	 * copied in turn instead
+	 */
+	private int copyPointerBlock(Journal.Transaction tx, int blockID, int level) {
+		int[] pointers = new int[Constants.INTS_IN_BLOCK];
+		DBuffer source = getValidBlock(blockID);
+		for (int i = 0; i < pointers.length; i++) {
+			pointers[i] = source.getInt(i);
+		}
+		_cache.releaseBlock(source);
+		DBuffer copy = _cache.getNewBlock();
+		if (copy == null)
+			throw new IllegalStateException("No free block left to copy a shared block");
+		tx.logNewBlock(copy);
+		for (int i = 0; i < pointers.length; i++) {
+			if (pointers[i] == 0)
+				continue;
+			int child = pointers[i];
+			if (!_refs.share(tx, child)) {
+				if (level > LEVEL_INDIRECT) {
+					child = copyPointerBlock(tx, child, level - 1);
+				} else {
+					DBuffer data = copyDataBlock(tx, child);
+					if (data == null)
+						throw new IllegalStateException("No free block left to copy a shared block");
+					data.startPush();
+					data.waitClean();
+					_cache.releaseBlock(data);
+					child = data.getBlockID();
+				}
+			}
+			copy.putInt(i, child);
+		}
+		tx.logWrite(copy, 0, Constants.BLOCK_SIZE);
+		_cache.releaseBlock(copy);
+		return copy.getBlockID();
+	}
+
+	/**
+	 * Copies a data block into a new block, left to the caller to push and
+	 * release
+	 * 
+	 * @return the buffer of the copy, or null if the disk is full
+	 */
+	private DBuffer copyDataBlock(Journal.Transaction tx, int blockID) {
+		byte[] data = new byte[Constants.BLOCK_SIZE];
+		readValidBlock(blockID, 0, data, 0, Constants.BLOCK_SIZE);
+		DBuffer copy = _cache.getNewBlock();
+		if (copy == null)
+			return null;
+		tx.logAlloc(copy.getBlockID());
+		copy.write(0, data, 0, Constants.BLOCK_SIZE);
+		return copy;
+	}
+
+	/**
+	 * Deduplicates the blocks written since the last pass, one file at a
+	 * time, each file locked exclusive while its blocks are remapped
+	 */
+	private void deduplicate() {
+		for (Map.Entry<Integer, BitSet> entry : _dedup.drain().entrySet()) {
+			DFile file = lockFile(new DFileID(entry.getKey()), true);
+			if (file == null)
+				continue;
+			try {
+				if (!file.isInline())
+					deduplicate(file, entry.getValue());
+			} finally {
+				file.getLock().writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Deduplicates the blocks of a file at the slots set, INTS_IN_BLOCK of
+	 * them per transaction, since each one may log several entries. The
+	 * blocks mapped in place of others are written to the volume before the
+	 * transaction commits, as copies are
+	 */
+	private void deduplicate(DFile file, BitSet slots) {
+		int mapped = blocksFor(file.getSize());
+		int slot = slots.nextSetBit(0);
+		while (slot >= 0 && slot < mapped) {
+			Set<DBuffer> kept = new HashSet<>();
+			Journal.Transaction tx = _journal.begin();
+			try {
+				_refs.hold(tx);
+				for (int n = 0; n < Constants.INTS_IN_BLOCK && slot >= 0 && slot < mapped; n++) {
+					dedupBlock(tx, file, slot, kept);
+					slot = slots.nextSetBit(slot + 1);
+				}
+			} finally {
+				for (DBuffer dbuffer : kept) {
+					dbuffer.startPush();
+				}
+				for (DBuffer dbuffer : kept) {
+					dbuffer.waitClean();
+					_cache.releaseBlock(dbuffer);
+				}
+				_journal.commit(tx);
+			}
+		}
+		if (!file.isShared())
+			return;
+		Journal.Transaction tx = _journal.begin();
+		try {
+			_refs.hold(tx);
+			// A file left sharing no block, with the index or another file, takes the fast paths again
+			if (!mapsSharedBlocks(file, 0, blocksFor(file.getSize()))) {
+				file.setShared(false);
+				writeINodeRecord(tx, file);
+			}
+		} finally {
+			_journal.commit(tx);
+		}
+	}
+
+	/**
+	 * Looks up the data block of a file at slot in the index. A block of
+	 * zeros is freed and becomes a hole, a block found is mapped in its place
+	 * and the block of the file is freed, and any other block is added to the
+	 * index. A block already in the index is left as it is
+	 * 
+	 * @param kept
+	 *            receives the buffers of the blocks mapped in place of others,
+	 *            held once each
+	 */
+	private void dedupBlock(Journal.Transaction tx, DFile file, int slot, Set<DBuffer> kept) {
+		int index = slot / Constants.INTS_IN_BLOCK;
+		int indirectID = file.getIndirectBlocks().get(index);
+		if (indirectID == 0)
+			return;
+		DBuffer indirect = getValidBlock(indirectID);
+		int blockID = indirect.getInt(slot % Constants.INTS_IN_BLOCK);
+		_cache.releaseBlock(indirect);
+		if (blockID == 0 || _refs.isIndexed(blockID))
+			return;
+		byte[] data = new byte[Constants.BLOCK_SIZE];
+		readValidBlock(blockID, 0, data, 0, Constants.BLOCK_SIZE);
+		int found = Dedup.isZero(data) ? 0 : _dedup.find(data);
+		if (found != 0 && !_refs.canShare(found))
+			found = 0;
+		// A remap may have to copy the blocks pointing to the slot
+		boolean remap = found != 0 || Dedup.isZero(data);
+		if (remap && _cache.numOfFreeBlocks() < 3)
+			return;
+		if (!file.isShared()) {
+			file.setShared(true);
+			writeINodeRecord(tx, file);
+		}
+		if (!remap) {
+			_refs.index(tx, blockID);
+			_dedup.add(blockID, data);
+			return;
+		}
+		if (found != 0) {
+			_refs.share(tx, found);
+			DBuffer dbuffer = getValidBlock(found);
+			if (!kept.add(dbuffer))
+				_cache.releaseBlock(dbuffer);
+		}
+		unshareIndirectBlock(tx, file, index);
+		setPointer(tx, file.getIndirectBlocks().get(index), slot % Constants.INTS_IN_BLOCK, found);
+		freeBlock(tx, file, blockID);
+	}
+
+	/**
+	 * Moves the data blocks under the index-th indirect block of a file into
+	 * one run of free blocks, the first one found from block near on, unless
+	 * they already are one run. The copies are written to the volume before
+	 * the transaction switching the indirect block over to them commits, and
+	 * the blocks they replace are freed with it. Blocks shared with other
+	 * files are left as they are, along with the rest of their indirect
+	 * block. A block held by the index of deduplicated blocks is moved and
+	 * its copy takes its place in the index
+	 * 
+	 * @return the number of blocks moved, 0 if none was
+	 */
+	int relocateBlocks(DFile file, int index, int near) {
+		if (!lockFile(file, true))
+			return 0;
+		try {
+			if (file.isInline() || index >= file.getIndirectBlocks().size())
+				return 0;
+			int indirectID = file.getIndirectBlocks().get(index);
+			if (indirectID == 0 || file.isShared() && isIndirectShared(file, index))
+				return 0;
+			DBuffer indirect = getValidBlock(indirectID);
+			try {
+				return relocateBlocks(file, indirect, near);
+			} finally {
+				_cache.releaseBlock(indirect);
+			}
+		} finally {
+			file.getLock().writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Body of relocateBlocks(DFile, int, int), called with the file locked
+	 * exclusive and the indirect block held
+	 */
+	private int relocateBlocks(DFile file, DBuffer indirect, int near) {
+		int count = 0;
+		int runs = 0;
+		int last = -1;
+		for (int i = 0; i < Constants.INTS_IN_BLOCK; i++) {
+			int blockID = indirect.getInt(i);
+			if (blockID == 0)
+				continue;
+			if (file.isShared() && _refs.isShared(blockID))
+				return 0;
+			if (blockID != last + 1)
+				runs++;
+			last = blockID;
+			count++;
+		}
+		// Leave the writers as many free blocks as the copies take
+		if (runs < 2 || _cache.numOfFreeBlocks() < 2 * count)
+			return 0;
+		int first = _cache.getFreeRun(count, near);
+		if (first < 0)
+			return 0;
+		List<DBuffer> copies = new ArrayList<>();
+		byte[] data = new byte[Constants.BLOCK_SIZE];
+		Journal.Transaction tx = _journal.begin();
+		try {
+			if (file.isShared())
+				_refs.hold(tx);
+			tx.pin(indirect);
+			int next = first;
+			for (int i = 0; i < Constants.INTS_IN_BLOCK; i++) {
+				int blockID = indirect.getInt(i);
+				if (blockID == 0)
+					continue;
+				readValidBlock(blockID, 0, data, 0, Constants.BLOCK_SIZE);
+				DBuffer copy = _cache.getZeroBlock(next);
+				tx.logAlloc(next);
+				copy.write(0, data, 0, Constants.BLOCK_SIZE);
+				copies.add(copy);
+				// Another file may have shared an indexed block since, it keeps it then
+				if (file.isShared() && _refs.isIndexed(blockID) && _refs.unindex(tx, blockID)) {
+					_refs.index(tx, next);
+					_dedup.add(next, data);
+				}
+				indirect.putInt(i, next++);
+				freeBlock(tx, file, blockID);
+			}
+			tx.logWrite(indirect, 0, Constants.BLOCK_SIZE);
+		} finally {
+			for (DBuffer copy : copies) {
+				copy.startPush();
+			}
+			for (DBuffer copy : copies) {
+				copy.waitClean();
+				_cache.releaseBlock(copy);
+			}
+			_journal.commit(tx);
+		}
+		return count;
+	}
+
+	/**
+	 * Frees a block a file lets go of. If the file may share blocks and the
+	 * block is shared, only its count goes down
+	 */
+	private void freeBlock(Journal.Transaction tx, DFile file, int blockID) {
+		if (!file.isShared() || !_refs.release(tx, blockID))
+			tx.free(blockID);
+	}
+
+	/**
+	 * Appends a hole to the indirect blocks of a file. The first
+	 * INODE_INDIRECT_SLOTS are held by the inode, the next INTS_IN_BLOCK by the
+	 * double indirect block and the rest by the blocks under the triple
+	 * indirect block. Any of those that does not exist yet is allocated here
+	 */
+	private void addIndirectBlock(Journal.Transaction tx, DFile file) {
+		if (file.isShared())
+			unsharePointers(tx, file, file.getIndirectBlocks().size());
+		int i = file.getIndirectBlocks().size() - Constants.INODE_INDIRECT_SLOTS;
+		if (i >= Constants.INTS_IN_BLOCK) {
+			i -= Constants.INTS_IN_BLOCK;
+			if (file.getTripleIndirectBlock() == 0)
+				file.setTripleIndirectBlock(newPointerBlock(tx));
+			List<Integer> children = file.getTripleChildren();
+			if (i % Constants.INTS_IN_BLOCK == 0) {
+				int child = newPointerBlock(tx);
+				setPointer(tx, file.getTripleIndirectBlock(), children.size(), child);
+				children.add(child);
+			}
+		} else if (i >= 0) {
+			if (file.getDoubleIndirectBlock() == 0)
+				file.setDoubleIndirectBlock(newPointerBlock(tx));
+		}
+		file.addIndirectBlock(0);
+	}
+
+	/**
+	 * Sets the id of the index-th indirect block of a file, in the inode or in
+	 * the block pointing to it. An inode changed here is logged by the caller
+	 */
+	private void setIndirectBlock(Journal.Transaction tx, DFile file, int index, int blockID) {
+		int i = index - Constants.INODE_INDIRECT_SLOTS;
+		if (i >= Constants.INTS_IN_BLOCK) {
+			i -= Constants.INTS_IN_BLOCK;
+			setPointer(tx, file.getTripleChildren().get(i / Constants.INTS_IN_BLOCK), i % Constants.INTS_IN_BLOCK, blockID);
+		} else if (i >= 0) {
+			setPointer(tx, file.getDoubleIndirectBlock(), i, blockID);
+		}
+		file.setIndirectBlock(index, blockID);
+	}
+
+	/**
+	 * Frees the last indirect block of a file, along with any block pointing
+	 * to indirect blocks that is left empty. Counterpart of addIndirectBlock.
+	 * The blocks pointing to it must not be shared
+	 */
+	private void removeIndirectBlock(Journal.Transaction tx, DFile file) {
+		int i = file.getIndirectBlocks().size() - 1 - Constants.INODE_INDIRECT_SLOTS;
+		int blockID = file.removeLastIndirectBlock();
+		if (blockID != 0)
+			freeBlock(tx, file, blockID);
+		if (i >= Constants.INTS_IN_BLOCK) {
+			i -= Constants.INTS_IN_BLOCK;
+			List<Integer> children = file.getTripleChildren();
+			if (i % Constants.INTS_IN_BLOCK != 0) {
+				if (blockID != 0)
+					setPointer(tx, children.get(i / Constants.INTS_IN_BLOCK), i % Constants.INTS_IN_BLOCK, 0);
+			} else {
+				freeBlock(tx, file, children.remove(children.size() - 1));
+				if (children.isEmpty()) {
+					freeBlock(tx, file, file.getTripleIndirectBlock());
+					file.setTripleIndirectBlock(0);
+				} else {
+					setPointer(tx, file.getTripleIndirectBlock(), children.size(), 0);
+				}
+			}
+		} else if (i > 0) {
+			if (blockID != 0)
+				setPointer(tx, file.getDoubleIndirectBlock(), i, 0);
+		} else if (i == 0) {
+			freeBlock(tx, file, file.getDoubleIndirectBlock());
+			file.setDoubleIndirectBlock(0);
+		}
+	}
+
+	/**
+	 * @return the number of blocks that must be allocated to point to the
+	 *         indirect block at index indirect of a file
+	 */
+	private static int pointerBlocksFor(int indirect) {
+		int i = indirect - Constants.INODE_INDIRECT_SLOTS;
+		if (i == 0)
+			return 1;
+		i -= Constants.INTS_IN_BLOCK;
+		if (i < 0 || i % Constants.INTS_IN_BLOCK != 0)
+			return 0;
+		return i == 0 ? 2 : 1;
+	}
+
+	/**
+	 * Takes a zeroed block to hold ids of indirect blocks
+	 */
+	private int newPointerBlock(Journal.Transaction tx) {
+		DBuffer dbuffer = _cache.getNewBlock();
+		if (dbuffer == null)
+			throw new IllegalStateException("No free block left for an indirect block");
+		tx.logNewBlock(dbuffer);
+		_cache.releaseBlock(dbuffer);
+		return dbuffer.getBlockID();
+	}
+
+	/**
+	 * Writes value at the index-th int of a block and logs it
+	 */
+	private void setPointer(Journal.Transaction tx, int blockID, int index, int value) {
+		DBuffer dbuffer = getValidBlock(blockID);
+		tx.pin(dbuffer);
+		dbuffer.putInt(index, value);
+		tx.logWrite(dbuffer, index * Constants.BYTES_PER_INT, Constants.BYTES_PER_INT);
+		_cache.releaseBlock(dbuffer);
+	}
+
+	/**
+	 * Logs count slots of the indirect blocks starting at slot firstSlot of
+	 * the file, one entry per indirect block
+	 * 
+	 * @param indirect
+	 *            the buffers of the indirect blocks, starting with the one
+	 *            that holds firstSlot
+	 */
+	private static void logSlots(Journal.Transaction tx, List<DBuffer> indirect, int firstSlot, int count) {
+		int base = firstSlot / Constants.INTS_IN_BLOCK * Constants.INTS_IN_BLOCK;
+		for (DBuffer dbuffer : indirect) {
+			int from = Math.max(firstSlot, base);
+			int to = Math.min(firstSlot + count, base + Constants.INTS_IN_BLOCK);
+			if (to > from)
+				tx.logWrite(dbuffer, (from - base) * Constants.BYTES_PER_INT, (to - from) * Constants.BYTES_PER_INT);
+			base += Constants.INTS_IN_BLOCK;
+		}
+	}
+
+	/**
+	 * Writes the inode of a file into its slot of the inode region, leaving
+	 * the other inodes of that block untouched
+	 */
+	private void writeINodeRecord(Journal.Transaction tx, DFile file) {
+		DBuffer dbuffer = getValidBlock(file.getINodeBlock());
+		int offset = file.getINodePosition() * Constants.INODE_SIZE;
+		tx.pin(dbuffer);
+		dbuffer.write(offset, file.getINodeMetadata(), 0, Constants.INODE_SIZE);
+		tx.logWrite(dbuffer, offset, Constants.INODE_SIZE);
+		_cache.releaseBlock(dbuffer);
+	}
+
+	/**
+	 * Writes the inodes of files into their slots of the inode region, or
+	 * clears those slots. The inodes sharing a block are written with one
+	 * pin of the block, and each run of adjacent slots is logged as one
+	 * range. Slots in between belong to other files and are not logged
+	 */
+	private void writeINodeRecords(Journal.Transaction tx, List<DFile> files, boolean clear) {
+		TreeMap<Integer, TreeMap<Integer, DFile>> byBlock = new TreeMap<>();
+		for (DFile file : files) {
+			byBlock.computeIfAbsent(file.getINodeBlock(), k -> new TreeMap<>()).put(file.getINodePosition(), file);
+		}
+		byte[] empty = new byte[Constants.INODE_SIZE];
+		for (Map.Entry<Integer, TreeMap<Integer, DFile>> entry : byBlock.entrySet()) {
+			DBuffer dbuffer = getValidBlock(entry.getKey());
+			tx.pin(dbuffer);
+			int runStart = -1;
+			int runEnd = -1;
+			for (DFile file : entry.getValue().values()) {
+				int position = file.getINodePosition();
+				dbuffer.write(position * Constants.INODE_SIZE, clear ? empty : file.getINodeMetadata(), 0,
+						Constants.INODE_SIZE);
+				if (position != runEnd) {
+					if (runStart >= 0)
+						logINodes(tx, dbuffer, runStart, runEnd);
+					runStart = position;
+				}
+				runEnd = position + 1;
+			}
+			logINodes(tx, dbuffer, runStart, runEnd);
+			_cache.releaseBlock(dbuffer);
+		}
+	}
+
+	/**
+	 * Logs the inodes from slot from to slot to - 1 of an inode block
+	 */
+	private static void logINodes(Journal.Transaction tx, DBuffer dbuffer, int from, int to) {
+		tx.logWrite(dbuffer, from * Constants.INODE_SIZE, (to - from) * Constants.INODE_SIZE);
+	}
+
+	/**
+	 * Gets a block from the cache, fetching it from the volume if needed. A
+	 * fetch already started by the cache is waited on rather than issued
+	 * again, since a second read landing after a write would undo it. The
+	 * buffer is held until released with DBufferCache.releaseBlock
+	 */
+	DBuffer getValidBlock(int blockID) {
+		DBuffer dbuffer = _cache.getBlock(blockID);
+		if (!dbuffer.checkValid()) {
+			if (!dbuffer.isBusy())
+				dbuffer.startFetch();
+			dbuffer.waitValid();
+		}
+		return dbuffer;
+	}
+
+	/**
+	 * Copies count bytes of a block starting at blockOffset into bytes,
+	 * fetching the block if needed
+	 */
+	void readValidBlock(int blockID, int blockOffset, byte[] bytes, int start, int count) {
+		DBuffer dbuffer = getValidBlock(blockID);
+		dbuffer.read(blockOffset, bytes, start, count);
+		_cache.releaseBlock(dbuffer);
+	}
+
+	/**
+	 * Gets the buffers of all the given blocks, starting the fetch of every
+	 * block that is not valid before returning. The disk works through all of
+	 * them while the caller copies the earliest ones, so each buffer must be
+	 * waited on with waitValid before it is used, and released after. An id
+	 * of 0 is a hole, its buffer is null. The buffers are held at once, so the
+	 * blocks must be far fewer than the cache holds
+	 */
+	List<DBuffer> prefetchBlocks(List<Integer> blockIDs) {
+		List<DBuffer> buffers = new ArrayList<>(blockIDs.size());
+		for (int blockID : blockIDs) {
+			buffers.add(blockID == 0 ? null : prefetchBlock(blockID));
+		}
+		return buffers;
+	}
+
+	/**
+	 * Gets the buffer of a block and starts fetching it if it is not valid,
+	 * without waiting for it
+	 */
+	private DBuffer prefetchBlock(int blockID) {
+		DBuffer dbuffer = _cache.getBlock(blockID);
+		if (!dbuffer.checkValid() && !dbuffer.isBusy())
+			dbuffer.startFetch();
+		return dbuffer;
+	}
+
+	/**
+	 * Maps the blocks from a file
+	 * 
+	 * @param file
+	 *            the file to have its blocks mapped
+	 * @return list with indexes of blocks with data
+	 */
+	private List<Integer> getMappedBlockIDs(DFile file) {
+		return getMappedBlockIDs(file, 0, file.getIndirectBlocks().size() * Constants.INTS_IN_BLOCK);
+	}
+
+	/**
+	 * Maps the blocks first to last - 1 of a file. Only the indirect blocks
+	 * holding that range are read, so the cost does not grow with the file.
+	 * The list has one entry per block of the range, 0 for a hole, and an
+	 * indirect block that is itself a hole is not read at all
+	 */
+	private List<Integer> getMappedBlockIDs(DFile file, int first, int last) {
+		List<Integer> blockIDs = new ArrayList<>();
+		if (!file.isMapped() || last <= first)
+			return blockIDs;
+		List<Integer> indirectBlocks = file.getIndirectBlocks();
+		int from = Math.min(indirectBlocks.size(), first / Constants.INTS_IN_BLOCK);
+		int to = Math.min(indirectBlocks.size(), (last - 1) / Constants.INTS_IN_BLOCK + 1);
+		int base = from * Constants.INTS_IN_BLOCK;
+		// A window of indirect blocks at a time, whatever the size of the file
+		for (int start = from; start < to; start += PREFETCH_WINDOW) {
+			int end = Math.min(to, start + PREFETCH_WINDOW);
+			for (DBuffer dbuffer : prefetchBlocks(indirectBlocks.subList(start, end))) {
+				int lo = Math.max(first, base);
+				int hi = Math.min(last, base + Constants.INTS_IN_BLOCK);
+				if (dbuffer == null) {
+					blockIDs.addAll(Collections.nCopies(hi - lo, 0));
+				} else {
+					dbuffer.waitValid();
+					for (int slot = lo; slot < hi; slot++) {
+						blockIDs.add(dbuffer.getInt(slot - base));
+					}
+					_cache.releaseBlock(dbuffer);
+				}
+				base += Constants.INTS_IN_BLOCK;
+			}
+		}
+		return blockIDs;
+	}
+
+	/**
+	 * Reads the Inodes from a DBuffer from the Inode table during
+	 * initialization.
+	 * 
+	 * @param buf
+	 * @param firstSlot
+	 *            the slot of the first inode of the block
+	 */
+	private void readInodes(DBuffer buf, int firstSlot) {
+		int intsInInode = Constants.INODE_SIZE / Constants.BYTES_PER_INT;
+		for (int i = 0; i < Constants.INODES_IN_BLOCK; i++) {
+			int inode = i * intsInInode;
+			int fileId = buf.getInt(inode + Constants.INODE_FID);
+			if (fileId == 0) {
+				continue;
+			}
+
+			if (fileId < 1 || fileId > Constants.MAX_DFILES) {
+				throw new IllegalStateException("Invalid DFileId value of: " + fileId);
+			}
+			int fileSize = buf.getInt(inode + Constants.INODE_FILE_SIZE);
+			boolean inline = (buf.getInt(inode + Constants.INODE_FLAGS) & Constants.INODE_FLAG_INLINE) != 0;
+			if (fileSize < 0 || fileSize > (inline ? Constants.INODE_INLINE_SIZE : Constants.MAX_FILE_SIZE)) {
+				throw new IllegalStateException("Invalid File Size");
+			}
+			int indirect = inline ? 0 : indirectBlocksFor(fileSize);
+			List<Integer> indirectBlocks = new ArrayList<>();
+			for (int j = 0; j < Math.min(indirect, Constants.INODE_INDIRECT_SLOTS); j++) {
+				indirectBlocks.add(buf.getInt(inode + Constants.POSITION_INDIRECT_BLOCK_REGION + j));
+			}
+			DFile file = new DFile(fileId, fileSize, buf.getBlockID(), firstSlot + i);
+			if ((buf.getInt(inode + Constants.INODE_FLAGS) & Constants.INODE_FLAG_NAMED) != 0)
+				file.setNamed(true);
+			if ((buf.getInt(inode + Constants.INODE_FLAGS) & Constants.INODE_FLAG_SHARED) != 0)
+				file.setShared(true);
+			if (inline) {
+				byte[] data = new byte[fileSize];
+				buf.read(i * Constants.INODE_SIZE + Constants.INODE_INLINE_DATA, data, 0, fileSize);
+				file.setInline(true);
+				file.writeInline(0, ByteBuffer.wrap(data), fileSize);
+			}
+			file.setIndirectBlocks(indirectBlocks);
+			readPointerBlocks(file, indirect, buf.getInt(inode + Constants.INODE_DOUBLE_INDIRECT),
+					buf.getInt(inode + Constants.INODE_TRIPLE_INDIRECT));
+			file.setMapped();
+			if (!_files.claimId(fileId)) {
+				throw new IllegalStateException("One Inode should only map to one file");
+			}
+			_inodes.claim(firstSlot + i);
+			_files.put(file);
+		}
+	}
+
+	/**
+	 * Appends to the indirect blocks of a file the ones held by its double and
+	 * triple indirect blocks, during initialization. The file has one indirect
+	 * block for every INTS_IN_BLOCK blocks of its size, holes included, so the
+	 * number of entries to read is known from the size alone
+	 *
+	 * @param indirect
+	 *            the number of indirect blocks of the file
+	 */
+	private void readPointerBlocks(DFile file, int indirect, int doubleIndirect, int tripleIndirect) {
+		int remaining = indirect - Constants.INODE_INDIRECT_SLOTS;
+		if (remaining <= 0)
+			return;
+		if (doubleIndirect == 0)
+			throw new IllegalStateException("Missing double indirect block.");
+		file.setDoubleIndirectBlock(doubleIndirect);
+		file.getIndirectBlocks().addAll(readPointers(doubleIndirect, Math.min(remaining, Constants.INTS_IN_BLOCK)));
+		remaining -= Constants.INTS_IN_BLOCK;
+		if (remaining <= 0)
+			return;
+		if (tripleIndirect == 0)
+			throw new IllegalStateException("Missing triple indirect block.");
+		file.setTripleIndirectBlock(tripleIndirect);
+		int children = (remaining + Constants.INTS_IN_BLOCK - 1) / Constants.INTS_IN_BLOCK;
+		for (int child : readPointers(tripleIndirect, children)) {
+			if (child == 0)
+				throw new IllegalStateException("Missing indirect block.");
+			file.getTripleChildren().add(child);
+			file.getIndirectBlocks().addAll(readPointers(child, Math.min(remaining, Constants.INTS_IN_BLOCK)));
+			remaining -= Constants.INTS_IN_BLOCK;
+		}
+	}
+
+	/**
+	 * @return the first count block ids held by a block pointing to indirect
+	 *         blocks. An entry of 0 is a hole
+	 */
+	private List<Integer> readPointers(int blockID, int count) {
+		if (!isDataBlock(blockID))
+			throw new IllegalStateException("Invalid block index.");
+		DBuffer dbuffer = getValidBlock(blockID);
+		List<Integer> blockIDs = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			blockIDs.add(dbuffer.getInt(i));
+		}
+		_cache.releaseBlock(dbuffer);
+		for (int j : blockIDs) {
+			if (j != 0 && !isDataBlock(j))
+				throw new IllegalStateException("Invalid block index.");
+		}
+		return blockIDs;
+	}
+
+	/**
+	 * Checks consistency of the files and finds the used blocks. The indirect
+	 * blocks of every file are fetched at once, then the files are checked in
+	 * parallel on the common fork-join pool:
+	 * -> Checks that every block id is within the data region
+	 * -> Checks that no block is mapped twice, by one file or by two files,
+	 * nor mapped by a file while it belongs to the inode table or the name
+	 * index
+	 */
+	private void checkFileConsistency() {
+		List<DFile> files = _files.files();
+		List<Integer> indirectBlocks = new ArrayList<>();
+		for (DFile file : files) {
+			for (int i : file.getIndirectBlocks()) {
+				if (i == 0)
+					continue;
+				if (!isDataBlock(i))
+					throw new IllegalStateException("Invalid block index.");
+				indirectBlocks.add(i);
+			}
+		}
+		// Cache them a window at a time, the checks fetch any evicted since
+		for (int from = 0; from < indirectBlocks.size(); from += PREFETCH_WINDOW) {
+			int to = Math.min(indirectBlocks.size(), from + PREFETCH_WINDOW);
+			for (DBuffer dbuffer : prefetchBlocks(indirectBlocks.subList(from, to))) {
+				dbuffer.waitValid();
+				_cache.releaseBlock(dbuffer);
+			}
+		}
+
+		final AtomicBitmap owned = new AtomicBitmap(Constants.NUM_OF_BLOCKS);
+		for (int i : _inodes.tableBlocks()) {
+			owned.claim(i);
+		}
+		for (int i : _names.blocks()) {
+			owned.claim(i);
+		}
+		for (int i : _refs.blocks()) {
+			owned.claim(i);
+		}
+		files.parallelStream().forEach(file -> checkFile(file, owned));
+
+		BitSet used = new BitSet(Constants.NUM_OF_BLOCKS);
+		for (int i = 0; i < Constants.NUM_OF_BLOCKS; i++) {
+			if (owned.isTaken(i))
+				used.set(i);
+		}
+		_cache.setUsedBlocks(used);
+	}
+
+	/**
+	 * Checks the blocks mapped by one file, claiming each of them in owned.
+	 * Its indirect blocks are expected to be cached. A block another file
+	 * claimed first is fine if it is shared, or sits under a shared block,
+	 * and the blocks under it are left to that file
+	 */
+	private void checkFile(DFile file, AtomicBitmap owned) {
+		int doubleIndirect = file.getDoubleIndirectBlock();
+		int triple = file.getTripleIndirectBlock();
+		boolean tripleShared = triple != 0 && _refs.count(triple) > 0;
+		if (triple != 0)
+			claim(owned, triple, false);
+		if (doubleIndirect != 0)
+			claim(owned, doubleIndirect, false);
+		List<Integer> children = file.getTripleChildren();
+		for (int i : children) {
+			claim(owned, i, tripleShared);
+		}
+		List<Integer> indirectBlocks = file.getIndirectBlocks();
+		for (int index = 0; index < indirectBlocks.size(); index++) {
+			int i = indirectBlocks.get(index);
+			if (i == 0)
+				continue;
+			boolean underShared = false;
+			int j = index - Constants.INODE_INDIRECT_SLOTS;
+			if (j >= Constants.INTS_IN_BLOCK) {
+				j -= Constants.INTS_IN_BLOCK;
+				underShared = tripleShared || _refs.count(children.get(j / Constants.INTS_IN_BLOCK)) > 0;
+			} else if (j >= 0) {
+				underShared = _refs.count(doubleIndirect) > 0;
+			}
+			if (!claim(owned, i, underShared))
+				continue;
+			DBuffer indirectBlock = getValidBlock(i);
+			int[] dataBlocks = new int[Constants.INTS_IN_BLOCK];
+			for (int k = 0; k < Constants.INTS_IN_BLOCK; k++) {
+				dataBlocks[k] = indirectBlock.getInt(k);
+			}
+			_cache.releaseBlock(indirectBlock);
+			for (int dataBlockId : dataBlocks) {
+				if (dataBlockId == 0)
+					continue;
+				if (!isDataBlock(dataBlockId))
+					throw new IllegalStateException("Invalid block index.");
+				claim(owned, dataBlockId, false);
+			}
+		}
+	}
+
+	/**
+	 * Claims a block mapped by a file in owned
+	 * 
+	 * @param underShared
+	 *            whether the block sits under a shared block
+	 * @return false if the block was claimed by another file first, as it may
+	 *         be when it is shared
+	 */
+	private boolean claim(AtomicBitmap owned, int blockID, boolean underShared) {
+		if (owned.claim(blockID))
+			return true;
+		if (underShared || _refs.count(blockID) > 0)
+			return false;
+		throw new IllegalStateException("One block should only be mapped by one file.");
+	}
+
+	/**
+	 * @return true if blockID lies past the inode region and within the disk
+	 */
+	static boolean isDataBlock(int blockID) {
+		return blockID > Constants.INODE_REGION_SIZE && blockID < Constants.JOURNAL_REGION_START;
 	}
 }
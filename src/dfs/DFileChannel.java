@@ -0,0 +1,179 @@
+package dfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import common.Constants;
+import common.DFileID;
+
+/**
+ * A channel over a DFile. It keeps its own cursor into the file and moves
+ * data block by block through the cache, so a file can be streamed without
+ * holding all of it in memory. Bytes can also be moved straight between the
+ * file and another channel, which may be a channel over another DFile
+ */
+public class DFileChannel implements SeekableByteChannel {
+
+	/**
+	 * Bytes moved per round by transferTo and transferFrom
+	 */
+	private static final int TRANSFER_SIZE = 64 * Constants.BLOCK_SIZE;
+
+	private DFSImpl _dfs;
+	private DFileID _dFID;
+	private long _position;
+	private boolean _isOpen;
+
+	DFileChannel(DFSImpl dfs, DFileID dFID) {
+		_dfs = dfs;
+		_dFID = dFID;
+		_position = 0;
+		_isOpen = true;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int read = read(dst, _position);
+		if (read > 0)
+			_position += read;
+		return read;
+	}
+
+	/**
+	 * Reads from the file starting at position without moving the cursor
+	 *
+	 * @return the number of bytes read, or -1 if position is at or past the
+	 *         end of the file
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		ensureOpen();
+		int read = _dfs.read(_dFID, position, dst);
+		if (read == Constants.DBUFFER_ERROR)
+			throw new IOException("Could not read DFile " + _dFID);
+		if (read == 0 && dst.hasRemaining())
+			return -1;
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = write(src, _position);
+		_position += written;
+		return written;
+	}
+
+	/**
+	 * Writes to the file starting at position without moving the cursor
+	 *
+	 * @return the number of bytes written
+	 */
+	public int write(ByteBuffer src, long position) throws IOException {
+		ensureOpen();
+		if (!src.hasRemaining())
+			return 0;
+		int written = _dfs.write(_dFID, position, src);
+		if (written == Constants.DBUFFER_ERROR)
+			throw new IOException("Could not write DFile " + _dFID);
+		return written;
+	}
+
+	@Override
+	public long position() throws IOException {
+		ensureOpen();
+		return _position;
+	}
+
+	@Override
+	public DFileChannel position(long newPosition) {
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		_position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return _dfs.sizeDFile(_dFID);
+	}
+
+	@Override
+	public DFileChannel truncate(long size) throws IOException {
+		ensureOpen();
+		if (size < 0)
+			throw new IllegalArgumentException("Negative size " + size);
+		// A channel never grows its file on truncate
+		if (size < _dfs.sizeDFile(_dFID))
+			_dfs.truncate(_dFID, size);
+		if (_position > size)
+			_position = size;
+		return this;
+	}
+
+	/**
+	 * Moves up to count bytes of the file, starting at position, into target.
+	 * The cursor of this channel is not moved
+	 *
+	 * @return the number of bytes transferred
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureOpen();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, Math.max(count, 0)));
+		long transferred = 0;
+		while (transferred < count) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+			int read = read(buffer, position + transferred);
+			if (read <= 0)
+				break;
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			transferred += read;
+		}
+		return transferred;
+	}
+
+	/**
+	 * Moves up to count bytes from src into the file, starting at position.
+	 * The cursor of this channel is not moved
+	 *
+	 * @return the number of bytes transferred
+	 */
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		ensureOpen();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, Math.max(count, 0)));
+		long transferred = 0;
+		while (transferred < count) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+			if (src.read(buffer) <= 0)
+				break;
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				transferred += write(buffer, position + transferred);
+			}
+		}
+		return transferred;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return _isOpen;
+	}
+
+	@Override
+	public void close() {
+		_isOpen = false;
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!_isOpen)
+			throw new ClosedChannelException();
+	}
+}
@@ -0,0 +1,137 @@
+package dfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Constants;
+
+/**
+ * The index of the deduplicated blocks: the hash of the content of every data
+ * block held by the index, see RefCounts, and the blocks written since the
+ * last pass of DFSImpl over them. A block written with the same content as a
+ * block of the index is mapped to that block instead, and freed.
+ *
+ * The hash only picks a candidate, whose bytes are compared before it is
+ * used, so it need not resist collisions and is chosen to be fast. The index
+ * is kept in memory: after a remount the blocks indexed before are left
+ * shared as they are, and only the blocks written since are matched.
+ */
+class Dedup {
+
+	private final DFSImpl _dfs;
+
+	private volatile boolean _enabled;
+
+	/* Guarded by the lock of RefCounts */
+	private final Map<Long, Integer> _blocks = new HashMap<>();
+	private final Map<Integer, Long> _hashes = new HashMap<>();
+
+	/**
+	 * The slots written since the last pass, by file id
+	 */
+	private final ConcurrentHashMap<Integer, BitSet> _written = new ConcurrentHashMap<>();
+
+	Dedup(DFSImpl dfs) {
+		_dfs = dfs;
+	}
+
+	boolean isEnabled() {
+		return _enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		_enabled = enabled;
+		if (!enabled)
+			_written.clear();
+	}
+
+	/**
+	 * Records that the blocks first to last - 1 of a file were written
+	 */
+	void written(int fileID, int first, int last) {
+		if (!_enabled || first >= last)
+			return;
+		_written.compute(fileID, (id, slots) -> {
+			if (slots == null)
+				slots = new BitSet();
+			slots.set(first, last);
+			return slots;
+		});
+	}
+
+	/**
+	 * @return the slots written since the last call, by file id
+	 */
+	Map<Integer, BitSet> drain() {
+		Map<Integer, BitSet> written = new HashMap<>();
+		for (Integer fileID : _written.keySet()) {
+			BitSet slots = _written.remove(fileID);
+			if (slots != null)
+				written.put(fileID, slots);
+		}
+		return written;
+	}
+
+	/**
+	 * @return a block of the index holding data, or 0. Called holding the
+	 *         lock of RefCounts
+	 */
+	int find(byte[] data) {
+		Integer blockID = _blocks.get(hash(data));
+		if (blockID == null)
+			return 0;
+		byte[] indexed = new byte[Constants.BLOCK_SIZE];
+		_dfs.readValidBlock(blockID, 0, indexed, 0, Constants.BLOCK_SIZE);
+		return Arrays.equals(data, indexed) ? blockID : 0;
+	}
+
+	/**
+	 * Adds blockID, holding data, to the index. Called holding the lock of
+	 * RefCounts
+	 */
+	void add(int blockID, byte[] data) {
+		long hash = hash(data);
+		Integer previous = _blocks.put(hash, blockID);
+		if (previous != null)
+			_hashes.remove(previous);
+		_hashes.put(blockID, hash);
+	}
+
+	/**
+	 * Drops blockID from the index, once it is no longer held by it. Called
+	 * holding the lock of RefCounts
+	 */
+	void forget(int blockID) {
+		Long hash = _hashes.remove(blockID);
+		if (hash != null)
+			_blocks.remove(hash, blockID);
+	}
+
+	/**
+	 * @return true if every byte of data is 0
+	 */
+	static boolean isZero(byte[] data) {
+		for (byte b : data) {
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A multiply and rotate hash over the block read as longs
+	 */
+	static long hash(byte[] data) {
+		ByteBuffer words = ByteBuffer.wrap(data);
+		long hash = 0x9E3779B97F4A7C15L;
+		while (words.remaining() >= Long.BYTES) {
+			long word = words.getLong();
+			hash = Long.rotateLeft(hash ^ word * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+		}
+		return hash ^ hash >>> 29;
+	}
+}
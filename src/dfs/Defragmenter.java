@@ -0,0 +1,373 @@
+package dfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import common.Constants;
+import common.DFile;
+import dblockcache.DBuffer;
+
+/**
+ * Moves the data blocks of fragmented files into contiguous runs in the
+ * background while the volume is in use. Each pass walks the indirect blocks
+ * of every file, and the data blocks under an indirect block that are not one
+ * run are copied into a run of free blocks, placed right after the blocks
+ * under the indirect block before it when there is room there. The switch
+ * from the old blocks to the copies is one transaction taken under the write
+ * lock of the file, see DFSImpl.relocateBlocks. Files that may share blocks
+ * with clones or with the index of deduplicated blocks are left as they are.
+ *
+ * A file is fragmented into extents, the runs of consecutive blocks its data
+ * blocks make in the order it maps them, holes aside. Every pass counts them
+ * before and after the blocks it moves, for the whole volume.
+ *
+ * Like the scrubber, the defragmenter is throttled to a number of blocks per
+ * second, and the blocks it reads go to the background queue of the disk
+ * before any lock is taken, so a file is only locked while blocks already
+ * cached are copied
+ */
+public class Defragmenter implements Runnable {
+
+	/**
+	 * How fragmented the files of the volume are
+	 */
+	public static class Fragmentation {
+		private final int _files;
+		private final int _fragmentedFiles;
+		private final long _blocks;
+		private final long _extents;
+
+		Fragmentation(int files, int fragmentedFiles, long blocks, long extents) {
+			_files = files;
+			_fragmentedFiles = fragmentedFiles;
+			_blocks = blocks;
+			_extents = extents;
+		}
+
+		/**
+		 * @return the number of files holding data blocks
+		 */
+		public int getFiles() {
+			return _files;
+		}
+
+		/**
+		 * @return the number of files whose data blocks are more than one
+		 *         extent
+		 */
+		public int getFragmentedFiles() {
+			return _fragmentedFiles;
+		}
+
+		public long getBlocks() {
+			return _blocks;
+		}
+
+		public long getExtents() {
+			return _extents;
+		}
+
+		/**
+		 * @return the mean number of extents of a file, 1 for a volume with
+		 *         no fragmented file
+		 */
+		public double getExtentsPerFile() {
+			return _files == 0 ? 1 : (double) _extents / _files;
+		}
+
+		@Override
+		public String toString() {
+			return _files + " files, " + _fragmentedFiles + " fragmented, " + _blocks + " blocks in " + _extents
+					+ " extents";
+		}
+	}
+
+	/**
+	 * Milliseconds between the end of a pass and the start of the next. Files
+	 * fragment slowly, so passes are far apart
+	 */
+	private static final long PASS_INTERVAL = 10000;
+
+	private DFSImpl _dfs;
+	private long _blockDelay;
+	private boolean _running;
+	private Thread _thread;
+
+	private final AtomicLong _passes = new AtomicLong();
+	private final AtomicLong _filesDefragmented = new AtomicLong();
+	private final AtomicLong _blocksMoved = new AtomicLong();
+
+	/* The fragmentation before and after the last pass */
+	private volatile Fragmentation _before;
+	private volatile Fragmentation _after;
+
+	/**
+	 * @param blocksPerSecond
+	 *            the most blocks read and moved per second, 0 for no limit
+	 */
+	Defragmenter(DFSImpl dfs, int blocksPerSecond) {
+		_dfs = dfs;
+		_blockDelay = blocksPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / blocksPerSecond : 0;
+	}
+
+	synchronized void start() {
+		_running = true;
+		_thread = new Thread(this, "DFS defragmenter");
+		_thread.setDaemon(true);
+		_thread.setPriority(Thread.MIN_PRIORITY);
+		_thread.start();
+	}
+
+	/**
+	 * Stops the defragmenter and waits for the blocks being moved to be
+	 * switched over
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			_running = false;
+			notifyAll();
+			thread = _thread;
+		}
+		if (thread == null || thread == Thread.currentThread())
+			return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return _running;
+	}
+
+	public long getPasses() {
+		return _passes.get();
+	}
+
+	public long getFilesDefragmented() {
+		return _filesDefragmented.get();
+	}
+
+	public long getBlocksMoved() {
+		return _blocksMoved.get();
+	}
+
+	/**
+	 * @return the fragmentation of the volume as the last pass found it, or
+	 *         null before the first pass is over
+	 */
+	public Fragmentation getBefore() {
+		return _before;
+	}
+
+	/**
+	 * @return the fragmentation of the volume as the last pass left it, or
+	 *         null before the first pass is over
+	 */
+	public Fragmentation getAfter() {
+		return _after;
+	}
+
+	@Override
+	public void run() {
+		while (isRunning()) {
+			if (defragment())
+				_passes.incrementAndGet();
+			pause(TimeUnit.MILLISECONDS.toNanos(PASS_INTERVAL));
+		}
+	}
+
+	/**
+	 * Runs one pass over the files of the volume
+	 *
+	 * @return false if the defragmenter was stopped before the pass was over
+	 */
+	private boolean defragment() {
+		// [0] and [1] hold the files, fragmented files, blocks and extents before and after
+		long[][] counts = new long[2][4];
+		for (DFile file : _dfs._files.files()) {
+			if (!isRunning())
+				return false;
+			defragment(file, counts);
+		}
+		_before = new Fragmentation((int) counts[0][0], (int) counts[0][1], counts[0][2], counts[0][3]);
+		_after = new Fragmentation((int) counts[1][0], (int) counts[1][1], counts[1][2], counts[1][3]);
+		return true;
+	}
+
+	/**
+	 * Moves the blocks of one file, one indirect block at a time, and adds
+	 * its extents before and after to counts
+	 */
+	private void defragment(DFile file, long[][] counts) {
+		List<Integer> indirectBlocks;
+		Lock lock = file.getLock().readLock();
+		lock.lock();
+		try {
+			if (_dfs._files.get(file.getFileId()) != file || file.isInline())
+				return;
+			indirectBlocks = new ArrayList<>(file.getIndirectBlocks());
+		} finally {
+			lock.unlock();
+		}
+
+		// [0] and [1] hold the last block, blocks and extents before and after
+		long[][] extents = new long[2][3];
+		boolean moved = false;
+		for (int index = 0; index < indirectBlocks.size(); index++) {
+			if (!isRunning())
+				return;
+			int indirectBlock = indirectBlocks.get(index);
+			if (indirectBlock == 0)
+				continue;
+			int[] entries = readEntries(file, index, indirectBlock);
+			scanned(1);
+			if (entries == null)
+				continue;
+			count(entries, extents[0]);
+			if (countRuns(entries) > 1) {
+				prefetch(entries);
+				int near = extents[1][0] == 0 ? 0 : (int) extents[1][0] + 1;
+				int n = _dfs.relocateBlocks(file, index, near);
+				if (n > 0) {
+					moved = true;
+					_blocksMoved.addAndGet(n);
+					scanned(n);
+					int[] after = readEntries(file, index, indirectBlock);
+					entries = after == null ? entries : after;
+				}
+			}
+			count(entries, extents[1]);
+		}
+		if (moved)
+			_filesDefragmented.incrementAndGet();
+		for (int i = 0; i < 2; i++) {
+			if (extents[i][1] == 0)
+				continue;
+			counts[i][0]++;
+			if (extents[i][2] > 1)
+				counts[i][1]++;
+			counts[i][2] += extents[i][1];
+			counts[i][3] += extents[i][2];
+		}
+	}
+
+	/**
+	 * Copies the entries of the index-th indirect block of a file, fetched
+	 * with no lock held and copied under the read lock of the file
+	 *
+	 * @return the entries, or null if the file changed meanwhile
+	 */
+	private int[] readEntries(DFile file, int index, int indirectBlock) {
+		DBuffer dbuffer = fetch(indirectBlock);
+		if (dbuffer == null)
+			return null;
+		int[] entries = new int[Constants.INTS_IN_BLOCK];
+		Lock lock = file.getLock().readLock();
+		lock.lock();
+		try {
+			List<Integer> indirectBlocks = file.getIndirectBlocks();
+			if (_dfs._files.get(file.getFileId()) != file || index >= indirectBlocks.size()
+					|| indirectBlocks.get(index) != indirectBlock)
+				return null;
+			for (int i = 0; i < Constants.INTS_IN_BLOCK; i++) {
+				entries[i] = dbuffer.getInt(i);
+			}
+			return entries;
+		} finally {
+			lock.unlock();
+			_dfs._cache.releaseBlock(dbuffer);
+		}
+	}
+
+	/**
+	 * Adds the data blocks among entries to extents, which holds the last
+	 * block seen, the blocks and the extents of the file so far
+	 */
+	private static void count(int[] entries, long[] extents) {
+		for (int blockID : entries) {
+			if (blockID == 0)
+				continue;
+			if (blockID != extents[0] + 1)
+				extents[2]++;
+			extents[0] = blockID;
+			extents[1]++;
+		}
+	}
+
+	/**
+	 * @return the number of runs of consecutive blocks among entries
+	 */
+	private static int countRuns(int[] entries) {
+		long[] extents = new long[3];
+		extents[0] = -1;
+		count(entries, extents);
+		return (int) extents[2];
+	}
+
+	/**
+	 * Reads the data blocks among entries at background priority, all at
+	 * once, so that they are cached before the file is locked to copy them
+	 */
+	private void prefetch(int[] entries) {
+		List<DBuffer> dbuffers = new ArrayList<>();
+		for (int blockID : entries) {
+			DBuffer dbuffer = blockID == 0 ? null : _dfs._cache.getBlockInBackground(blockID);
+			if (dbuffer == null)
+				continue;
+			if (!dbuffer.checkValid() && !dbuffer.isBusy())
+				dbuffer.startBackgroundFetch();
+			dbuffers.add(dbuffer);
+		}
+		for (DBuffer dbuffer : dbuffers) {
+			dbuffer.waitValid();
+			_dfs._cache.releaseBlock(dbuffer);
+		}
+	}
+
+	/**
+	 * Gets a valid block from the cache, reading it at background priority.
+	 * The buffer is held until released
+	 *
+	 * @return the buffer, or null if the block is free
+	 */
+	private DBuffer fetch(int blockID) {
+		DBuffer dbuffer = _dfs._cache.getBlockInBackground(blockID);
+		if (dbuffer == null)
+			return null;
+		if (!dbuffer.checkValid()) {
+			if (!dbuffer.isBusy())
+				dbuffer.startBackgroundFetch();
+			dbuffer.waitValid();
+		}
+		return dbuffer;
+	}
+
+	/**
+	 * Sleeps long enough to keep to the block rate after n blocks were read
+	 * or moved
+	 */
+	private void scanned(int n) {
+		pause(_blockDelay * n);
+	}
+
+	/**
+	 * Sleeps for up to nanos, returning early if the defragmenter is stopped
+	 */
+	private synchronized void pause(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		while (_running && nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			} catch (InterruptedException e) {
+				return;
+			}
+			nanos = deadline - System.nanoTime();
+		}
+	}
+}
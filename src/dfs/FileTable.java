@@ -0,0 +1,143 @@
+package dfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import common.DFile;
+
+/**
+ * This class holds the open DFiles of the DFS, indexed by their id. Lookups
+ * go straight to a slot of an array and ids are handed out from a bitmap of
+ * free ids, both updated with atomic operations, so creating, finding and
+ * destroying files never takes a global lock and can happen concurrently
+ * with reads and writes
+ *
+ * Ids go from 1 to the capacity of the table, 0 is never a valid id. The
+ * slots are allocated in segments the first time a file is put in them, and
+ * freed ids are handed out again before new ones, so the memory taken and the
+ * time to list the files grow with the files in the table rather than with
+ * its capacity
+ */
+class FileTable {
+
+	private static final int SEGMENT_SIZE = 1024;
+
+	private final int _capacity;
+
+	/**
+	 * Slot i % SEGMENT_SIZE of segment i / SEGMENT_SIZE holds the file with
+	 * id i, or null if there is none. A segment no file was ever put in is
+	 * null
+	 */
+	private final AtomicReferenceArray<AtomicReferenceArray<DFile>> _segments;
+
+	/**
+	 * Entry i is taken when id i + 1 is taken
+	 */
+	private final AtomicBitmap _usedIds;
+
+	private final AtomicInteger _size = new AtomicInteger();
+
+	FileTable(int capacity) {
+		_capacity = capacity;
+		_segments = new AtomicReferenceArray<>(capacity / SEGMENT_SIZE + 1);
+		_usedIds = new AtomicBitmap(capacity);
+	}
+
+	/**
+	 * @return the file with the given id, or null if there is none
+	 */
+	DFile get(int fileID) {
+		if (fileID < 1 || fileID > _capacity)
+			return null;
+		AtomicReferenceArray<DFile> segment = _segments.get(fileID / SEGMENT_SIZE);
+		return segment == null ? null : segment.get(fileID % SEGMENT_SIZE);
+	}
+
+	/**
+	 * Takes a free id. The id is reserved but no file is visible under it
+	 * until put is called
+	 *
+	 * @return the id taken, or -1 if the table is full
+	 */
+	int allocateId() {
+		int index = _usedIds.allocate();
+		return index == -1 ? -1 : index + 1;
+	}
+
+	/**
+	 * Reserves a specific id, used when loading the files of the volume
+	 *
+	 * @return false if the id was already taken
+	 */
+	boolean claimId(int fileID) {
+		return _usedIds.claim(fileID - 1);
+	}
+
+	/**
+	 * Frees an id that was reserved but never used by put
+	 */
+	void releaseId(int fileID) {
+		_usedIds.release(fileID - 1);
+	}
+
+	/**
+	 * Makes file visible under its id, which must have been reserved with
+	 * allocateId or claimId
+	 */
+	void put(DFile file) {
+		int fileID = file.getFileId();
+		AtomicReferenceArray<DFile> segment = _segments.get(fileID / SEGMENT_SIZE);
+		if (segment == null) {
+			_segments.compareAndSet(fileID / SEGMENT_SIZE, null, new AtomicReferenceArray<>(SEGMENT_SIZE));
+			segment = _segments.get(fileID / SEGMENT_SIZE);
+		}
+		if (segment.getAndSet(fileID % SEGMENT_SIZE, file) == null)
+			_size.incrementAndGet();
+	}
+
+	/**
+	 * Removes the file with the given id and makes the id free again
+	 *
+	 * @return the file removed, or null if there was none
+	 */
+	DFile remove(int fileID) {
+		if (fileID < 1 || fileID > _capacity)
+			return null;
+		AtomicReferenceArray<DFile> segment = _segments.get(fileID / SEGMENT_SIZE);
+		DFile file = segment == null ? null : segment.getAndSet(fileID % SEGMENT_SIZE, null);
+		if (file == null)
+			return null;
+		_size.decrementAndGet();
+		_usedIds.release(fileID - 1);
+		return file;
+	}
+
+	/**
+	 * @return a snapshot of the files in the table, in id order
+	 */
+	List<DFile> files() {
+		List<DFile> files = new ArrayList<>(_size.get());
+		for (int s = 0; s < _segments.length(); s++) {
+			AtomicReferenceArray<DFile> segment = _segments.get(s);
+			if (segment == null)
+				continue;
+			for (int i = 0; i < SEGMENT_SIZE; i++) {
+				DFile file = segment.get(i);
+				if (file != null)
+					files.add(file);
+			}
+		}
+		return files;
+	}
+
+	int size() {
+		return _size.get();
+	}
+
+	boolean isEmpty() {
+		return _size.get() == 0;
+	}
+}
@@ -1,10 +1,6 @@
 package dfs;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -19,6 +15,20 @@ import dblockcache.DBuffer;
  * the basic size parameters are altered, inode will still be able to map a file
  * properly
  * 
+ * The inode itself holds the ids of the first INODE_INDIRECT_SLOTS indirect
+ * blocks. The ids of the next ones are held by a double indirect block, and
+ * after those by the blocks a triple indirect block points to. All the
+ * indirect blocks are kept in order in a list, so the block holding any slot
+ * of the file is found without reading the blocks above it
+ * 
+ * A file may have holes: blocks that were never written read as zeros and
+ * have an id of 0 in the indirect block holding them. An indirect block whose
+ * blocks are all holes is a hole itself, with an id of 0 in the list
+ * 
+ * A file of up to INODE_INLINE_SIZE bytes is kept inline: its data is held
+ * by the inode itself, past the block pointers, and it maps no block. Bytes of
+ * the inline area past the size of the file are always zero
+ * 
  * @author henriquemoraes
  * 
  */
@@ -28,6 +38,12 @@ public class Inode {
 	private byte[] _buffer;
 	private boolean _isMapped;
 	private List<Integer> _indirectBlocks;
+	private int _doubleIndirectBlock;
+	private int _tripleIndirectBlock;
+	private List<Integer> _tripleChildren;
+	private boolean _isInline;
+	private boolean _isNamed;
+	private boolean _isShared;
 
 	private int _numOfIndirectBlocks;
 
@@ -35,114 +51,173 @@ public class Inode {
 	    System.out.println("Creating file with id "+fileID+" and size "+size);
 		_isMapped = false;
 		_FID = fileID;
-		setSize(size);
 		_buffer = new byte[Constants.INODE_SIZE];
 		_indirectBlocks = new ArrayList<>();
-
-		byte[] someMetadata = writeInts(_FID, _fileSize);
-		ByteBuffer wrapped = ByteBuffer.wrap(someMetadata); // big-endian by default
-		System.out.println("Metadata found id: "+wrapped.getInt()+" and size "+wrapped.getInt());
-		_buffer = Arrays.copyOfRange(someMetadata, 0, Constants.INODE_SIZE);
+		_tripleChildren = new ArrayList<>();
+		putInt(Constants.INODE_FID, _FID);
+		setSize(size);
 	}
 
 	/**
-	 * Populates indirect blocks with block ids that constitute a file Note,
-	 * this method assumes the whole file is mapped in one call It also
-	 * automatically indexes indirect blocks
+	 * Clears count slots of the indirect blocks starting at slot firstSlot of
+	 * the file, used when a file shrinks
 	 * 
 	 * @param indirectBlocks
-	 *            the buffers corresponding to this inode's that point to
-	 *            indirect blocks
-	 * @param blocksInFile
-	 *            list of blocks that contain file data that should be mapped by
-	 *            this inode
-	 * @return true upon a successful mapping
-	 */
-	public boolean mapFile(List<DBuffer> indirectBlocks, List<Integer> blocksInFile) {
-		if (indirectBlocks.size() != _numOfIndirectBlocks) {
-			System.out.println("List of indirect blocks does not match the size from this inode");
-			return false;
-		} else if ((double) blocksInFile.size() / Constants.INTS_IN_BLOCK > indirectBlocks.size()) {
-			System.out.println("Blocks to write is greater than what indirect blocks can map");
-			return false;
-		}
-
-		int subListStart = 0;
-		int listSize = blocksInFile.size();
-		_indirectBlocks.clear();
-
-		for (DBuffer buf : indirectBlocks) {
-			_indirectBlocks.add(buf.getBlockID());
-			byte[] result = null;
-
-			if (listSize - subListStart > Constants.INTS_IN_BLOCK) {
-				result = writeInts(blocksInFile.subList(subListStart, subListStart + Constants.INTS_IN_BLOCK));
-			} else {
-				result = writeInts(blocksInFile.subList(subListStart, listSize));
-			}
-			ByteBuffer bytes = ByteBuffer.wrap(result);
-			System.out.println("result has length "+result.length+" and numbers "+bytes.getInt()+" "+bytes.getInt());
-			buf.write(result, 0, result.length);
-			subListStart += Constants.INTS_IN_BLOCK;
+	 *            the buffers of this inode's indirect blocks, starting with
+	 *            the one that holds firstSlot
+	 */
+	public void unmapBlocks(List<DBuffer> indirectBlocks, int firstSlot, int count) {
+		int firstIndirect = firstSlot / Constants.INTS_IN_BLOCK;
+		for (int slot = firstSlot; slot < firstSlot + count; slot++) {
+			DBuffer buf = indirectBlocks.get(slot / Constants.INTS_IN_BLOCK - firstIndirect);
+			buf.putInt(slot % Constants.INTS_IN_BLOCK, 0);
 		}
+	}
 
-		byte[] moreMetadata = writeInts(_indirectBlocks);
-		byte[] size = ByteBuffer.allocate(4).putInt(_fileSize).array();
-		for(int i=4; i<8; i++) {
-			_buffer[i]=size[i-4];
-		}
-		//_buffer = Arrays.copyOfRange(moreMetadata, Constants.INODE_DATA_INDEX, Constants.INODE_SIZE);
-		for(int i=0; i<(Constants.INODE_SIZE-Constants.BYTES_PER_INT*Constants.INODE_DATA_INDEX); i++) {
-			_buffer[i+Constants.BYTES_PER_INT*Constants.INODE_DATA_INDEX]=moreMetadata[i];
-		}
-		ByteBuffer bytes = ByteBuffer.wrap(_buffer);
-		IntBuffer ints = bytes.asIntBuffer();
-		System.out.println("elements mapped directly to buffer: ");
-		while(ints.hasRemaining()){
-		    System.out.print(" "+ints.get());
-		}
-		System.out.println("");
+	/**
+	 * Appends an indirect block to this inode. Only the first
+	 * INODE_INDIRECT_SLOTS are recorded in the metadata, the id of any other
+	 * must be written by the caller into the block that holds it
+	 */
+	public void addIndirectBlock(int blockID) {
+		_indirectBlocks.add(blockID);
+		if (_indirectBlocks.size() <= Constants.INODE_INDIRECT_SLOTS)
+			putInt(Constants.POSITION_INDIRECT_BLOCK_REGION + _indirectBlocks.size() - 1, blockID);
 		_isMapped = true;
-		return true;
 	}
 
 	/**
-	 * Creates a byte array with the given integers
-	 * 
-	 * @param ints
-	 * @return
+	 * Sets the id of the index-th indirect block of this inode, recorded in
+	 * the metadata if it is one of the first INODE_INDIRECT_SLOTS
 	 */
-	private byte[] writeInts(int... ints) {
-		List<Integer> list = new ArrayList<>();
-		for (Integer i : ints) {
-			list.add(i);
-		}
-		return writeInts(list);
+	public void setIndirectBlock(int index, int blockID) {
+		_indirectBlocks.set(index, blockID);
+		if (index < Constants.INODE_INDIRECT_SLOTS)
+			putInt(Constants.POSITION_INDIRECT_BLOCK_REGION + index, blockID);
 	}
 
 	/**
-	 * Creates a byte array with the given list of integers
+	 * Drops the last indirect block of this inode
 	 * 
-	 * @param ints
-	 * @return
-	 */
-	private byte[] writeInts(List<Integer> ints) {
-		byte[] result = new byte[Constants.BLOCK_SIZE];
-		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			DataOutputStream dos = new DataOutputStream(bos);
-			for (int i : ints) {
-				dos.writeInt(i);
-			}
-			dos.close();
-			// Create a new byte array of the correct size
-			ByteBuffer bb = ByteBuffer.wrap(result);
-			bb.put(bos.toByteArray());
-			return bb.array();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		return null;
+	 * @return the id of the indirect block removed
+	 */
+	public int removeLastIndirectBlock() {
+		int blockID = _indirectBlocks.remove(_indirectBlocks.size() - 1);
+		if (_indirectBlocks.size() < Constants.INODE_INDIRECT_SLOTS)
+			putInt(Constants.POSITION_INDIRECT_BLOCK_REGION + _indirectBlocks.size(), 0);
+		return blockID;
+	}
+
+	public int getDoubleIndirectBlock() {
+		return _doubleIndirectBlock;
+	}
+
+	public void setDoubleIndirectBlock(int blockID) {
+		_doubleIndirectBlock = blockID;
+		putInt(Constants.INODE_DOUBLE_INDIRECT, blockID);
+	}
+
+	public int getTripleIndirectBlock() {
+		return _tripleIndirectBlock;
+	}
+
+	public void setTripleIndirectBlock(int blockID) {
+		_tripleIndirectBlock = blockID;
+		putInt(Constants.INODE_TRIPLE_INDIRECT, blockID);
+	}
+
+	/**
+	 * @return the ids of the double indirect blocks under the triple indirect
+	 *         block, in order. The list is updated in place
+	 */
+	public List<Integer> getTripleChildren() {
+		return _tripleChildren;
+	}
+
+	/**
+	 * @return the ids of the double and triple indirect blocks of this inode
+	 *         and of the blocks under the triple indirect block
+	 */
+	public List<Integer> getPointerBlocks() {
+		List<Integer> blocks = new ArrayList<>();
+		if (_doubleIndirectBlock != 0)
+			blocks.add(_doubleIndirectBlock);
+		if (_tripleIndirectBlock != 0)
+			blocks.add(_tripleIndirectBlock);
+		blocks.addAll(_tripleChildren);
+		return blocks;
+	}
+
+	public boolean isInline() {
+		return _isInline;
+	}
+
+	/**
+	 * Sets whether the data of the file is held by this inode. The inline area
+	 * is cleared either way
+	 */
+	public void setInline(boolean inline) {
+		_isInline = inline;
+		putFlags();
+		Arrays.fill(_buffer, Constants.INODE_INLINE_DATA, Constants.INODE_SIZE, (byte) 0);
+	}
+
+	public boolean isNamed() {
+		return _isNamed;
+	}
+
+	/**
+	 * Sets whether the file has an entry in the name index
+	 */
+	public void setNamed(boolean named) {
+		_isNamed = named;
+		putFlags();
+	}
+
+	public boolean isShared() {
+		return _isShared;
+	}
+
+	/**
+	 * Sets whether the file may share blocks with another file, so that its
+	 * blocks must be copied before they are changed
+	 */
+	public void setShared(boolean shared) {
+		_isShared = shared;
+		putFlags();
+	}
+
+	private void putFlags() {
+		putInt(Constants.INODE_FLAGS, (_isInline ? Constants.INODE_FLAG_INLINE : 0)
+				| (_isNamed ? Constants.INODE_FLAG_NAMED : 0) | (_isShared ? Constants.INODE_FLAG_SHARED : 0));
+	}
+
+	/**
+	 * Copies count bytes of the inline data starting at pos into dst
+	 */
+	public void readInline(int pos, ByteBuffer dst, int count) {
+		dst.put(_buffer, Constants.INODE_INLINE_DATA + pos, count);
+	}
+
+	/**
+	 * Copies count bytes out of src into the inline data starting at pos
+	 */
+	public void writeInline(int pos, ByteBuffer src, int count) {
+		src.get(_buffer, Constants.INODE_INLINE_DATA + pos, count);
+	}
+
+	/**
+	 * Zeroes the inline data from pos to the end of the inline area
+	 */
+	public void clearInline(int pos) {
+		Arrays.fill(_buffer, Constants.INODE_INLINE_DATA + pos, Constants.INODE_SIZE, (byte) 0);
+	}
+
+	/**
+	 * Stores value at the index-th int of the inode metadata
+	 */
+	private void putInt(int index, int value) {
+		ByteBuffer.wrap(_buffer).putInt(index * Constants.BYTES_PER_INT, value);
 	}
 
 	/**
@@ -193,12 +268,16 @@ public class Inode {
 
 	public void setSize(int size) {
 		_fileSize = size;
+		putInt(Constants.INODE_FILE_SIZE, size);
 		int numOfBlocks = (int) Math.ceil((double) _fileSize / (double) Constants.BLOCK_SIZE);
 		_numOfIndirectBlocks = (int) Math.ceil((double) numOfBlocks / (double) Constants.INTS_IN_BLOCK);
 	}
 
 	public void setIndirectBlocks(List<Integer> indirectBlocks) {
 		_indirectBlocks = indirectBlocks;
+		for (int i = 0; i < Math.min(indirectBlocks.size(), Constants.INODE_INDIRECT_SLOTS); i++) {
+			putInt(Constants.POSITION_INDIRECT_BLOCK_REGION + i, indirectBlocks.get(i));
+		}
 	}
 
 	public void setMapped() {
@@ -0,0 +1,342 @@
+package dfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.Constants;
+import dblockcache.DBuffer;
+
+/**
+ * This class knows where every inode slot of the volume lives. The first
+ * INODE_REGION_DFILES slots are the fixed inode region right after the
+ * superblock; the table grows past it into blocks taken from the data region
+ * when those slots run out.
+ *
+ * The blocks the table grew into are listed in inode map blocks, each holding
+ * the ids of INTS_IN_BLOCK inode blocks, and the ids of the map blocks are
+ * kept in the superblock from SUPERBLOCK_INODE_MAP on. An entry of 0 is a
+ * block the table has not grown into yet. The whole map is read once at mount
+ * and kept in memory, so finding the block of a slot never reads the volume,
+ * and only the inode blocks that were ever used are scanned at mount.
+ *
+ * Slot i of the table is inode i % INODES_IN_BLOCK of the block holding slots
+ * i - i % INODES_IN_BLOCK onwards. The blocks at the end of the table whose
+ * slots are all free are given back when files are destroyed, see shrink
+ */
+class InodeTable {
+
+	private static final int EXTENSION_BLOCKS = Constants.INODE_MAP_BLOCKS * Constants.INTS_IN_BLOCK;
+
+	private final DFSImpl _dfs;
+
+	/**
+	 * Slots in use. Freed slots are handed out again before new ones, so
+	 * the table only grows once the slots it spans are taken
+	 */
+	private final AtomicBitmap _slots = new AtomicBitmap(Constants.MAX_DFILES);
+
+	/**
+	 * Entry i is the id of the i-th inode block past the fixed region, 0 if
+	 * the table has not grown into it
+	 */
+	private final AtomicIntegerArray _blocks = new AtomicIntegerArray(EXTENSION_BLOCKS);
+
+	/**
+	 * Every block of the table outside the fixed region, map blocks included
+	 */
+	private final Set<Integer> _tableBlocks = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Serializes the growth of the table. Guards _mapBlocks
+	 */
+	private final ReentrantLock _growLock = new ReentrantLock();
+	private final int[] _mapBlocks = new int[Constants.INODE_MAP_BLOCKS];
+	private volatile int _span = Constants.INODE_REGION_DFILES;
+
+	InodeTable(DFSImpl dfs) {
+		_dfs = dfs;
+	}
+
+	/**
+	 * Reads the inode map from the volume, once the journal is replayed
+	 *
+	 * @return the ids of the inode blocks of the table in slot order, up to
+	 *         the last one it grew into. An entry of 0 is a block it has not
+	 *         grown into
+	 */
+	List<Integer> load() {
+		_growLock.lock();
+		try {
+			DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+			List<Integer> mapBlocks = new ArrayList<>();
+			if (superblock.getInt(Constants.SUPERBLOCK_MAGIC_INDEX) == Constants.SUPERBLOCK_MAGIC) {
+				for (int m = 0; m < Constants.INODE_MAP_BLOCKS; m++) {
+					int mapBlock = superblock.getInt(Constants.SUPERBLOCK_INODE_MAP + m);
+					if (mapBlock != 0 && !DFSImpl.isDataBlock(mapBlock))
+						throw new IllegalStateException("Invalid inode map block " + mapBlock);
+					_mapBlocks[m] = mapBlock;
+					mapBlocks.add(mapBlock);
+				}
+			}
+			_dfs._cache.releaseBlock(superblock);
+
+			int m = 0;
+			for (DBuffer dbuffer : _dfs.prefetchBlocks(mapBlocks)) {
+				if (dbuffer != null) {
+					_tableBlocks.add(dbuffer.getBlockID());
+					dbuffer.waitValid();
+					for (int j = 0; j < Constants.INTS_IN_BLOCK; j++) {
+						int blockID = dbuffer.getInt(j);
+						if (blockID == 0)
+							continue;
+						if (!DFSImpl.isDataBlock(blockID) || !_tableBlocks.add(blockID))
+							throw new IllegalStateException("Invalid inode block " + blockID);
+						_blocks.set(m * Constants.INTS_IN_BLOCK + j, blockID);
+						grown(m * Constants.INTS_IN_BLOCK + j);
+					}
+					_dfs._cache.releaseBlock(dbuffer);
+				}
+				m++;
+			}
+
+			List<Integer> inodeBlocks = new ArrayList<>();
+			for (int slot = 0; slot < _span; slot += Constants.INODES_IN_BLOCK) {
+				inodeBlocks.add(blockOf(slot));
+			}
+			return inodeBlocks;
+		} finally {
+			_growLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a free slot. Its block may not be part of the table yet, see
+	 * blockOf
+	 *
+	 * @return the slot taken, or -1 if every slot is taken
+	 */
+	int allocate() {
+		return _slots.allocate();
+	}
+
+	/**
+	 * Reserves the slot of an inode found at mount
+	 *
+	 * @return false if the slot was already taken
+	 */
+	boolean claim(int slot) {
+		return _slots.claim(slot);
+	}
+
+	void release(int slot) {
+		_slots.release(slot);
+	}
+
+	/**
+	 * @return the block holding a slot, or 0 if the table has not grown into
+	 *         it yet
+	 */
+	int blockOf(int slot) {
+		if (slot < Constants.INODE_REGION_DFILES)
+			return 1 + slot / Constants.INODES_IN_BLOCK;
+		return _blocks.get((slot - Constants.INODE_REGION_DFILES) / Constants.INODES_IN_BLOCK);
+	}
+
+	/**
+	 * Returns the block holding a slot, growing the table into a new block
+	 * first if needed. The growth is a transaction of its own, committed
+	 * before the block is handed out, so an inode is never logged into a
+	 * block whose allocation comes later in the journal. Must be called with
+	 * no transaction open
+	 *
+	 * @return the id of the block
+	 */
+	int getBlock(int slot) {
+		int blockID = blockOf(slot);
+		if (blockID != 0)
+			return blockID;
+		int index = (slot - Constants.INODE_REGION_DFILES) / Constants.INODES_IN_BLOCK;
+		_growLock.lock();
+		try {
+			blockID = _blocks.get(index);
+			if (blockID != 0)
+				return blockID;
+			Journal.Transaction tx = _dfs._journal.begin();
+			try {
+				int m = index / Constants.INTS_IN_BLOCK;
+				if (_mapBlocks[m] == 0) {
+					DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+					_mapBlocks[m] = newBlock(tx);
+					tx.pin(superblock);
+					superblock.putInt(Constants.SUPERBLOCK_INODE_MAP + m, _mapBlocks[m]);
+					tx.logWrite(superblock, (Constants.SUPERBLOCK_INODE_MAP + m) * Constants.BYTES_PER_INT,
+							Constants.BYTES_PER_INT);
+					_dfs._cache.releaseBlock(superblock);
+				}
+				blockID = newBlock(tx);
+				DBuffer map = _dfs.getValidBlock(_mapBlocks[m]);
+				tx.pin(map);
+				map.putInt(index % Constants.INTS_IN_BLOCK, blockID);
+				tx.logWrite(map, (index % Constants.INTS_IN_BLOCK) * Constants.BYTES_PER_INT, Constants.BYTES_PER_INT);
+				_dfs._cache.releaseBlock(map);
+			} finally {
+				_dfs._journal.commit(tx);
+			}
+			_blocks.set(index, blockID);
+			grown(index);
+			return blockID;
+		} finally {
+			_growLock.unlock();
+		}
+	}
+
+	/**
+	 * Gives back the inode blocks at the end of the table whose slots are all
+	 * free, and the map blocks left empty, so that mounting only scans the
+	 * blocks the files left need. The slots of a block are taken while it
+	 * goes, so no file is made in it meanwhile. Stops at the first block
+	 * holding a file. Must be called with no transaction open
+	 */
+	void shrink() {
+		_growLock.lock();
+		try {
+			int index = (_span - Constants.INODE_REGION_DFILES) / Constants.INODES_IN_BLOCK - 1;
+			boolean done = false;
+			// One map block per transaction
+			while (index >= 0 && !done) {
+				int m = index / Constants.INTS_IN_BLOCK;
+				List<Integer> freed = new ArrayList<>();
+				List<Integer> claimed = new ArrayList<>();
+				boolean mapFreed = false;
+				Journal.Transaction tx = _dfs._journal.begin();
+				try {
+					DBuffer map = _dfs.getValidBlock(_mapBlocks[m]);
+					for (; index >= m * Constants.INTS_IN_BLOCK; index--) {
+						int blockID = _blocks.get(index);
+						if (blockID == 0)
+							continue;
+						if (!claimSlots(index, claimed)) {
+							done = true;
+							break;
+						}
+						tx.pin(map);
+						map.putInt(index % Constants.INTS_IN_BLOCK, 0);
+						tx.logWrite(map, (index % Constants.INTS_IN_BLOCK) * Constants.BYTES_PER_INT,
+								Constants.BYTES_PER_INT);
+						tx.free(blockID);
+						freed.add(index);
+					}
+					_dfs._cache.releaseBlock(map);
+					if (!done) {
+						DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+						tx.pin(superblock);
+						superblock.putInt(Constants.SUPERBLOCK_INODE_MAP + m, 0);
+						tx.logWrite(superblock, (Constants.SUPERBLOCK_INODE_MAP + m) * Constants.BYTES_PER_INT,
+								Constants.BYTES_PER_INT);
+						_dfs._cache.releaseBlock(superblock);
+						tx.free(_mapBlocks[m]);
+						mapFreed = true;
+					}
+				} finally {
+					_dfs._journal.commit(tx);
+				}
+				for (int i : freed) {
+					_tableBlocks.remove(_blocks.get(i));
+					_blocks.set(i, 0);
+				}
+				if (mapFreed) {
+					_tableBlocks.remove(_mapBlocks[m]);
+					_mapBlocks[m] = 0;
+				}
+				shrunk();
+				for (int slot : claimed) {
+					_slots.release(slot);
+				}
+			}
+		} finally {
+			_growLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes every slot of the index-th block past the fixed region, adding
+	 * them to claimed. Called holding _growLock
+	 *
+	 * @return false if one of them holds a file, none is taken then
+	 */
+	private boolean claimSlots(int index, List<Integer> claimed) {
+		int first = Constants.INODE_REGION_DFILES + index * Constants.INODES_IN_BLOCK;
+		for (int slot = first; slot < first + Constants.INODES_IN_BLOCK; slot++) {
+			if (!_slots.claim(slot)) {
+				for (int taken = first; taken < slot; taken++) {
+					_slots.release(taken);
+				}
+				return false;
+			}
+		}
+		for (int slot = first; slot < first + Constants.INODES_IN_BLOCK; slot++) {
+			claimed.add(slot);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of slots the table spans, from the first one to the
+	 *         last block it grew into
+	 */
+	int span() {
+		return _span;
+	}
+
+	/**
+	 * @return true if blockID is an inode block or a map block outside the
+	 *         fixed inode region
+	 */
+	boolean contains(int blockID) {
+		return _tableBlocks.contains(blockID);
+	}
+
+	/**
+	 * @return the ids of the inode and map blocks outside the fixed region
+	 */
+	List<Integer> tableBlocks() {
+		return new ArrayList<>(_tableBlocks);
+	}
+
+	/**
+	 * Moves the span past the index-th block past the fixed region. Called
+	 * holding _growLock
+	 */
+	private void grown(int index) {
+		_span = Math.max(_span, Constants.INODE_REGION_DFILES + (index + 1) * Constants.INODES_IN_BLOCK);
+	}
+
+	/**
+	 * Moves the span back to the last block past the fixed region the table
+	 * still holds. Called holding _growLock
+	 */
+	private void shrunk() {
+		int index = (_span - Constants.INODE_REGION_DFILES) / Constants.INODES_IN_BLOCK - 1;
+		while (index >= 0 && _blocks.get(index) == 0) {
+			index--;
+		}
+		_span = Constants.INODE_REGION_DFILES + (index + 1) * Constants.INODES_IN_BLOCK;
+	}
+
+	/**
+	 * Takes a zeroed block for the table
+	 */
+	private int newBlock(Journal.Transaction tx) {
+		DBuffer dbuffer = _dfs._cache.getNewBlock();
+		if (dbuffer == null)
+			throw new IllegalStateException("File could not be written. Exceeded Inode Space");
+		tx.logNewBlock(dbuffer);
+		_dfs._cache.releaseBlock(dbuffer);
+		_tableBlocks.add(dbuffer.getBlockID());
+		return dbuffer.getBlockID();
+	}
+}
@@ -0,0 +1,651 @@
+package dfs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import common.Constants;
+import dblockcache.DBuffer;
+
+/**
+ * A write-ahead journal for the metadata of the DFS. Every operation that
+ * changes metadata runs a transaction that logs the bytes it writes to inode
+ * and indirect blocks and the blocks it allocates and frees. A committed
+ * transaction is appended to a buffer in memory as one record, and the
+ * records piling up there are written to the circular journal region all at
+ * once by a background thread every few milliseconds, or by sync, so many
+ * transactions share a single write (group commit).
+ *
+ * The metadata blocks a transaction touches stay pinned in the cache: they
+ * are not written to their home location until the next checkpoint, which
+ * first writes the journal, then every dirty block and the allocation bitmap,
+ * and finally moves the start of the journal in the superblock past all the
+ * records. Checkpoints run lazily in the background when the journal fills
+ * up or some time after the last one.
+ *
+ * Every transaction reserves room for a record of MAX_RECORD bytes when it
+ * begins, and begin forces a checkpoint and waits when the journal has no
+ * such room left. A record can only be written once the ones before it are,
+ * and a checkpoint needs the records of every change the blocks it writes
+ * home hold, so the journal must never fill up with records still in memory.
+ *
+ * Recovery loads the bitmap saved by the last checkpoint and replays the
+ * records logged after it, so it takes time proportional to the activity
+ * since that checkpoint, not to the size of the volume. Blocks freed by a
+ * transaction only become free once its record is appended, so the log never
+ * holds the allocation of a block before the record that freed it
+ *
+ * Records are made of a magic number, a sequence number, the length of the
+ * entries, a CRC32 of the entries, and then the entries. Replay stops at the
+ * first record that does not follow the previous one
+ */
+class Journal implements Runnable {
+
+	/* Entry types */
+	private static final byte ENTRY_WRITE = 1;
+	private static final byte ENTRY_ZERO = 2;
+	private static final byte ENTRY_ALLOC = 3;
+	private static final byte ENTRY_FREE = 4;
+
+	private static final int RECORD_MAGIC = 0x4A524E4C;
+	private static final int RECORD_HEADER_SIZE = 4 * Constants.BYTES_PER_INT;
+	private static final long CAPACITY = (long) Constants.JOURNAL_REGION_SIZE * Constants.BLOCK_SIZE;
+
+	/**
+	 * Largest record of a transaction, headers included. The largest
+	 * transactions of the DFS, INODE_STEP inode records or RESIZE_STEP blocks,
+	 * take about half of it
+	 */
+	private static final long MAX_RECORD = CAPACITY / 8;
+
+	/**
+	 * Milliseconds between two group commits
+	 */
+	private static final long FLUSH_INTERVAL = 10;
+
+	/**
+	 * Milliseconds after which records in the journal are checkpointed, even
+	 * if the journal is far from full
+	 */
+	private static final long CHECKPOINT_INTERVAL = 5000;
+
+	/**
+	 * A set of metadata changes applied together. Buffers must be pinned
+	 * before they are changed and the changes logged after, while the lock of
+	 * the file they belong to is held
+	 */
+	static class Transaction {
+		private final ByteArrayOutputStream _entries = new ByteArrayOutputStream();
+		private final Set<DBuffer> _buffers = new HashSet<>();
+		private final List<Integer> _freed = new ArrayList<>();
+		private final List<Lock> _held = new ArrayList<>();
+		/* Room of the journal reserved for the record */
+		private long _reserved;
+
+		/**
+		 * Keeps dbuffer from being written home before this transaction is in
+		 * the journal. Must be called before the buffer is changed
+		 */
+		void pin(DBuffer dbuffer) {
+			if (_buffers.add(dbuffer))
+				dbuffer.pin();
+		}
+
+		/**
+		 * Logs length bytes of dbuffer starting at offset, as they are now
+		 */
+		void logWrite(DBuffer dbuffer, int offset, int length) {
+			pin(dbuffer);
+			byte[] bytes = new byte[length];
+			dbuffer.read(offset, bytes, 0, length);
+			entry(ENTRY_WRITE, dbuffer.getBlockID());
+			writeInt(_entries, offset);
+			writeInt(_entries, length);
+			_entries.write(bytes, 0, length);
+		}
+
+		/**
+		 * Logs a block just allocated as a zeroed metadata block
+		 */
+		void logNewBlock(DBuffer dbuffer) {
+			pin(dbuffer);
+			logAlloc(dbuffer.getBlockID());
+			entry(ENTRY_ZERO, dbuffer.getBlockID());
+		}
+
+		/**
+		 * Logs a block just taken from the free blocks of the cache
+		 */
+		void logAlloc(int blockID) {
+			entry(ENTRY_ALLOC, blockID);
+		}
+
+		/**
+		 * Logs a block as freed. It goes back to the free blocks of the cache
+		 * once the record of the transaction is on the volume, so it is never
+		 * reused while a crash could still undo the free
+		 */
+		void free(int blockID) {
+			entry(ENTRY_FREE, blockID);
+			_freed.add(blockID);
+		}
+
+		/**
+		 * Takes lock, if this transaction does not hold it yet, and keeps it
+		 * until the record is appended. Metadata shared by many files is
+		 * changed under such a lock, so that its records reach the journal in
+		 * the order the changes were made
+		 */
+		void hold(Lock lock) {
+			if (!_held.contains(lock)) {
+				lock.lock();
+				_held.add(lock);
+			}
+		}
+
+		private void entry(byte type, int blockID) {
+			_entries.write(type);
+			writeInt(_entries, blockID);
+		}
+	}
+
+	/**
+	 * An entry read back from the journal during recovery
+	 */
+	private static class Entry {
+		byte type;
+		int blockID;
+		int offset;
+		byte[] bytes;
+	}
+
+	private final DFSImpl _dfs;
+
+	/**
+	 * Held for reading by open transactions and for writing by checkpoints,
+	 * so a checkpoint never sees half of a transaction
+	 */
+	private final ReentrantReadWriteLock _checkpointLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Serializes the writes to the journal region. Held while waiting for the
+	 * disk, so it is a lock rather than a monitor
+	 */
+	private final ReentrantLock _flushLock = new ReentrantLock();
+
+	/* Guarded by this */
+	private ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+	/* Blocks freed by the pending records, in the order they were logged */
+	private final List<Integer> _pendingFreed = new ArrayList<>();
+	private final Set<DBuffer> _pinned = new HashSet<>();
+	private int _nextSequence;
+	private boolean _running;
+	/* Room of the journal reserved by open transactions, and threads waiting for some */
+	private long _reserved;
+	private int _waiting;
+
+	/*
+	 * Offsets into the journal, counted from the start of the region and
+	 * growing past its end as the journal wraps. _head is the end of the
+	 * records written, _tail the start of the first one not checkpointed
+	 */
+	private long _head;
+	private long _tail;
+
+	private Thread _thread;
+
+	Journal(DFSImpl dfs) {
+		_dfs = dfs;
+	}
+
+	/**
+	 * Starts the thread doing group commits and checkpoints
+	 */
+	synchronized void start() {
+		_running = true;
+		_thread = new Thread(this, "DFS journal");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Stops the journal thread and checkpoints everything, leaving the
+	 * journal empty
+	 */
+	void close() {
+		Thread thread;
+		synchronized (this) {
+			_running = false;
+			notifyAll();
+			thread = _thread;
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		checkpoint();
+	}
+
+	/**
+	 * Opens a transaction. Waits while a checkpoint is running, and while the
+	 * journal has no room for its record. Must be called after the lock of
+	 * the file being changed is taken
+	 */
+	Transaction begin() {
+		Transaction tx = new Transaction();
+		// A transaction opened inside another cannot wait for a checkpoint, the outer one holds it up
+		if (_checkpointLock.getReadHoldCount() == 0)
+			tx._reserved = reserve();
+		_checkpointLock.readLock().lock();
+		return tx;
+	}
+
+	/**
+	 * Reserves MAX_RECORD bytes of the journal, checkpointing until there is
+	 * room for them
+	 *
+	 * @return the bytes reserved
+	 */
+	private long reserve() {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				synchronized (this) {
+					long used = used();
+					if (used + _reserved + MAX_RECORD <= CAPACITY) {
+						_reserved += MAX_RECORD;
+						return MAX_RECORD;
+					}
+					if (used == 0) {
+						// Only open transactions hold the room, wait for one to commit
+						_waiting++;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							interrupted = true;
+						} finally {
+							_waiting--;
+						}
+						continue;
+					}
+				}
+				checkpoint();
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Appends the record of a transaction to the journal. The record reaches
+	 * the volume with the next group commit, at most a few milliseconds later,
+	 * or at the next flush, which also frees the blocks it freed. A
+	 * transaction committed inside another leaves the checkpoint to the outer
+	 * one, whose read lock would keep it waiting forever
+	 */
+	void commit(Transaction tx) {
+		try {
+			if (tx._entries.size() > 0)
+				append(tx);
+		} finally {
+			for (Lock lock : tx._held) {
+				lock.unlock();
+			}
+			_checkpointLock.readLock().unlock();
+			release(tx);
+		}
+		if (_checkpointLock.getReadHoldCount() == 0 && used() > CAPACITY / 2)
+			checkpoint();
+	}
+
+	private synchronized void release(Transaction tx) {
+		_reserved -= tx._reserved;
+		tx._reserved = 0;
+		if (_waiting > 0)
+			notifyAll();
+	}
+
+	private synchronized void append(Transaction tx) {
+		_pinned.addAll(tx._buffers);
+		byte[] entries = tx._entries.toByteArray();
+		if (RECORD_HEADER_SIZE + entries.length > MAX_RECORD)
+			throw new IllegalStateException("Transaction too large for the journal");
+		CRC32 crc = new CRC32();
+		crc.update(entries);
+		writeInt(_pending, RECORD_MAGIC);
+		writeInt(_pending, _nextSequence++);
+		writeInt(_pending, entries.length);
+		writeInt(_pending, (int) crc.getValue());
+		_pending.write(entries, 0, entries.length);
+		_pendingFreed.addAll(tx._freed);
+	}
+
+	/**
+	 * Writes every committed record still in memory to the journal region,
+	 * waits for them to be on the volume and then gives the blocks they freed
+	 * back to the cache
+	 */
+	void flush() {
+		_flushLock.lock();
+		try {
+			byte[] records;
+			long head;
+			int freed;
+			synchronized (this) {
+				if (_pending.size() == 0)
+					return;
+				// Cannot happen, begin keeps room for the record of every open transaction
+				if (_head + _pending.size() - _tail > CAPACITY)
+					throw new IllegalStateException("The journal is full");
+				records = _pending.toByteArray();
+				head = _head;
+				freed = _pendingFreed.size();
+			}
+			// The records stay pending until they are written, a failed write is done again
+			writeLog(head, records);
+			List<Integer> blocks;
+			synchronized (this) {
+				byte[] pending = _pending.toByteArray();
+				_pending.reset();
+				_pending.write(pending, records.length, pending.length - records.length);
+				_head = head + records.length;
+				blocks = new ArrayList<>(_pendingFreed.subList(0, freed));
+				_pendingFreed.subList(0, freed).clear();
+			}
+			for (int blockID : blocks) {
+				_dfs._cache.newFreeBlock(blockID);
+			}
+		} finally {
+			_flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the records if some of them free blocks, for an allocation that
+	 * found no free block left
+	 *
+	 * @return whether blocks were given back to the cache
+	 */
+	boolean releaseFreed() {
+		synchronized (this) {
+			if (_pendingFreed.isEmpty())
+				return false;
+		}
+		flush();
+		return true;
+	}
+
+	/**
+	 * Writes every change logged so far to its home location and empties the
+	 * journal: the records are flushed, the metadata blocks unpinned and
+	 * written with all other dirty blocks, the allocation bitmap saved and
+	 * then the start of the journal moved in the superblock. Waits for the
+	 * open transactions to commit and keeps new ones from starting meanwhile
+	 */
+	void checkpoint() {
+		_checkpointLock.writeLock().lock();
+		try {
+			flush();
+			List<DBuffer> pinned;
+			synchronized (this) {
+				pinned = new ArrayList<>(_pinned);
+				_pinned.clear();
+			}
+			for (DBuffer dbuffer : pinned) {
+				dbuffer.unpin();
+			}
+			_dfs._cache.sync();
+			writeBitmap(_dfs._cache.getUsedBlocks());
+
+			long tail;
+			int sequence;
+			synchronized (this) {
+				_tail = _head;
+				tail = _tail;
+				sequence = _nextSequence;
+			}
+			DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+			superblock.putInt(Constants.SUPERBLOCK_MAGIC_INDEX, Constants.SUPERBLOCK_MAGIC);
+			superblock.putInt(Constants.SUPERBLOCK_JOURNAL_SEQUENCE, sequence);
+			superblock.putInt(Constants.SUPERBLOCK_JOURNAL_TAIL, (int) (tail % CAPACITY));
+			superblock.startPush();
+			superblock.waitClean();
+			_dfs._cache.releaseBlock(superblock);
+		} finally {
+			_checkpointLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Restores the allocation bitmap saved by the last checkpoint and replays
+	 * the records logged after it into the cache. The replayed blocks are
+	 * dirty and reach the volume with the next checkpoint.
+	 *
+	 * Writes to a block that a later record frees are skipped: the block may
+	 * have been given to a file as a data block since
+	 *
+	 * @return false if the volume holds no journal, nothing is changed then
+	 */
+	boolean recover() {
+		DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+		int magic = superblock.getInt(Constants.SUPERBLOCK_MAGIC_INDEX);
+		int sequence = superblock.getInt(Constants.SUPERBLOCK_JOURNAL_SEQUENCE);
+		long tail = superblock.getInt(Constants.SUPERBLOCK_JOURNAL_TAIL);
+		_dfs._cache.releaseBlock(superblock);
+		if (magic != Constants.SUPERBLOCK_MAGIC)
+			return false;
+		if (tail < 0 || tail >= CAPACITY)
+			return false;
+
+		List<Entry> entries = new ArrayList<>();
+		long head = tail;
+		int nextSequence = sequence;
+		while (head - tail + RECORD_HEADER_SIZE <= CAPACITY) {
+			ByteBuffer header = ByteBuffer.wrap(readLog(head, RECORD_HEADER_SIZE));
+			if (header.getInt() != RECORD_MAGIC || header.getInt() != nextSequence)
+				break;
+			int length = header.getInt();
+			int crc = header.getInt();
+			if (length < 0 || head - tail + RECORD_HEADER_SIZE + length > CAPACITY)
+				break;
+			byte[] record = readLog(head + RECORD_HEADER_SIZE, length);
+			CRC32 check = new CRC32();
+			check.update(record);
+			if ((int) check.getValue() != crc)
+				break;
+			readEntries(ByteBuffer.wrap(record), entries);
+			head += RECORD_HEADER_SIZE + length;
+			nextSequence++;
+		}
+
+		BitSet used = readBitmap();
+		Map<Integer, Integer> lastFree = new HashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			if (entry.type == ENTRY_ALLOC) {
+				used.set(entry.blockID);
+			} else if (entry.type == ENTRY_FREE) {
+				used.clear(entry.blockID);
+				lastFree.put(entry.blockID, i);
+			}
+		}
+		_dfs._cache.setUsedBlocks(used);
+
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			Integer freed = lastFree.get(entry.blockID);
+			if (freed != null && freed > i)
+				continue;
+			DBuffer dbuffer;
+			if (entry.type == ENTRY_ZERO) {
+				dbuffer = _dfs._cache.getZeroBlock(entry.blockID);
+			} else if (entry.type == ENTRY_WRITE) {
+				dbuffer = _dfs.getValidBlock(entry.blockID);
+				dbuffer.write(entry.offset, entry.bytes, 0, entry.bytes.length);
+			} else {
+				continue;
+			}
+			_dfs._cache.releaseBlock(dbuffer);
+		}
+
+		synchronized (this) {
+			_tail = tail;
+			_head = head;
+			_nextSequence = nextSequence;
+		}
+		return true;
+	}
+
+	/**
+	 * A failure is reported and the thread goes on, the records it could not
+	 * write are tried again with the next group commit
+	 */
+	@Override
+	public void run() {
+		long lastCheckpoint = System.currentTimeMillis();
+		while (isRunning()) {
+			synchronized (this) {
+				try {
+					if (_running)
+						wait(FLUSH_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			try {
+				flush();
+				long now = System.currentTimeMillis();
+				if (used() > CAPACITY / 4 || (used() > 0 && now - lastCheckpoint > CHECKPOINT_INTERVAL)) {
+					checkpoint();
+					lastCheckpoint = now;
+				}
+			} catch (RuntimeException e) {
+				System.out.println("Journal: group commit failed");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private synchronized boolean isRunning() {
+		return _running;
+	}
+
+	/**
+	 * @return bytes of records written or waiting to be written that are not
+	 *         checkpointed yet
+	 */
+	private synchronized long used() {
+		return _head - _tail + _pending.size();
+	}
+
+	/**
+	 * Writes bytes into the journal region starting at offset, wrapping
+	 * around its end, and waits for them to be on the volume. A block written
+	 * from its start is not fetched first
+	 */
+	private void writeLog(long offset, byte[] bytes) {
+		List<DBuffer> written = new ArrayList<>();
+		int done = 0;
+		while (done < bytes.length) {
+			long position = (offset + done) % CAPACITY;
+			int blockID = Constants.JOURNAL_REGION_START + (int) (position / Constants.BLOCK_SIZE);
+			int blockOffset = (int) (position % Constants.BLOCK_SIZE);
+			int count = Math.min(Constants.BLOCK_SIZE - blockOffset, bytes.length - done);
+			DBuffer dbuffer = blockOffset == 0 ? _dfs._cache.getZeroBlock(blockID) : _dfs.getValidBlock(blockID);
+			dbuffer.write(blockOffset, bytes, done, count);
+			dbuffer.startPush();
+			written.add(dbuffer);
+			done += count;
+		}
+		for (DBuffer dbuffer : written) {
+			dbuffer.waitClean();
+			_dfs._cache.releaseBlock(dbuffer);
+		}
+	}
+
+	/**
+	 * Reads length bytes of the journal region starting at offset, wrapping
+	 * around its end
+	 */
+	private byte[] readLog(long offset, int length) {
+		byte[] bytes = new byte[length];
+		int done = 0;
+		while (done < length) {
+			long position = (offset + done) % CAPACITY;
+			int blockID = Constants.JOURNAL_REGION_START + (int) (position / Constants.BLOCK_SIZE);
+			int blockOffset = (int) (position % Constants.BLOCK_SIZE);
+			int count = Math.min(Constants.BLOCK_SIZE - blockOffset, length - done);
+			_dfs.readValidBlock(blockID, blockOffset, bytes, done, count);
+			done += count;
+		}
+		return bytes;
+	}
+
+	private static void readEntries(ByteBuffer record, List<Entry> entries) {
+		while (record.hasRemaining()) {
+			Entry entry = new Entry();
+			entry.type = record.get();
+			entry.blockID = record.getInt();
+			if (entry.type == ENTRY_WRITE) {
+				entry.offset = record.getInt();
+				entry.bytes = new byte[record.getInt()];
+				record.get(entry.bytes);
+			}
+			entries.add(entry);
+		}
+	}
+
+	private void writeBitmap(BitSet used) {
+		byte[] bitmap = used.toByteArray();
+		List<DBuffer> written = new ArrayList<>();
+		for (int i = 0; i < Constants.BITMAP_REGION_SIZE; i++) {
+			DBuffer dbuffer = _dfs._cache.getZeroBlock(Constants.BITMAP_REGION_START + i);
+			int offset = i * Constants.BLOCK_SIZE;
+			if (offset < bitmap.length)
+				dbuffer.write(bitmap, offset, Math.min(Constants.BLOCK_SIZE, bitmap.length - offset));
+			dbuffer.startPush();
+			written.add(dbuffer);
+		}
+		for (DBuffer dbuffer : written) {
+			dbuffer.waitClean();
+			_dfs._cache.releaseBlock(dbuffer);
+		}
+	}
+
+	private BitSet readBitmap() {
+		List<Integer> region = new ArrayList<>();
+		for (int i = 0; i < Constants.BITMAP_REGION_SIZE; i++) {
+			region.add(Constants.BITMAP_REGION_START + i);
+		}
+		byte[] bitmap = new byte[Constants.BITMAP_REGION_SIZE * Constants.BLOCK_SIZE];
+		int offset = 0;
+		for (DBuffer dbuffer : _dfs.prefetchBlocks(region)) {
+			dbuffer.waitValid();
+			dbuffer.read(bitmap, offset, Constants.BLOCK_SIZE);
+			_dfs._cache.releaseBlock(dbuffer);
+			offset += Constants.BLOCK_SIZE;
+		}
+		return BitSet.valueOf(bitmap);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
@@ -0,0 +1,520 @@
+package dfs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.Constants;
+import dblockcache.DBuffer;
+
+/**
+ * A persistent index from names to DFileIds, kept as a B+tree in blocks of
+ * the data region and read through the cache like any other metadata. Its
+ * root is kept in the superblock and every change to it is logged in the
+ * journal. A name is logged in the same record as the inode of the file it
+ * names when the file is created, and removed before the inode is cleared when
+ * the file is destroyed, so a name never outlives its file.
+ *
+ * Each node is one block: an int for its type, an int for its number of
+ * entries and an int link, then the entries, each a short for the length of
+ * the key, the key and an int. The entries of a leaf map keys to DFileIds and
+ * its link is the next leaf, so a range of names is read by walking the
+ * leaves. The entries of an inner node hold the first key of a child and the
+ * child, and its link is the child holding the keys below its first entry.
+ *
+ * Keys are names encoded as UTF-8 and sorted as unsigned bytes. A node is
+ * split when its entries no longer fit in a block, and merged into a sibling
+ * when removals leave it under a quarter full and both fit in one block, so
+ * the tree shrinks back as names go and a lookup reads one block per level.
+ *
+ * The index has a lock of its own, taken after the locks of the files and
+ * before any transaction is opened
+ */
+class NameIndex {
+
+	private static final int NODE_LEAF = 1;
+	private static final int NODE_INNER = 2;
+	private static final int NODE_HEADER = 3 * Constants.BYTES_PER_INT;
+	private static final int ENTRY_HEADER = 2 + Constants.BYTES_PER_INT;
+
+	/**
+	 * Fewest bytes a node other than the root takes before removals merge it
+	 * into a sibling
+	 */
+	private static final int MIN_BYTES = Constants.BLOCK_SIZE / 4;
+
+	/**
+	 * Most names removed in one transaction by removeFiles, so that its
+	 * records fit in the journal even if every removal merges nodes up to the
+	 * root
+	 */
+	private static final int NAME_STEP = 16;
+
+	/**
+	 * A node of the tree, read out of its block
+	 */
+	private static class Node {
+		int blockID;
+		boolean leaf;
+		int link;
+		List<byte[]> keys = new ArrayList<>();
+		List<Integer> values = new ArrayList<>();
+
+		Node(int blockID, boolean leaf) {
+			this.blockID = blockID;
+			this.leaf = leaf;
+		}
+
+		/**
+		 * @return the bytes the node takes in its block
+		 */
+		int bytes() {
+			int bytes = NODE_HEADER;
+			for (byte[] key : keys) {
+				bytes += ENTRY_HEADER + key.length;
+			}
+			return bytes;
+		}
+
+		/**
+		 * @return the index of key, or -(insertion point) - 1 if it is not
+		 *         there
+		 */
+		int search(byte[] key) {
+			return Collections.binarySearch(keys, key, Arrays::compareUnsigned);
+		}
+
+		/**
+		 * @return the child of an inner node that holds key
+		 */
+		int childFor(byte[] key) {
+			int i = search(key);
+			if (i < 0)
+				i = -i - 2;
+			return i < 0 ? link : values.get(i);
+		}
+	}
+
+	private final DFSImpl _dfs;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	/* Guarded by _lock */
+	private int _root;
+
+	NameIndex(DFSImpl dfs) {
+		_dfs = dfs;
+	}
+
+	/**
+	 * Reads the root of the tree from the superblock, once the journal is
+	 * replayed
+	 */
+	void load() {
+		_lock.writeLock().lock();
+		try {
+			DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+			_root = 0;
+			int magic = superblock.getInt(Constants.SUPERBLOCK_MAGIC_INDEX);
+			int root = superblock.getInt(Constants.SUPERBLOCK_NAME_INDEX);
+			_dfs._cache.releaseBlock(superblock);
+			if (magic != Constants.SUPERBLOCK_MAGIC)
+				return;
+			if (root != 0 && !DFSImpl.isDataBlock(root))
+				throw new IllegalStateException("Invalid name index root " + root);
+			_root = root;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Held shared by lookups and scans, and exclusive by anything changing
+	 * the tree
+	 */
+	ReentrantReadWriteLock getLock() {
+		return _lock;
+	}
+
+	/**
+	 * @return the key of a name, or null if the name is empty or too long
+	 */
+	static byte[] key(String name) {
+		if (name == null)
+			return null;
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		if (key.length == 0 || key.length > Constants.MAX_NAME_LENGTH)
+			return null;
+		return key;
+	}
+
+	/**
+	 * @return the DFileId named key, or 0 if there is none
+	 */
+	int lookup(byte[] key) {
+		_lock.readLock().lock();
+		try {
+			if (_root == 0)
+				return 0;
+			Node leaf = findLeaf(key, null);
+			int i = leaf.search(key);
+			return i < 0 ? 0 : leaf.values.get(i);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Names a file. The caller holds the lock exclusive
+	 *
+	 * @return false if the name is already taken
+	 */
+	boolean insert(Journal.Transaction tx, byte[] key, int fileID) {
+		if (_root == 0) {
+			Node leaf = newNode(tx, true);
+			leaf.keys.add(key);
+			leaf.values.add(fileID);
+			writeNode(tx, leaf);
+			setRoot(tx, leaf.blockID);
+			return true;
+		}
+		List<Node> path = new ArrayList<>();
+		Node node = findLeaf(key, path);
+		int i = node.search(key);
+		if (i >= 0)
+			return false;
+		node.keys.add(-i - 1, key);
+		node.values.add(-i - 1, fileID);
+
+		// Split up the path for as long as a node does not fit in its block
+		while (node.bytes() > Constants.BLOCK_SIZE) {
+			Node right = newNode(tx, node.leaf);
+			byte[] separator = split(node, right);
+			writeNode(tx, right);
+			writeNode(tx, node);
+			if (path.isEmpty()) {
+				Node root = newNode(tx, false);
+				root.link = node.blockID;
+				root.keys.add(separator);
+				root.values.add(right.blockID);
+				setRoot(tx, root.blockID);
+				node = root;
+				break;
+			}
+			Node parent = path.remove(path.size() - 1);
+			int j = -parent.search(separator) - 1;
+			parent.keys.add(j, separator);
+			parent.values.add(j, right.blockID);
+			node = parent;
+		}
+		writeNode(tx, node);
+		return true;
+	}
+
+	/**
+	 * Removes a name. The caller holds the lock exclusive
+	 *
+	 * @return the DFileId it named, or 0 if there was none
+	 */
+	int remove(Journal.Transaction tx, byte[] key) {
+		if (_root == 0)
+			return 0;
+		List<Node> path = new ArrayList<>();
+		Node node = findLeaf(key, path);
+		int i = node.search(key);
+		if (i < 0)
+			return 0;
+		node.keys.remove(i);
+		int fileID = node.values.remove(i);
+
+		// Merge up the path for as long as a node is left under MIN_BYTES
+		while (!path.isEmpty()) {
+			if (node.bytes() >= MIN_BYTES || !merge(tx, path.get(path.size() - 1), node)) {
+				writeNode(tx, node);
+				return fileID;
+			}
+			node = path.remove(path.size() - 1);
+		}
+		// A root left with a single child, or no name at all, goes
+		if (!node.leaf && node.keys.isEmpty()) {
+			setRoot(tx, node.link);
+			tx.free(node.blockID);
+		} else if (node.keys.isEmpty()) {
+			setRoot(tx, 0);
+			tx.free(node.blockID);
+		} else {
+			writeNode(tx, node);
+		}
+		return fileID;
+	}
+
+	/**
+	 * Merges node with its right sibling under parent, or with its left one
+	 * if it is the last child, if both fit in one block. The left node of
+	 * the two is written and the right one freed, and its entry is removed
+	 * from parent, which is left to the caller to write
+	 *
+	 * @return false if the two do not fit in one block, nothing is changed
+	 *         then
+	 */
+	private boolean merge(Journal.Transaction tx, Node parent, Node node) {
+		// An inner node left with its link only has no sibling to merge with
+		if (parent.keys.isEmpty())
+			return false;
+		int j = parent.link == node.blockID ? -1 : parent.values.indexOf(node.blockID);
+		Node left;
+		Node right;
+		if (j + 1 < parent.keys.size()) {
+			left = node;
+			right = readNode(parent.values.get(j + 1));
+			j++;
+		} else {
+			left = readNode(j == 0 ? parent.link : parent.values.get(j - 1));
+			right = node;
+		}
+		byte[] separator = parent.keys.get(j);
+		int bytes = left.bytes() + right.bytes() - NODE_HEADER;
+		if (!left.leaf)
+			bytes += ENTRY_HEADER + separator.length;
+		if (bytes > Constants.BLOCK_SIZE)
+			return false;
+		if (left.leaf) {
+			left.link = right.link;
+		} else {
+			// The separator comes down, over the first child of right
+			left.keys.add(separator);
+			left.values.add(right.link);
+		}
+		left.keys.addAll(right.keys);
+		left.values.addAll(right.values);
+		writeNode(tx, left);
+		tx.free(right.blockID);
+		parent.keys.remove(j);
+		parent.values.remove(j);
+		return true;
+	}
+
+	/**
+	 * Removes every name of the given files, walking all the leaves to find
+	 * them. Used when a file is destroyed by id, its name is not known then.
+	 * The names found are removed NAME_STEP at a time, each batch in a
+	 * transaction of its own. The caller holds the lock exclusive and no
+	 * transaction
+	 */
+	void removeFiles(Set<Integer> fileIDs) {
+		List<byte[]> keys = new ArrayList<>();
+		for (Node leaf = firstLeaf(); leaf != null; leaf = leaf.link == 0 ? null : readNode(leaf.link)) {
+			for (int i = 0; i < leaf.keys.size(); i++) {
+				if (fileIDs.contains(leaf.values.get(i)))
+					keys.add(leaf.keys.get(i));
+			}
+		}
+		for (int first = 0; first < keys.size(); first += NAME_STEP) {
+			Journal.Transaction tx = _dfs._journal.begin();
+			try {
+				for (byte[] key : keys.subList(first, Math.min(keys.size(), first + NAME_STEP))) {
+					remove(tx, key);
+				}
+			} finally {
+				_dfs._journal.commit(tx);
+			}
+		}
+	}
+
+	/**
+	 * Lists, in order, at most limit names starting with prefix that come
+	 * after the name after, with the DFileIds they name. Only the leaves
+	 * holding the names listed are read past the path to the first one
+	 *
+	 * @param after
+	 *            the last name of the previous page, or null for the first
+	 *            page
+	 */
+	Map<String, Integer> scan(byte[] prefix, byte[] after, int limit) {
+		Map<String, Integer> names = new LinkedHashMap<>();
+		_lock.readLock().lock();
+		try {
+			if (_root == 0 || limit <= 0)
+				return names;
+			byte[] start = after != null && Arrays.compareUnsigned(after, prefix) > 0 ? after : prefix;
+			Node leaf = findLeaf(start, null);
+			int i = leaf.search(start);
+			i = i < 0 ? -i - 1 : i;
+			while (leaf != null) {
+				for (; i < leaf.keys.size(); i++) {
+					byte[] key = leaf.keys.get(i);
+					if (!startsWith(key, prefix))
+						return names;
+					if (after != null && Arrays.compareUnsigned(key, after) <= 0)
+						continue;
+					names.put(new String(key, StandardCharsets.UTF_8), leaf.values.get(i));
+					if (names.size() == limit)
+						return names;
+				}
+				leaf = leaf.link == 0 ? null : readNode(leaf.link);
+				i = 0;
+			}
+			return names;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the ids of every block of the tree
+	 */
+	List<Integer> blocks() {
+		List<Integer> blocks = new ArrayList<>();
+		_lock.readLock().lock();
+		try {
+			if (_root == 0)
+				return blocks;
+			blocks.add(_root);
+			for (int next = 0; next < blocks.size(); next++) {
+				Node node = readNode(blocks.get(next));
+				if (node.leaf)
+					continue;
+				blocks.add(node.link);
+				blocks.addAll(node.values);
+			}
+			return blocks;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Walks down from the root to the leaf that holds key
+	 *
+	 * @param path
+	 *            receives the inner nodes on the way, root first, may be
+	 *            null
+	 */
+	private Node findLeaf(byte[] key, List<Node> path) {
+		Node node = readNode(_root);
+		while (!node.leaf) {
+			if (path != null)
+				path.add(node);
+			node = readNode(node.childFor(key));
+		}
+		return node;
+	}
+
+	private Node firstLeaf() {
+		if (_root == 0)
+			return null;
+		Node node = readNode(_root);
+		while (!node.leaf) {
+			node = readNode(node.link);
+		}
+		return node;
+	}
+
+	/**
+	 * Moves the upper half of the entries of node, by bytes, into right, an
+	 * empty node of the same kind
+	 *
+	 * @return the key that separates the two nodes in their parent
+	 */
+	private static byte[] split(Node node, Node right) {
+		int size = node.keys.size();
+		int half = (node.bytes() - NODE_HEADER) / 2;
+		int m = 0;
+		for (int bytes = 0; bytes < half; m++) {
+			bytes += ENTRY_HEADER + node.keys.get(m).length;
+		}
+		m = Math.max(1, Math.min(m, node.leaf ? size - 1 : size - 2));
+
+		byte[] separator = node.keys.get(m);
+		if (node.leaf) {
+			right.link = node.link;
+			node.link = right.blockID;
+			right.keys.addAll(node.keys.subList(m, size));
+			right.values.addAll(node.values.subList(m, size));
+		} else {
+			// The separator moves up, its child becomes the first of right
+			right.link = node.values.get(m);
+			right.keys.addAll(node.keys.subList(m + 1, size));
+			right.values.addAll(node.values.subList(m + 1, size));
+		}
+		node.keys.subList(m, size).clear();
+		node.values.subList(m, size).clear();
+		return separator;
+	}
+
+	private Node readNode(int blockID) {
+		if (!DFSImpl.isDataBlock(blockID))
+			throw new IllegalStateException("Invalid name index block " + blockID);
+		byte[] bytes = new byte[Constants.BLOCK_SIZE];
+		_dfs.readValidBlock(blockID, 0, bytes, 0, Constants.BLOCK_SIZE);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int type = buffer.getInt();
+		int count = buffer.getInt();
+		if (type != NODE_LEAF && type != NODE_INNER || count < 0)
+			throw new IllegalStateException("Invalid name index block " + blockID);
+		Node node = new Node(blockID, type == NODE_LEAF);
+		node.link = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			int length = buffer.getShort() & 0xFFFF;
+			if (length > buffer.remaining() - Constants.BYTES_PER_INT)
+				throw new IllegalStateException("Invalid name index block " + blockID);
+			byte[] key = new byte[length];
+			buffer.get(key);
+			node.keys.add(key);
+			node.values.add(buffer.getInt());
+		}
+		return node;
+	}
+
+	/**
+	 * Writes a node into its block and logs the bytes it takes
+	 */
+	private void writeNode(Journal.Transaction tx, Node node) {
+		ByteBuffer buffer = ByteBuffer.allocate(node.bytes());
+		buffer.putInt(node.leaf ? NODE_LEAF : NODE_INNER);
+		buffer.putInt(node.keys.size());
+		buffer.putInt(node.link);
+		for (int i = 0; i < node.keys.size(); i++) {
+			buffer.putShort((short) node.keys.get(i).length);
+			buffer.put(node.keys.get(i));
+			buffer.putInt(node.values.get(i));
+		}
+		DBuffer dbuffer = _dfs.getValidBlock(node.blockID);
+		tx.pin(dbuffer);
+		dbuffer.write(0, buffer.array(), 0, buffer.capacity());
+		tx.logWrite(dbuffer, 0, buffer.capacity());
+		_dfs._cache.releaseBlock(dbuffer);
+	}
+
+	/**
+	 * Takes a zeroed block for a node
+	 */
+	private Node newNode(Journal.Transaction tx, boolean leaf) {
+		DBuffer dbuffer = _dfs._cache.getNewBlock();
+		if (dbuffer == null)
+			throw new IllegalStateException("No free block left for the name index");
+		tx.logNewBlock(dbuffer);
+		_dfs._cache.releaseBlock(dbuffer);
+		return new Node(dbuffer.getBlockID(), leaf);
+	}
+
+	private void setRoot(Journal.Transaction tx, int blockID) {
+		DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+		tx.pin(superblock);
+		superblock.putInt(Constants.SUPERBLOCK_NAME_INDEX, blockID);
+		tx.logWrite(superblock, Constants.SUPERBLOCK_NAME_INDEX * Constants.BYTES_PER_INT, Constants.BYTES_PER_INT);
+		_dfs._cache.releaseBlock(superblock);
+		_root = blockID;
+	}
+
+	private static boolean startsWith(byte[] key, byte[] prefix) {
+		return key.length >= prefix.length
+				&& Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+	}
+}
@@ -0,0 +1,285 @@
+package dfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.Constants;
+import dblockcache.DBuffer;
+
+/**
+ * The number of files beyond the first that share each block of the volume,
+ * kept for the blocks of cloned files. A block with a count of 0 belongs to
+ * one file at most and is freed when that file lets go of it; a block with a
+ * count of n is reached from n + 1 places and only its count goes down when
+ * one of them lets go.
+ *
+ * A block is shared as a whole with everything under it: when an indirect
+ * block or a block pointing to indirect blocks is shared, the blocks it points
+ * to are counted once for it, however many files reach it. Its count only
+ * moves to its children once it is copied.
+ *
+ * A data block can also be held by the index of the deduplicated blocks. It
+ * is then shared with the index: its content must not change, so the files
+ * mapping it copy it before they write to it, and it is freed along with the
+ * last of them.
+ *
+ * The counts are one byte per block, BLOCK_SIZE of them per count block, the
+ * top bit of which tells whether the block is held by the index. The ids of
+ * the count blocks are held by a root block whose id is kept in the
+ * superblock at SUPERBLOCK_REFCOUNTS. The root and the count blocks are taken
+ * the first time a block in their range is shared, and every change is logged
+ * in the journal.
+ *
+ * Counts are shared by all the files, so they are changed holding a lock that
+ * the transaction keeps until its record is appended, see
+ * Journal.Transaction.hold. Anything deciding whether a block is shared must
+ * hold it the same way
+ */
+class RefCounts {
+
+	/**
+	 * Most files beyond the first that can share a block
+	 */
+	static final int MAX_COUNT = 127;
+
+	/**
+	 * Set in the count of a block held by the index of deduplicated blocks
+	 */
+	private static final int INDEXED = 0x80;
+
+	private final DFSImpl _dfs;
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	/* Guarded by _lock */
+	private int _root;
+
+	/**
+	 * The ids of the count blocks as held by the root, so that a count is
+	 * found reading its count block alone. Guarded by _lock
+	 */
+	private final int[] _leaves = new int[Constants.INTS_IN_BLOCK];
+
+	RefCounts(DFSImpl dfs) {
+		_dfs = dfs;
+	}
+
+	/**
+	 * Reads the root of the counts from the superblock, once the journal is
+	 * replayed
+	 */
+	void load() {
+		_lock.lock();
+		try {
+			DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+			_root = 0;
+			Arrays.fill(_leaves, 0);
+			int magic = superblock.getInt(Constants.SUPERBLOCK_MAGIC_INDEX);
+			int root = superblock.getInt(Constants.SUPERBLOCK_REFCOUNTS);
+			_dfs._cache.releaseBlock(superblock);
+			if (magic != Constants.SUPERBLOCK_MAGIC)
+				return;
+			if (root != 0 && !DFSImpl.isDataBlock(root))
+				throw new IllegalStateException("Invalid reference count block " + root);
+			_root = root;
+			if (root == 0)
+				return;
+			DBuffer rootBuffer = _dfs.getValidBlock(root);
+			for (int i = 0; i < _leaves.length; i++) {
+				_leaves[i] = rootBuffer.getInt(i);
+			}
+			_dfs._cache.releaseBlock(rootBuffer);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the lock of the counts for as long as tx is open
+	 */
+	void hold(Journal.Transaction tx) {
+		tx.hold(_lock);
+	}
+
+	/**
+	 * @return the number of files beyond the first sharing blockID, the
+	 *         index counting as one of them. Callers acting on it hold the
+	 *         lock with hold
+	 */
+	int count(int blockID) {
+		int count = get(blockID);
+		return (count & MAX_COUNT) + (count & INDEXED) / INDEXED;
+	}
+
+	/**
+	 * @return false if blockID is shared by as many files as its count allows
+	 */
+	boolean canShare(int blockID) {
+		return (get(blockID) & MAX_COUNT) < MAX_COUNT;
+	}
+
+	/**
+	 * @return true if blockID is held by the index of deduplicated blocks
+	 */
+	boolean isIndexed(int blockID) {
+		return (get(blockID) & INDEXED) != 0;
+	}
+
+	/**
+	 * @return true if another file shares blockID, the index not counting as
+	 *         one
+	 */
+	boolean isShared(int blockID) {
+		return (get(blockID) & MAX_COUNT) > 0;
+	}
+
+	/**
+	 * Counts one more file sharing blockID
+	 *
+	 * @return false if MAX_COUNT files already share it beyond the first, the
+	 *         count is left as is then
+	 */
+	boolean share(Journal.Transaction tx, int blockID) {
+		hold(tx);
+		int count = get(blockID);
+		if ((count & MAX_COUNT) == MAX_COUNT)
+			return false;
+		set(tx, blockID, count + 1);
+		return true;
+	}
+
+	/**
+	 * Counts one file less sharing blockID. A block the last file lets go of
+	 * is dropped from the index of deduplicated blocks
+	 *
+	 * @return false if no other file shares blockID, so the caller must free
+	 *         it
+	 */
+	boolean release(Journal.Transaction tx, int blockID) {
+		hold(tx);
+		int count = get(blockID);
+		if ((count & MAX_COUNT) > 0) {
+			set(tx, blockID, count - 1);
+			return true;
+		}
+		if (count != 0) {
+			set(tx, blockID, 0);
+			_dfs._dedup.forget(blockID);
+		}
+		return false;
+	}
+
+	/**
+	 * Drops blockID from the index of deduplicated blocks, so that the one
+	 * file mapping it can change it in place
+	 *
+	 * @return false if another file shares blockID, the count is left as is
+	 *         then
+	 */
+	boolean unindex(Journal.Transaction tx, int blockID) {
+		hold(tx);
+		int count = get(blockID);
+		if ((count & MAX_COUNT) > 0)
+			return false;
+		if (count != 0) {
+			set(tx, blockID, 0);
+			_dfs._dedup.forget(blockID);
+		}
+		return true;
+	}
+
+	/**
+	 * Marks blockID as held by the index of deduplicated blocks
+	 */
+	void index(Journal.Transaction tx, int blockID) {
+		hold(tx);
+		set(tx, blockID, get(blockID) | INDEXED);
+	}
+
+	/**
+	 * @return the root block and the count blocks
+	 */
+	List<Integer> blocks() {
+		List<Integer> blocks = new ArrayList<>();
+		_lock.lock();
+		try {
+			if (_root == 0)
+				return blocks;
+			blocks.add(_root);
+			for (int leaf : _leaves) {
+				if (leaf != 0)
+					blocks.add(leaf);
+			}
+			return blocks;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the byte holding the count of blockID
+	 */
+	private int get(int blockID) {
+		_lock.lock();
+		try {
+			int leaf = leafOf(blockID);
+			if (leaf == 0)
+				return 0;
+			byte[] count = new byte[1];
+			_dfs.readValidBlock(leaf, blockID % Constants.BLOCK_SIZE, count, 0, 1);
+			return count[0] & 0xFF;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the count block holding the count of blockID, 0 if it was never
+	 *         taken. Called holding _lock
+	 */
+	private int leafOf(int blockID) {
+		return _leaves[blockID / Constants.BLOCK_SIZE];
+	}
+
+	/**
+	 * Sets the count of blockID and logs it, taking the root and the count
+	 * block first if needed. Called holding _lock
+	 */
+	private void set(Journal.Transaction tx, int blockID, int count) {
+		if (_root == 0) {
+			_root = newBlock(tx);
+			DBuffer superblock = _dfs.getValidBlock(Constants.SUPERBLOCK_ID);
+			tx.pin(superblock);
+			superblock.putInt(Constants.SUPERBLOCK_REFCOUNTS, _root);
+			tx.logWrite(superblock, Constants.SUPERBLOCK_REFCOUNTS * Constants.BYTES_PER_INT, Constants.BYTES_PER_INT);
+			_dfs._cache.releaseBlock(superblock);
+		}
+		int leaf = leafOf(blockID);
+		if (leaf == 0) {
+			leaf = newBlock(tx);
+			DBuffer root = _dfs.getValidBlock(_root);
+			int index = blockID / Constants.BLOCK_SIZE;
+			tx.pin(root);
+			root.putInt(index, leaf);
+			tx.logWrite(root, index * Constants.BYTES_PER_INT, Constants.BYTES_PER_INT);
+			_dfs._cache.releaseBlock(root);
+			_leaves[index] = leaf;
+		}
+		DBuffer dbuffer = _dfs.getValidBlock(leaf);
+		int offset = blockID % Constants.BLOCK_SIZE;
+		tx.pin(dbuffer);
+		dbuffer.write(offset, new byte[] { (byte) count }, 0, 1);
+		tx.logWrite(dbuffer, offset, 1);
+		_dfs._cache.releaseBlock(dbuffer);
+	}
+
+	private int newBlock(Journal.Transaction tx) {
+		DBuffer dbuffer = _dfs._cache.getNewBlock();
+		if (dbuffer == null)
+			throw new IllegalStateException("No free block left for the reference counts");
+		tx.logNewBlock(dbuffer);
+		_dfs._cache.releaseBlock(dbuffer);
+		return dbuffer.getBlockID();
+	}
+}
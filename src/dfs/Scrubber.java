@@ -0,0 +1,467 @@
+package dfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import common.Constants;
+import common.DFile;
+import dblockcache.DBuffer;
+
+/**
+ * Checks the volume in the background while it is in use. Each pass walks the
+ * inode table and then the indirect blocks of every file, checking the same
+ * invariants as the mount does:
+ * -> Every inode holds a DFileId within bounds, and no two inodes hold the same
+ * -> Every block a file maps, including its indirect blocks and the blocks
+ * pointing to them, lies within the data region, is not free and is not a
+ * block of the inode table, of the name index or of the reference counts
+ * -> No block is mapped twice, by one file or by two files, unless it or a
+ * block above it is counted as shared by cloned files
+ *
+ * Problems are reported to a listener instead of stopping the volume, and the
+ * number of passes, files, blocks and problems is counted.
+ *
+ * The scrubber is throttled to a number of blocks per second and its reads go
+ * to the background queue of the disk, so they only run while the disk has
+ * nothing else to do. The indirect blocks are fetched without holding any
+ * lock; the read lock of a file is only held while the entries of one cached
+ * block are copied. Since files keep changing during a pass, a problem is only
+ * reported once it is found again under the lock of the files involved
+ */
+public class Scrubber implements Runnable {
+
+	/**
+	 * Receives the problems found by the scrubber, on the scrubber thread
+	 */
+	public interface Listener {
+
+		/**
+		 * @param fileID
+		 *            the file the problem was found in, or 0 if none
+		 * @param blockID
+		 *            the block the problem was found in, or 0 if none
+		 */
+		void problemFound(int fileID, int blockID, String problem);
+	}
+
+	/**
+	 * Milliseconds between the end of a pass and the start of the next
+	 */
+	private static final long PASS_INTERVAL = 1000;
+
+	private DFSImpl _dfs;
+	private Listener _listener;
+	private long _blockDelay;
+	private boolean _running;
+	private Thread _thread;
+
+	/**
+	 * The blocks of the name index, as of the start of the pass
+	 */
+	private Set<Integer> _nameBlocks = Collections.emptySet();
+
+	/**
+	 * The blocks of the reference counts, as of the start of the pass
+	 */
+	private Set<Integer> _refBlocks = Collections.emptySet();
+
+	private final AtomicLong _passes = new AtomicLong();
+	private final AtomicLong _filesScanned = new AtomicLong();
+	private final AtomicLong _blocksScanned = new AtomicLong();
+	private final AtomicLong _problemsFound = new AtomicLong();
+
+	/**
+	 * @param blocksPerSecond
+	 *            the most blocks scanned per second, 0 for no limit
+	 */
+	Scrubber(DFSImpl dfs, Listener listener, int blocksPerSecond) {
+		_dfs = dfs;
+		_listener = listener;
+		_blockDelay = blocksPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / blocksPerSecond : 0;
+	}
+
+	synchronized void start() {
+		_running = true;
+		_thread = new Thread(this, "DFS scrubber");
+		_thread.setDaemon(true);
+		_thread.setPriority(Thread.MIN_PRIORITY);
+		_thread.start();
+	}
+
+	/**
+	 * Stops the scrubber and waits for the block being scanned to finish
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			_running = false;
+			notifyAll();
+			thread = _thread;
+		}
+		if (thread == null || thread == Thread.currentThread())
+			return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return _running;
+	}
+
+	public long getPasses() {
+		return _passes.get();
+	}
+
+	public long getFilesScanned() {
+		return _filesScanned.get();
+	}
+
+	public long getBlocksScanned() {
+		return _blocksScanned.get();
+	}
+
+	public long getProblemsFound() {
+		return _problemsFound.get();
+	}
+
+	@Override
+	public void run() {
+		while (isRunning()) {
+			if (scrub())
+				_passes.incrementAndGet();
+			pause(TimeUnit.MILLISECONDS.toNanos(PASS_INTERVAL));
+		}
+	}
+
+	/**
+	 * Runs one pass over the volume
+	 *
+	 * @return false if the scrubber was stopped before the pass was over
+	 */
+	private boolean scrub() {
+		if (!scrubInodes())
+			return false;
+		_nameBlocks = new HashSet<>(_dfs._names.blocks());
+		_refBlocks = new HashSet<>(_dfs._refs.blocks());
+		// owners[i] is the last file seen mapping block i during this pass
+		int[] owners = new int[Constants.NUM_OF_BLOCKS];
+		for (DFile file : _dfs._files.files()) {
+			if (!isRunning())
+				return false;
+			scrubFile(file, owners);
+			_filesScanned.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the DFileId held by every inode of the inode table
+	 */
+	private boolean scrubInodes() {
+		int intsInInode = Constants.INODE_SIZE / Constants.BYTES_PER_INT;
+		// slots[i] is one more than the slot the inode of file i was seen in
+		int[] slots = new int[Constants.MAX_DFILES + 1];
+		int span = _dfs._inodes.span();
+		for (int first = 0; first < span; first += Constants.INODES_IN_BLOCK) {
+			if (!isRunning())
+				return false;
+			int b = _dfs._inodes.blockOf(first);
+			DBuffer dbuffer = b == 0 ? null : fetch(b);
+			if (dbuffer == null)
+				continue;
+			for (int i = 0; i < Constants.INODES_IN_BLOCK; i++) {
+				int fileID = dbuffer.getInt(i * intsInInode + Constants.INODE_FID);
+				int slot = first + i;
+				if (fileID == 0)
+					continue;
+				if (fileID < 1 || fileID > Constants.MAX_DFILES) {
+					if (inodeFileId(slot) == fileID)
+						report(0, b, "Invalid DFileId value of: " + fileID + " in inode " + slot);
+				} else if (slots[fileID] != 0) {
+					int other = slots[fileID] - 1;
+					if (inodeFileId(slot) == fileID && inodeFileId(other) == fileID)
+						report(fileID, b, "DFileId " + fileID + " is held by inodes " + other + " and " + slot);
+				} else {
+					slots[fileID] = slot + 1;
+				}
+			}
+			_dfs._cache.releaseBlock(dbuffer);
+			scanned();
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the blocks mapped by one file
+	 */
+	private void scrubFile(DFile file, int[] owners) {
+		int fileID = file.getFileId();
+		List<Integer> indirectBlocks;
+		List<Integer> pointerBlocks;
+		List<Integer> children;
+		int doubleIndirect;
+		int triple;
+		Lock lock = file.getLock().readLock();
+		lock.lock();
+		try {
+			if (_dfs._files.get(fileID) != file)
+				return;
+			int maxSize = file.isInline() ? Constants.INODE_INLINE_SIZE : Constants.MAX_FILE_SIZE;
+			if (file.getSize() < 0 || file.getSize() > maxSize)
+				report(fileID, 0, "Invalid File Size " + file.getSize());
+			indirectBlocks = new ArrayList<>(file.getIndirectBlocks());
+			pointerBlocks = file.getPointerBlocks();
+			children = new ArrayList<>(file.getTripleChildren());
+			doubleIndirect = file.getDoubleIndirectBlock();
+			triple = file.getTripleIndirectBlock();
+		} finally {
+			lock.unlock();
+		}
+
+		// Only the blocks of cloned files are ever shared
+		boolean cloned = file.isShared();
+		boolean tripleShared = cloned && triple != 0 && isShared(triple);
+		for (int pointerBlock : pointerBlocks) {
+			checkBlock(file, pointerBlock, owners, cloned && (isShared(pointerBlock)
+					|| tripleShared && children.contains(pointerBlock)));
+		}
+
+		for (int index = 0; index < indirectBlocks.size(); index++) {
+			if (!isRunning())
+				return;
+			int indirectBlock = indirectBlocks.get(index);
+			// A hole has no block to check
+			if (indirectBlock == 0)
+				continue;
+			boolean shared = false;
+			if (cloned) {
+				int i = index - Constants.INODE_INDIRECT_SLOTS;
+				if (i >= Constants.INTS_IN_BLOCK) {
+					i = (i - Constants.INTS_IN_BLOCK) / Constants.INTS_IN_BLOCK;
+					shared = tripleShared || i < children.size() && isShared(children.get(i));
+				} else if (i >= 0) {
+					shared = doubleIndirect != 0 && isShared(doubleIndirect);
+				}
+				shared = shared || isShared(indirectBlock);
+			}
+			if (!checkBlock(file, indirectBlock, owners, shared))
+				continue;
+			// Fetch with no lock held, writers of the file never wait on the scrubber's I/O
+			DBuffer dbuffer = fetch(indirectBlock);
+			if (dbuffer == null)
+				continue;
+
+			int[] entries = new int[Constants.INTS_IN_BLOCK];
+			lock.lock();
+			try {
+				// The file changed meanwhile, it is seen again next pass
+				if (_dfs._files.get(fileID) != file || !file.getIndirectBlocks().contains(indirectBlock))
+					continue;
+				for (int i = 0; i < Constants.INTS_IN_BLOCK; i++) {
+					entries[i] = dbuffer.getInt(i);
+				}
+			} finally {
+				lock.unlock();
+				_dfs._cache.releaseBlock(dbuffer);
+			}
+
+			for (int dataBlock : entries) {
+				if (dataBlock != 0)
+					checkBlock(file, dataBlock, owners, shared || cloned && isShared(dataBlock));
+			}
+			scanned();
+		}
+	}
+
+	/**
+	 * Checks one block mapped by file and records file as its owner
+	 *
+	 * @param shared
+	 *            whether the block or a block above it is shared by cloned
+	 *            files, which may then all map it
+	 * @return false if the block must not be read
+	 */
+	private boolean checkBlock(DFile file, int blockID, int[] owners, boolean shared) {
+		int fileID = file.getFileId();
+		if (!DFSImpl.isDataBlock(blockID)) {
+			if (countMappings(file, blockID) > 0)
+				report(fileID, blockID, "Invalid block index.");
+			return false;
+		}
+		if (_dfs._inodes.contains(blockID)) {
+			if (countMappings(file, blockID) > 0)
+				report(fileID, blockID, "Block of the inode table is mapped by a file.");
+			return false;
+		}
+		if (_nameBlocks.contains(blockID)) {
+			if (countMappings(file, blockID) > 0 && _dfs._names.blocks().contains(blockID))
+				report(fileID, blockID, "Block of the name index is mapped by a file.");
+			return false;
+		}
+		if (_refBlocks.contains(blockID)) {
+			if (countMappings(file, blockID) > 0)
+				report(fileID, blockID, "Block of the reference counts is mapped by a file.");
+			return false;
+		}
+		if (_dfs._cache.containsFreeBlock(blockID)) {
+			if (isMappedWhileFree(file, blockID))
+				report(fileID, blockID, "Mapped block is marked free.");
+			return false;
+		}
+
+		if (shared)
+			return true;
+		int owner = owners[blockID];
+		owners[blockID] = fileID;
+		if (owner == fileID) {
+			if (countMappings(file, blockID) > 1)
+				report(fileID, blockID, "One block should only be mapped by one file.");
+		} else if (owner != 0) {
+			DFile other = _dfs._files.get(owner);
+			if (other != null && isMappedByBoth(other, file, blockID) && !isShared(blockID))
+				report(fileID, blockID, "One block should only be mapped by one file, also mapped by " + owner);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if blockID is counted as shared by cloned files right now
+	 */
+	private boolean isShared(int blockID) {
+		return _dfs._refs.count(blockID) > 0;
+	}
+
+	/**
+	 * Counts, under the read lock of file, how many times file maps blockID
+	 * right now. Used to confirm a problem before it is reported
+	 */
+	private int countMappings(DFile file, int blockID) {
+		Lock lock = file.getLock().readLock();
+		lock.lock();
+		try {
+			return mappings(file, blockID);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if, under the read locks of both files, each of them maps
+	 *         blockID. The locks are taken in id order
+	 */
+	private boolean isMappedByBoth(DFile a, DFile b, int blockID) {
+		Lock first = (a.getFileId() < b.getFileId() ? a : b).getLock().readLock();
+		Lock second = (a.getFileId() < b.getFileId() ? b : a).getLock().readLock();
+		first.lock();
+		second.lock();
+		try {
+			return mappings(a, blockID) > 0 && mappings(b, blockID) > 0;
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+	}
+
+	/**
+	 * @return true if, under the read lock of file, file maps blockID and the
+	 *         block is free
+	 */
+	private boolean isMappedWhileFree(DFile file, int blockID) {
+		Lock lock = file.getLock().readLock();
+		lock.lock();
+		try {
+			return mappings(file, blockID) > 0 && _dfs._cache.containsFreeBlock(blockID);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts how many times file maps blockID. The caller holds the lock of
+	 * the file. Indirect blocks are read without taking free blocks
+	 */
+	private int mappings(DFile file, int blockID) {
+		if (_dfs._files.get(file.getFileId()) != file)
+			return 0;
+		int count = Collections.frequency(file.getIndirectBlocks(), blockID)
+				+ Collections.frequency(file.getPointerBlocks(), blockID);
+		for (int indirectBlock : file.getIndirectBlocks()) {
+			DBuffer dbuffer = DFSImpl.isDataBlock(indirectBlock) ? fetch(indirectBlock) : null;
+			if (dbuffer == null)
+				continue;
+			for (int i = 0; i < Constants.INTS_IN_BLOCK; i++) {
+				if (dbuffer.getInt(i) == blockID)
+					count++;
+			}
+			_dfs._cache.releaseBlock(dbuffer);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the DFileId held right now by an inode slot
+	 */
+	private int inodeFileId(int slot) {
+		DBuffer dbuffer = fetch(_dfs._inodes.blockOf(slot));
+		int inode = (slot % Constants.INODES_IN_BLOCK) * (Constants.INODE_SIZE / Constants.BYTES_PER_INT);
+		int fileID = dbuffer.getInt(inode + Constants.INODE_FID);
+		_dfs._cache.releaseBlock(dbuffer);
+		return fileID;
+	}
+
+	/**
+	 * Gets a valid block from the cache, reading it at background priority.
+	 * The buffer is held until released
+	 *
+	 * @return the buffer, or null if the block is free
+	 */
+	private DBuffer fetch(int blockID) {
+		DBuffer dbuffer = _dfs._cache.getBlockInBackground(blockID);
+		if (dbuffer == null)
+			return null;
+		if (!dbuffer.checkValid()) {
+			if (!dbuffer.isBusy())
+				dbuffer.startBackgroundFetch();
+			dbuffer.waitValid();
+		}
+		return dbuffer;
+	}
+
+	private void report(int fileID, int blockID, String problem) {
+		_problemsFound.incrementAndGet();
+		if (_listener != null)
+			_listener.problemFound(fileID, blockID, problem);
+	}
+
+	/**
+	 * Counts a scanned block and sleeps long enough to keep to the block rate
+	 */
+	private void scanned() {
+		_blocksScanned.incrementAndGet();
+		pause(_blockDelay);
+	}
+
+	/**
+	 * Sleeps for up to nanos, returning early if the scrubber is stopped
+	 */
+	private synchronized void pause(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		while (_running && nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			} catch (InterruptedException e) {
+				return;
+			}
+			nanos = deadline - System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import common.Constants;
+import common.DFileID;
+import dfs.DFS;
+import dfs.DFSImpl;
+
+/**
+ * Checks a file larger than the cache. It is written with one request that
+ * runs through the double indirect blocks into the triple indirect ones, and
+ * gets a few blocks far into the triple indirect range past a hole. The file
+ * is read back, then read again after the volume is mounted again. Exits with
+ * 1 on the first failure
+ */
+public class BigFileTester {
+
+	private static final String VOLUME = "BIGFILE.dat";
+	private static final long SEED = 35;
+
+	/* Past the blocks mapped by the inode and the double indirect block */
+	private static final int SIZE = (Constants.INODE_INDIRECT_SLOTS + Constants.INTS_IN_BLOCK + 4)
+			* Constants.INTS_IN_BLOCK * Constants.BLOCK_SIZE;
+	private static final int TAIL_OFFSET = 1536 * 1024 * 1024 + 100;
+	private static final int TAIL_SIZE = 3 * Constants.BLOCK_SIZE;
+
+	public static void main(String args[]) throws Exception {
+		check(SIZE > Constants.NUM_OF_CACHE_BLOCKS * Constants.BLOCK_SIZE, "the file fits in the cache");
+		new File(VOLUME).delete();
+		DFS dfs = new DFSImpl(VOLUME, true);
+		dfs.init();
+		DFileID file = dfs.createDFile();
+		check(file != null, "create failed");
+		byte[] data = contents(0, SIZE);
+		check(dfs.write(file, 0, new ByteBuffer[] { ByteBuffer.wrap(data) }) == SIZE, "write failed");
+		byte[] tail = contents(1, TAIL_SIZE);
+		check(dfs.write(file, TAIL_OFFSET, new ByteBuffer[] { ByteBuffer.wrap(tail) }) == TAIL_SIZE,
+				"write past the hole failed");
+		verify(dfs, file, data, tail);
+		dfs.unmount();
+
+		dfs = new DFSImpl(VOLUME, false);
+		dfs.init();
+		verify(dfs, file, data, tail);
+		dfs.unmount();
+		new File(VOLUME).delete();
+		System.out.println("Test case passed!");
+		System.exit(0);
+	}
+
+	private static void verify(DFS dfs, DFileID file, byte[] data, byte[] tail) {
+		check(dfs.sizeDFile(file) == TAIL_OFFSET + TAIL_SIZE, "file is " + dfs.sizeDFile(file) + " bytes, "
+				+ (TAIL_OFFSET + TAIL_SIZE) + " expected");
+		ByteBuffer read = ByteBuffer.allocate(SIZE);
+		check(dfs.read(file, 0, new ByteBuffer[] { read }) == SIZE, "read failed");
+		check(Arrays.equals(read.array(), data), "file differs at byte " + mismatch(read.array(), data));
+
+		// The hole reads as zeros up to the tail
+		ByteBuffer end = ByteBuffer.allocate(Constants.BLOCK_SIZE + TAIL_SIZE);
+		check(dfs.read(file, TAIL_OFFSET - Constants.BLOCK_SIZE, new ByteBuffer[] { end }) == end.capacity(),
+				"read of the tail failed");
+		byte[] expected = new byte[end.capacity()];
+		System.arraycopy(tail, 0, expected, Constants.BLOCK_SIZE, TAIL_SIZE);
+		check(Arrays.equals(end.array(), expected), "tail differs at byte "
+				+ (TAIL_OFFSET - Constants.BLOCK_SIZE + mismatch(end.array(), expected)));
+	}
+
+	private static int mismatch(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i])
+				return i;
+		}
+		return -1;
+	}
+
+	private static byte[] contents(int i, int size) {
+		byte[] data = new byte[size];
+		new Random(SEED + i).nextBytes(data);
+		return data;
+	}
+
+	private static void check(boolean passed, String message) {
+		if (passed)
+			return;
+		System.out.println("Test case failed! " + message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,138 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import common.DFileID;
+import dfs.DFS;
+import dfs.DFSImpl;
+
+/**
+ * Checks that a compressed volume reads the same after it is mounted again.
+ * Files are written, some of them several times, and the volume unmounted,
+ * so the next mount reads the table saved at unmount. A child JVM then
+ * rewrites some files, syncs and halts without unmounting, so the mount after
+ * it rebuilds the table from the containers. Exits with 1 on the first
+ * failure
+ */
+public class CompressedTester {
+
+	private static final String VOLUME = "COMPRESSED.dat";
+	private static final int FILES = 200;
+	private static final long SEED = 46;
+
+	public static void main(String args[]) throws Exception {
+		if (args.length > 0 && args[0].equals("crash")) {
+			crash();
+			return;
+		}
+		new File(VOLUME).delete();
+		DFS dfs = new DFSImpl(VOLUME, true, true);
+		dfs.init();
+		List<DFileID> files = dfs.createDFiles(FILES);
+		check(files.size() == FILES, "created " + files.size() + " files of " + FILES);
+		for (int version = 0; version < 2; version++) {
+			for (int i = 0; i < FILES; i++) {
+				if (version == 0 || i % 2 == 0)
+					write(dfs, files.get(i), i, version);
+			}
+		}
+		verify(dfs, 1);
+		dfs.unmount();
+
+		dfs = new DFSImpl(VOLUME, false, true);
+		dfs.init();
+		verify(dfs, 1);
+		dfs.unmount();
+
+		Process child = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator
+				+ "java", "-cp", System.getProperty("java.class.path"), CompressedTester.class.getName(), "crash")
+				.inheritIO().start();
+		check(child.waitFor() == 0, "the child JVM did not reach its halt");
+
+		dfs = new DFSImpl(VOLUME, false, true);
+		dfs.init();
+		verify(dfs, 2);
+		dfs.unmount();
+
+		dfs = new DFSImpl(VOLUME, false, true);
+		dfs.init();
+		verify(dfs, 2);
+		dfs.unmount();
+		new File(VOLUME).delete();
+		System.out.println("Test case passed!");
+		System.exit(0);
+	}
+
+	/**
+	 * Runs in the child JVM: every file with an even index gets its third
+	 * version
+	 */
+	private static void crash() {
+		DFS dfs = new DFSImpl(VOLUME, false, true);
+		dfs.init();
+		List<DFileID> files = dfs.listAllDFiles();
+		for (DFileID file : files) {
+			int i = file.getDFileID() - 1;
+			if (i % 2 == 0)
+				write(dfs, file, i, 2);
+		}
+		dfs.sync();
+		Runtime.getRuntime().halt(0);
+	}
+
+	private static void write(DFS dfs, DFileID file, int i, int version) {
+		byte[] data = contents(i, version);
+		check(dfs.write(file, 0, new ByteBuffer[] { ByteBuffer.wrap(data) }) == data.length, "write of file " + i
+				+ " failed");
+		dfs.truncate(file, data.length);
+	}
+
+	/**
+	 * Checks every file against the last version written to it, the files
+	 * with an even index having been written up to version
+	 */
+	private static void verify(DFS dfs, int version) {
+		List<DFileID> files = dfs.listAllDFiles();
+		check(files.size() == FILES, files.size() + " files, " + FILES + " expected");
+		for (DFileID file : files) {
+			// Files are numbered from 1 in the order they were created
+			int i = file.getDFileID() - 1;
+			byte[] data = contents(i, i % 2 == 0 ? version : 0);
+			check(dfs.sizeDFile(file) == data.length, "file " + i + " is " + dfs.sizeDFile(file) + " bytes, "
+					+ data.length + " expected");
+			ByteBuffer read = ByteBuffer.allocate(data.length);
+			check(dfs.read(file, 0, new ByteBuffer[] { read }) == data.length, "read of file " + i + " failed");
+			check(Arrays.equals(read.array(), data), "file " + i + " differs");
+		}
+	}
+
+	/**
+	 * Every third file is random and does not compress, the others repeat a
+	 * short random run. Each version has a size of its own
+	 */
+	private static byte[] contents(int i, int version) {
+		Random random = new Random(SEED + i * 3 + version);
+		byte[] data = new byte[new int[] { 3000, 70000, 300000 }[(i + version) % 3] + i];
+		if (i % 3 == 0) {
+			random.nextBytes(data);
+		} else {
+			byte[] run = new byte[1 + random.nextInt(200)];
+			random.nextBytes(run);
+			for (int j = 0; j < data.length; j++) {
+				data[j] = run[j % run.length];
+			}
+		}
+		return data;
+	}
+
+	private static void check(boolean passed, String message) {
+		if (passed)
+			return;
+		System.out.println("Test case failed! " + message);
+		System.exit(1);
+	}
+}
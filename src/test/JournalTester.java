@@ -0,0 +1,114 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import common.DFileID;
+import dfs.DFS;
+import dfs.DFSImpl;
+
+/**
+ * Checks that the journal brings a volume back after a crash. A child JVM
+ * creates, writes, truncates and destroys files, syncs, and halts without
+ * unmounting, leaving the metadata in the journal only. The volume is then
+ * mounted again, which replays the journal, and every file is checked. Exits
+ * with 1 on the first failure
+ */
+public class JournalTester {
+
+	private static final String VOLUME = "JOURNAL.dat";
+	private static final int FILES = 300;
+	private static final long SEED = 34;
+
+	public static void main(String args[]) throws Exception {
+		if (args.length > 0 && args[0].equals("crash")) {
+			crash();
+			return;
+		}
+		new File(VOLUME).delete();
+		Process child = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator
+				+ "java", "-cp", System.getProperty("java.class.path"), JournalTester.class.getName(), "crash")
+				.inheritIO().start();
+		check(child.waitFor() == 0, "the child JVM did not reach its halt");
+
+		DFS dfs = new DFSImpl(VOLUME, false);
+		dfs.init();
+		verify(dfs);
+		dfs.unmount();
+
+		// A clean unmount leaves nothing to replay, the volume must read the same
+		dfs = new DFSImpl(VOLUME, false);
+		dfs.init();
+		verify(dfs);
+		dfs.unmount();
+		new File(VOLUME).delete();
+		System.out.println("Test case passed!");
+		System.exit(0);
+	}
+
+	/**
+	 * Runs in the child JVM: every file i gets size(i) bytes, the files past
+	 * FILES / 2 are cut to half, and every tenth file is destroyed
+	 */
+	private static void crash() {
+		DFS dfs = new DFSImpl(VOLUME, true);
+		dfs.init();
+		List<DFileID> files = dfs.createDFiles(FILES);
+		check(files.size() == FILES, "created " + files.size() + " files of " + FILES);
+		for (int i = 0; i < FILES; i++) {
+			byte[] data = contents(i, size(i));
+			check(dfs.write(files.get(i), 0, new ByteBuffer[] { ByteBuffer.wrap(data) }) == data.length,
+					"write of file " + i + " failed");
+		}
+		dfs.sync();
+		for (int i = 0; i < FILES; i++) {
+			if (i % 10 == 0)
+				dfs.destroyDFile(files.get(i));
+			else if (i >= FILES / 2)
+				dfs.truncate(files.get(i), size(i) / 2);
+		}
+		dfs.sync();
+		Runtime.getRuntime().halt(0);
+	}
+
+	private static void verify(DFS dfs) {
+		List<DFileID> files = dfs.listAllDFiles();
+		check(files.size() == FILES - FILES / 10, files.size() + " files after the crash, "
+				+ (FILES - FILES / 10) + " expected");
+		for (DFileID file : files) {
+			// Files are numbered from 1 in the order they were created
+			int i = file.getDFileID() - 1;
+			check(i % 10 != 0, "destroyed file " + i + " is back");
+			int size = i >= FILES / 2 ? size(i) / 2 : size(i);
+			check(dfs.sizeDFile(file) == size, "file " + i + " is " + dfs.sizeDFile(file) + " bytes, " + size
+					+ " expected");
+			ByteBuffer read = ByteBuffer.allocate(size);
+			check(dfs.read(file, 0, new ByteBuffer[] { read }) == size, "read of file " + i + " failed");
+			check(Arrays.equals(read.array(), Arrays.copyOf(contents(i, size(i)), size)), "file " + i
+					+ " differs");
+		}
+	}
+
+	/**
+	 * Sizes from inline files to ones mapped through a few indirect blocks
+	 */
+	private static int size(int i) {
+		return new int[] { 40, 3000, 70000, 600000 }[i % 4] + i;
+	}
+
+	private static byte[] contents(int i, int size) {
+		byte[] data = new byte[size];
+		new Random(SEED + i).nextBytes(data);
+		return data;
+	}
+
+	private static void check(boolean passed, String message) {
+		if (passed)
+			return;
+		System.out.println("Test case failed! " + message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,79 @@
+package test;
+
+/**
+ * Counts latencies in nanoseconds in buckets of logarithmic width: every
+ * power of two is split into SUB_BUCKETS buckets, so a percentile is off by
+ * less than 1/SUB_BUCKETS of its value whatever its magnitude. Not thread
+ * safe, each worker keeps its own and they are added up at the end
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final long[] _counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+	private long _count;
+	private long _sum;
+	private long _max;
+
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		_counts[bucket(nanos)]++;
+		_count++;
+		_sum += nanos;
+		_max = Math.max(_max, nanos);
+	}
+
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < _counts.length; i++) {
+			_counts[i] += other._counts[i];
+		}
+		_count += other._count;
+		_sum += other._sum;
+		_max = Math.max(_max, other._max);
+	}
+
+	long getCount() {
+		return _count;
+	}
+
+	long getMax() {
+		return _max;
+	}
+
+	double getMean() {
+		return _count == 0 ? 0 : (double) _sum / _count;
+	}
+
+	/**
+	 * @return the highest latency of the bucket holding the latency below
+	 *         which a fraction p of the latencies fall, at most the maximum
+	 */
+	long getPercentile(double p) {
+		long rank = Math.max(1, (long) Math.ceil(p * _count));
+		long seen = 0;
+		for (int i = 0; i < _counts.length; i++) {
+			seen += _counts[i];
+			if (seen >= rank)
+				return Math.min(_max, highest(i));
+		}
+		return _max;
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long highest(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
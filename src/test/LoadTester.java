@@ -0,0 +1,511 @@
+package test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.Constants;
+import common.DFileID;
+import dfs.DFS;
+import dfs.DFSImpl;
+
+/**
+ * Multithreaded load generator for the DFS. A number of worker threads run a
+ * weighted mix of create, read, write, destroy and sync operations on a fixed
+ * number of file slots for a while, after a warm-up whose operations are not
+ * counted, and the throughput and the latency percentiles of every operation
+ * are reported at the end.
+ *
+ * Options are given as key=value arguments:
+ * - threads=16: number of worker threads
+ * - duration=30 and warmup=5: seconds measured, and run before that
+ * - files=1000: number of file slots, half of which are filled before the run
+ * - mix=create:5,read:50,write:30,destroy:5,sync:1: weights of the operations
+ * - sizes=4096:70,65536:25,1048576:5: file sizes and their weights
+ * - skew=uniform, or skew=zipf:0.99: how the slot of each operation is picked
+ * - seed=1 and volume=LOAD.dat: the seed of the workers and the volume, which
+ *   is formatted
+ *
+ * A slot holds at most one file. A write rewrites the whole file with new
+ * contents of a new size, and a read reads it whole and checks every byte, the
+ * contents being generated from a seed the slot keeps. Operations on one slot
+ * are kept apart by a lock of the slot, reads sharing it. A read, write or
+ * destroy that picks an empty slot creates the file instead, and a create
+ * that picks a full one takes the next empty slot. Every file is checked once
+ * more after the run, and the tester exits with 1 if any check failed
+ */
+public class LoadTester {
+
+	private enum Op {
+		CREATE, READ, WRITE, DESTROY, SYNC
+	}
+
+	private static class Slot {
+		private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+		private DFileID _file;
+		private long _seed;
+		private int _size;
+	}
+
+	private final DFS _dfs;
+	private final int _threads;
+	private final long _duration;
+	private final long _warmup;
+	private final long _seed;
+	private final Slot[] _slots;
+	private final Op[] _ops = Op.values();
+	private final int[] _mix;
+	private final int[] _sizes;
+	private final int[] _sizeWeights;
+	private final int _maxSize;
+	private final double _theta;
+	private final double[] _zipf;
+
+	private final AtomicLong _checks = new AtomicLong();
+	private final AtomicLong _failures = new AtomicLong();
+	private final AtomicLong _versions = new AtomicLong();
+	private final PrintStream _out;
+
+	private long _start;
+	private long _end;
+
+	LoadTester(DFS dfs, Map<String, String> options, PrintStream out) {
+		_dfs = dfs;
+		_out = out;
+		_threads = Integer.parseInt(options.get("threads"));
+		_duration = Long.parseLong(options.get("duration")) * 1000000000L;
+		_warmup = Long.parseLong(options.get("warmup")) * 1000000000L;
+		_seed = Long.parseLong(options.get("seed"));
+		_slots = new Slot[Integer.parseInt(options.get("files"))];
+		for (int i = 0; i < _slots.length; i++) {
+			_slots[i] = new Slot();
+		}
+
+		_mix = new int[_ops.length];
+		for (Map.Entry<String, Integer> entry : weights(options.get("mix")).entrySet()) {
+			_mix[Op.valueOf(entry.getKey().toUpperCase(Locale.ROOT)).ordinal()] = entry.getValue();
+		}
+		Map<String, Integer> sizes = weights(options.get("sizes"));
+		_sizes = new int[sizes.size()];
+		_sizeWeights = new int[sizes.size()];
+		int i = 0;
+		int maxSize = 0;
+		for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+			_sizes[i] = Integer.parseInt(entry.getKey());
+			if (_sizes[i] < 0 || _sizes[i] > Constants.MAX_FILE_SIZE)
+				throw new IllegalArgumentException("Bad file size " + _sizes[i]);
+			_sizeWeights[i++] = entry.getValue();
+			maxSize = Math.max(maxSize, _sizes[i - 1]);
+		}
+		_maxSize = maxSize;
+
+		String skew = options.get("skew");
+		if (skew.equals("uniform")) {
+			_theta = 0;
+			_zipf = null;
+		} else if (skew.startsWith("zipf")) {
+			_theta = skew.indexOf(':') < 0 ? 0.99 : Double.parseDouble(skew.substring(skew.indexOf(':') + 1));
+			if (_theta <= 0 || _theta >= 1)
+				throw new IllegalArgumentException("The Zipfian constant must be between 0 and 1");
+			_zipf = zipfConstants(_slots.length, _theta);
+		} else {
+			throw new IllegalArgumentException("Unknown skew " + skew);
+		}
+	}
+
+	public static void main(String args[]) {
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put("threads", "16");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("files", "1000");
+		options.put("mix", "create:5,read:50,write:30,destroy:5,sync:1");
+		options.put("sizes", "4096:70,65536:25,1048576:5");
+		options.put("skew", "uniform");
+		options.put("seed", "1");
+		options.put("volume", "LOAD.dat");
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+				System.err.println("Unknown option " + arg + ", the options are " + options);
+				System.exit(2);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+
+		// The DFS reports on System.out as it goes, which would flood the report
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		DFS dfs = new DFSImpl(options.get("volume"), true);
+		dfs.init();
+		boolean passed;
+		try {
+			LoadTester tester = new LoadTester(dfs, options, out);
+			out.println("Load test " + options);
+			passed = tester.run();
+		} finally {
+			dfs.unmount();
+			System.setOut(out);
+		}
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Fills half the slots, runs the workers and reports
+	 *
+	 * @return true if every check passed
+	 */
+	boolean run() {
+		Random random = new Random(_seed);
+		ByteBuffer buffer = ByteBuffer.allocate(_maxSize);
+		for (int i = 0; i < _slots.length; i += 2) {
+			create(_slots[i], random, buffer);
+		}
+
+		List<Worker> workers = new ArrayList<>();
+		_start = System.nanoTime() + _warmup;
+		_end = _start + _duration;
+		for (int i = 0; i < _threads; i++) {
+			Worker worker = new Worker(_seed + i + 1);
+			worker._thread = new Thread(worker, "Load worker " + i);
+			workers.add(worker);
+			worker._thread.start();
+		}
+		LatencyHistogram[] total = new LatencyHistogram[_ops.length];
+		for (int i = 0; i < _ops.length; i++) {
+			total[i] = new LatencyHistogram();
+		}
+		long[] errors = new long[_ops.length];
+		for (Worker worker : workers) {
+			try {
+				worker._thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			for (int i = 0; i < _ops.length; i++) {
+				total[i].add(worker._latencies[i]);
+				errors[i] += worker._errors[i];
+			}
+		}
+
+		int files = 0;
+		for (Slot slot : _slots) {
+			if (slot._file != null) {
+				verify(slot, buffer);
+				files++;
+			}
+		}
+		report(total, errors, files);
+		return _failures.get() == 0;
+	}
+
+	private class Worker implements Runnable {
+		private final Random _random;
+		private final ByteBuffer _buffer = ByteBuffer.allocate(_maxSize);
+		private final LatencyHistogram[] _latencies = new LatencyHistogram[_ops.length];
+		private final long[] _errors = new long[_ops.length];
+		private Thread _thread;
+
+		Worker(long seed) {
+			_random = new Random(seed);
+			for (int i = 0; i < _ops.length; i++) {
+				_latencies[i] = new LatencyHistogram();
+			}
+		}
+
+		@Override
+		public void run() {
+			long now;
+			while ((now = System.nanoTime()) < _end) {
+				Op op = _ops[pick(_mix, _random)];
+				int index = nextSlot(_random);
+				Op done;
+				try {
+					done = execute(op, index, _random, _buffer);
+				} catch (RuntimeException e) {
+					fail("Operation " + op + " threw " + e);
+					done = op;
+				}
+				long latency = System.nanoTime() - now;
+				if (done == null) {
+					if (now >= _start)
+						_errors[op.ordinal()]++;
+				} else if (now >= _start) {
+					_latencies[done.ordinal()].record(latency);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs op on the index-th slot, or the operation it turns into for the
+	 * state of the slot
+	 *
+	 * @return the operation run, or null if it failed
+	 */
+	private Op execute(Op op, int index, Random random, ByteBuffer buffer) {
+		if (op == Op.SYNC) {
+			_dfs.sync();
+			return op;
+		}
+		if (op == Op.CREATE) {
+			for (int i = 0; i < _slots.length; i++) {
+				Slot empty = _slots[(index + i) % _slots.length];
+				if (!empty._lock.writeLock().tryLock())
+					continue;
+				try {
+					if (empty._file == null)
+						return create(empty, random, buffer) ? op : null;
+				} finally {
+					empty._lock.writeLock().unlock();
+				}
+			}
+			// Every slot is full
+			op = Op.WRITE;
+		}
+
+		Slot slot = _slots[index];
+		Lock lock = op == Op.READ ? slot._lock.readLock() : slot._lock.writeLock();
+		lock.lock();
+		try {
+			if (slot._file == null) {
+				if (op == Op.READ) {
+					// Creating needs the slot exclusive
+					lock.unlock();
+					lock = slot._lock.writeLock();
+					lock.lock();
+					if (slot._file != null)
+						return verify(slot, buffer) ? op : null;
+				}
+				return create(slot, random, buffer) ? Op.CREATE : null;
+			}
+			switch (op) {
+			case READ:
+				return verify(slot, buffer) ? op : null;
+			case WRITE:
+				return write(slot, random, buffer) ? op : null;
+			default:
+				_dfs.destroyDFile(slot._file);
+				slot._file = null;
+				return op;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates the file of an empty slot held exclusive, and writes it
+	 */
+	private boolean create(Slot slot, Random random, ByteBuffer buffer) {
+		DFileID file = _dfs.createDFile();
+		if (file == null)
+			return false;
+		slot._file = file;
+		slot._size = 0;
+		return write(slot, random, buffer);
+	}
+
+	/**
+	 * Rewrites the file of a slot held exclusive with new contents of a new
+	 * size. A write that fails leaves the slot empty, its contents unknown
+	 */
+	private boolean write(Slot slot, Random random, ByteBuffer buffer) {
+		int size = _sizes[pick(_sizeWeights, random)];
+		long seed = _seed * 1000003 + _versions.incrementAndGet();
+		buffer.clear().limit(size);
+		fill(buffer, seed);
+		buffer.flip();
+		boolean written = size == 0 || _dfs.write(slot._file, 0, new ByteBuffer[] { buffer }) == size;
+		if (written && slot._size > size)
+			written = _dfs.truncate(slot._file, size) == size;
+		if (!written) {
+			_dfs.destroyDFile(slot._file);
+			slot._file = null;
+			return false;
+		}
+		slot._seed = seed;
+		slot._size = size;
+		return true;
+	}
+
+	/**
+	 * Reads the whole file of a slot held at least shared and checks it
+	 */
+	private boolean verify(Slot slot, ByteBuffer buffer) {
+		_checks.incrementAndGet();
+		int size = _dfs.sizeDFile(slot._file);
+		if (size != slot._size) {
+			fail("File " + slot._file.getDFileID() + " is " + size + " bytes, " + slot._size + " expected");
+			return false;
+		}
+		buffer.clear().limit(size);
+		int read = _dfs.read(slot._file, 0, new ByteBuffer[] { buffer });
+		if (read != size) {
+			fail("Read " + read + " bytes of file " + slot._file.getDFileID() + ", " + size + " expected");
+			return false;
+		}
+		buffer.flip();
+		int offset = check(buffer, slot._seed);
+		if (offset >= 0) {
+			fail("File " + slot._file.getDFileID() + " differs at byte " + offset);
+			return false;
+		}
+		return true;
+	}
+
+	private void fail(String message) {
+		// Only the first failures are worth reading
+		if (_failures.incrementAndGet() <= 10)
+			_out.println("FAILED: " + message);
+	}
+
+	/**
+	 * Fills buffer up to its limit with the contents generated from seed
+	 */
+	private static void fill(ByteBuffer buffer, long seed) {
+		long word = 0;
+		while (buffer.remaining() >= 8) {
+			buffer.putLong(mix(seed + word++));
+		}
+		long last = mix(seed + word);
+		for (int shift = 56; buffer.hasRemaining(); shift -= 8) {
+			buffer.put((byte) (last >>> shift));
+		}
+	}
+
+	/**
+	 * @return the offset of the first byte of buffer that differs from the
+	 *         contents generated from seed, or -1
+	 */
+	private static int check(ByteBuffer buffer, long seed) {
+		long word = 0;
+		while (buffer.remaining() >= 8) {
+			if (buffer.getLong() != mix(seed + word++)) {
+				buffer.position(buffer.position() - 8);
+				break;
+			}
+		}
+		long expected = mix(seed + word);
+		for (int shift = 56; buffer.hasRemaining(); shift -= 8) {
+			if (buffer.get() != (byte) (expected >>> shift))
+				return buffer.position() - 1;
+			if (shift == 0) {
+				expected = mix(seed + ++word);
+				shift = 64;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The finalizer of SplitMix64
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * @return an index of weights picked with probability proportional to its
+	 *         weight
+	 */
+	private static int pick(int[] weights, Random random) {
+		int total = 0;
+		for (int weight : weights) {
+			total += weight;
+		}
+		int n = random.nextInt(total);
+		for (int i = 0; i < weights.length; i++) {
+			n -= weights[i];
+			if (n < 0)
+				return i;
+		}
+		return weights.length - 1;
+	}
+
+	/**
+	 * Picks a slot uniformly, or Zipfian with the lowest slots the most
+	 * popular, as YCSB's generator does it (Gray et al., Quickly Generating
+	 * Billion-Record Synthetic Databases)
+	 */
+	private int nextSlot(Random random) {
+		int n = _slots.length;
+		if (_zipf == null)
+			return random.nextInt(n);
+		double zetan = _zipf[0];
+		double eta = _zipf[1];
+		double u = random.nextDouble();
+		double uz = u * zetan;
+		if (uz < 1)
+			return 0;
+		if (uz < 1 + Math.pow(0.5, _theta))
+			return Math.min(1, n - 1);
+		return (int) Math.min(n - 1, n * Math.pow(eta * u - eta + 1, 1 / (1 - _theta)));
+	}
+
+	private static double[] zipfConstants(int n, double theta) {
+		double zetan = 0;
+		for (int i = 1; i <= n; i++) {
+			zetan += 1 / Math.pow(i, theta);
+		}
+		double zeta2 = 1 + Math.pow(0.5, theta);
+		double eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+		return new double[] { zetan, eta };
+	}
+
+	/**
+	 * Parses a list of name:weight pairs
+	 */
+	private static Map<String, Integer> weights(String list) {
+		Map<String, Integer> weights = new LinkedHashMap<>();
+		for (String pair : list.split(",")) {
+			String[] parts = pair.split(":");
+			int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+			if (weight < 0)
+				throw new IllegalArgumentException("Negative weight in " + list);
+			weights.put(parts[0], weight);
+		}
+		int total = 0;
+		for (int weight : weights.values()) {
+			total += weight;
+		}
+		if (total <= 0)
+			throw new IllegalArgumentException("No weight in " + list);
+		return weights;
+	}
+
+	private void report(LatencyHistogram[] latencies, long[] errors, int files) {
+		double seconds = _duration / 1e9;
+		_out.println(String.format(Locale.ROOT, "%-8s %10s %10s %8s %8s %8s %8s %8s %8s", "op", "count", "ops/s",
+				"errors", "mean", "p50", "p99", "p99.9", "max"));
+		LatencyHistogram all = new LatencyHistogram();
+		long allErrors = 0;
+		for (int i = 0; i < _ops.length; i++) {
+			all.add(latencies[i]);
+			allErrors += errors[i];
+			line(_ops[i].name().toLowerCase(Locale.ROOT), latencies[i], errors[i], seconds);
+		}
+		line("total", all, allErrors, seconds);
+		_out.println("Latencies in microseconds. " + files + " files left, " + _checks.get() + " checks, "
+				+ _failures.get() + " failed");
+	}
+
+	private void line(String name, LatencyHistogram latencies, long errors, double seconds) {
+		_out.println(String.format(Locale.ROOT, "%-8s %10d %10.1f %8d %8.1f %8.1f %8.1f %8.1f %8.1f", name,
+				latencies.getCount(), latencies.getCount() / seconds, errors, latencies.getMean() / 1000,
+				latencies.getPercentile(0.5) / 1000.0, latencies.getPercentile(0.99) / 1000.0,
+				latencies.getPercentile(0.999) / 1000.0, latencies.getMax() / 1000.0));
+	}
+}
@@ -0,0 +1,157 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import common.DFileID;
+import dfs.DFS;
+import dfs.DFSImpl;
+
+/**
+ * Checks the name index through createDFile(name), lookupDFile, listDFiles
+ * and destroyDFile. Enough names of mixed lengths are created to split the
+ * tree over several levels, then most of them are removed in random order,
+ * by name and by id, so that nodes merge back down to a single leaf, and
+ * the last ones go so that the tree empties. Every name, and every page of
+ * names, is checked along the way and after each remount. Exits with 1 on
+ * the first failure
+ */
+public class NameIndexTester {
+
+	private static final String VOLUME = "NAMES.dat";
+	private static final int NAMES = 4000;
+	private static final int PAGE = 97;
+	private static final long SEED = 43;
+
+	public static void main(String args[]) throws Exception {
+		new File(VOLUME).delete();
+		Random random = new Random(SEED);
+		DFS dfs = new DFSImpl(VOLUME, true);
+		dfs.init();
+
+		// Names sort as their UTF-8 bytes, which String order matches for ASCII
+		TreeMap<String, DFileID> names = new TreeMap<>();
+		while (names.size() < NAMES) {
+			String name = name(random);
+			if (names.containsKey(name))
+				continue;
+			DFileID file = dfs.createDFile(name);
+			check(file != null, "could not create " + name);
+			names.put(name, file);
+		}
+		check(dfs.createDFile(names.firstKey()) == null, "a name was taken twice");
+		verify(dfs, names, "after the splits");
+
+		dfs = remount(dfs);
+		verify(dfs, names, "after a remount");
+
+		// Remove all but a handful, a third of them by id, checking as the tree merges
+		List<String> order = new ArrayList<>(names.keySet());
+		Collections.shuffle(order, random);
+		for (int i = 0; i < order.size() - 10; i++) {
+			String name = order.get(i);
+			if (i % 3 == 0)
+				dfs.destroyDFile(names.get(name));
+			else
+				dfs.destroyDFile(name);
+			names.remove(name);
+			check(dfs.lookupDFile(name) == null, name + " is still found after its removal");
+			if (i % 500 == 0)
+				verify(dfs, names, "after " + (i + 1) + " removals");
+		}
+		verify(dfs, names, "after the merges");
+
+		dfs = remount(dfs);
+		verify(dfs, names, "after the merges and a remount");
+
+		for (String name : new ArrayList<>(names.keySet())) {
+			dfs.destroyDFile(name);
+			names.remove(name);
+		}
+		verify(dfs, names, "once empty");
+
+		// The emptied tree grows again from nothing
+		for (int i = 0; i < 200; i++) {
+			String name = name(random);
+			if (names.containsKey(name))
+				continue;
+			DFileID file = dfs.createDFile(name);
+			check(file != null, "could not create " + name + " in the emptied index");
+			names.put(name, file);
+		}
+		dfs = remount(dfs);
+		verify(dfs, names, "after growing again");
+		dfs.unmount();
+		new File(VOLUME).delete();
+		System.out.println("Test case passed!");
+		System.exit(0);
+	}
+
+	/**
+	 * @return a name of 1 to 200 characters, most of them short, sharing
+	 *         prefixes with many others
+	 */
+	private static String name(Random random) {
+		int length = random.nextInt(4) == 0 ? 1 + random.nextInt(200) : 1 + random.nextInt(24);
+		StringBuilder name = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			name.append((char) ('a' + random.nextInt(i < 2 ? 4 : 26)));
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Looks up every name, and lists them all page by page and under a few
+	 * prefixes
+	 */
+	private static void verify(DFS dfs, TreeMap<String, DFileID> names, String when) {
+		for (Map.Entry<String, DFileID> entry : names.entrySet()) {
+			DFileID found = dfs.lookupDFile(entry.getKey());
+			check(found != null && found.getDFileID() == entry.getValue().getDFileID(), entry.getKey()
+					+ " is not found " + when);
+		}
+		checkListing(dfs, names, "", when);
+		for (String prefix : new String[] { "a", "bc", "dd", "ab" }) {
+			checkListing(dfs, names.subMap(prefix, prefix + Character.MAX_VALUE), prefix, when);
+		}
+	}
+
+	private static void checkListing(DFS dfs, Map<String, DFileID> expected, String prefix, String when) {
+		List<String> listed = new ArrayList<>();
+		String after = null;
+		while (true) {
+			Map<String, DFileID> page = dfs.listDFiles(prefix, after, PAGE);
+			for (Map.Entry<String, DFileID> entry : page.entrySet()) {
+				check(expected.containsKey(entry.getKey()), "listed " + entry.getKey() + " under \"" + prefix
+						+ "\" " + when);
+				check(entry.getValue().getDFileID() == expected.get(entry.getKey()).getDFileID(), entry.getKey()
+						+ " is listed with the wrong file " + when);
+				listed.add(entry.getKey());
+				after = entry.getKey();
+			}
+			if (page.size() < PAGE)
+				break;
+		}
+		check(listed.equals(new ArrayList<>(expected.keySet())), "listing \"" + prefix + "\" gave " + listed.size()
+				+ " names of " + expected.size() + ", or out of order, " + when);
+	}
+
+	private static DFS remount(DFS dfs) {
+		dfs.unmount();
+		dfs = new DFSImpl(VOLUME, false);
+		dfs.init();
+		return dfs;
+	}
+
+	private static void check(boolean passed, String message) {
+		if (passed)
+			return;
+		System.out.println("Test case failed! " + message);
+		System.exit(1);
+	}
+}
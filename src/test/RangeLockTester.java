@@ -0,0 +1,204 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import common.DFileID;
+import common.RangeLock;
+import dfs.DFS;
+import dfs.DFSImpl;
+
+/**
+ * Checks which ranges of a RangeLock wait on each other and in which order
+ * they are granted, then has threads write and read disjoint parts of one
+ * file and of an inline file at once, every read having to see one whole
+ * write. Exits with 1 on the first failure
+ */
+public class RangeLockTester {
+
+	private static final String VOLUME = "RANGES.dat";
+	private static final long WAIT_MS = 200;
+	private static final int THREADS = 8;
+	private static final int REGION = 64 * 1024;
+	private static final int ROUNDS = 50;
+
+	public static void main(String args[]) throws Exception {
+		testConflicts();
+		testOrder();
+		testFile();
+		System.out.println("Test case passed!");
+		System.exit(0);
+	}
+
+	private static void testConflicts() throws InterruptedException {
+		RangeLock lock = new RangeLock();
+		RangeLock.Range shared = lock.lock(0, 4, false);
+		Locker reader = new Locker(lock, 2, 6, false);
+		check(reader.granted(), "a shared range waited for an overlapping shared one");
+		Locker disjoint = new Locker(lock, 6, 10, true);
+		check(disjoint.granted(), "an exclusive range waited for a disjoint shared one");
+		Locker writer = new Locker(lock, 3, 7, true);
+		check(!writer.granted(), "an exclusive range did not wait for the ranges it overlaps");
+		lock.unlock(shared);
+		check(!writer.granted(), "an exclusive range went on with overlapping ranges still held");
+		reader.unlock();
+		check(!writer.granted(), "an exclusive range went on with an overlapping exclusive one held");
+		disjoint.unlock();
+		check(writer.granted(), "an exclusive range still waits after every overlapping range was given back");
+		writer.unlock();
+	}
+
+	/**
+	 * A shared range asked for after a waiting exclusive one it overlaps must
+	 * wait behind it, even though the ranges held would let it in
+	 */
+	private static void testOrder() throws InterruptedException {
+		RangeLock lock = new RangeLock();
+		RangeLock.Range held = lock.lock(0, 4, false);
+		Locker writer = new Locker(lock, 0, 4, true);
+		check(!writer.granted(), "an exclusive range did not wait for a shared one");
+		Locker reader = new Locker(lock, 2, 3, false);
+		check(!reader.granted(), "a shared range overtook a waiting exclusive one");
+		Locker other = new Locker(lock, 8, 12, false);
+		check(other.granted(), "a range waited for ranges it does not overlap");
+		lock.unlock(held);
+		check(writer.granted(), "the waiting exclusive range was not woken");
+		check(!reader.granted(), "a shared range went on with an exclusive one held");
+		writer.unlock();
+		check(reader.granted(), "the waiting shared range was not woken");
+		reader.unlock();
+		other.unlock();
+	}
+
+	/**
+	 * Each writer fills its own region of a large file with its round number
+	 * while readers check that every region holds one round only. Two more
+	 * threads do the same with an inline file, whose data the lock of the file
+	 * alone guards
+	 */
+	private static void testFile() throws InterruptedException {
+		new File(VOLUME).delete();
+		final DFS dfs = new DFSImpl(VOLUME, true);
+		dfs.init();
+		final DFileID big = dfs.createDFile();
+		final DFileID small = dfs.createDFile();
+		check(dfs.write(big, 0, new ByteBuffer[] { ByteBuffer.allocate(THREADS * REGION) }) == THREADS * REGION,
+				"the file could not be written");
+		final AtomicReference<String> failure = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final int region = t;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for (int round = 1; round <= ROUNDS && failure.get() == null; round++) {
+						write(dfs, big, region * REGION, REGION, round);
+						check(dfs, big, ((region + 1) % THREADS) * REGION, REGION, failure);
+					}
+				}
+			}));
+		}
+		for (int t = 0; t < 2; t++) {
+			final boolean writer = t == 0;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for (int round = 1; round <= ROUNDS * 20 && failure.get() == null; round++) {
+						if (writer)
+							write(dfs, small, 0, 100, round);
+						else
+							check(dfs, small, 0, 100, failure);
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		check(failure.get() == null, failure.get());
+		check(dfs.sizeDFile(small) == 100, "the inline file is " + dfs.sizeDFile(small) + " bytes");
+		dfs.unmount();
+		new File(VOLUME).delete();
+	}
+
+	private static void write(DFS dfs, DFileID file, int pos, int size, int round) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) round);
+		if (dfs.write(file, pos, new ByteBuffer[] { ByteBuffer.wrap(data) }) != size)
+			fail("a write of " + size + " bytes failed");
+	}
+
+	private static void check(DFS dfs, DFileID file, int pos, int size, AtomicReference<String> failure) {
+		ByteBuffer read = ByteBuffer.allocate(size);
+		int n = dfs.read(file, pos, new ByteBuffer[] { read });
+		if (n != size && n != 0) {
+			failure.compareAndSet(null, "read " + n + " bytes of " + size);
+			return;
+		}
+		byte[] data = read.array();
+		for (int i = 1; i < n; i++) {
+			if (data[i] != data[0]) {
+				failure.compareAndSet(null, "a read at " + pos + " saw rounds " + data[0] + " and " + data[i]);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes a range from a thread of its own, so that the test can tell
+	 * whether it is waiting
+	 */
+	private static class Locker extends Thread {
+		private final RangeLock _lock;
+		private final int _first;
+		private final int _last;
+		private final boolean _exclusive;
+		private final CountDownLatch _granted = new CountDownLatch(1);
+		private final CountDownLatch _release = new CountDownLatch(1);
+
+		Locker(RangeLock lock, int first, int last, boolean exclusive) {
+			_lock = lock;
+			_first = first;
+			_last = last;
+			_exclusive = exclusive;
+			setDaemon(true);
+			start();
+		}
+
+		public void run() {
+			RangeLock.Range range = _lock.lock(_first, _last, _exclusive);
+			_granted.countDown();
+			try {
+				_release.await();
+			} catch (InterruptedException e) {
+			}
+			_lock.unlock(range);
+		}
+
+		boolean granted() throws InterruptedException {
+			return _granted.await(WAIT_MS, TimeUnit.MILLISECONDS);
+		}
+
+		void unlock() throws InterruptedException {
+			_release.countDown();
+			join();
+		}
+	}
+
+	private static void check(boolean passed, String message) {
+		if (!passed)
+			fail(message);
+	}
+
+	private static void fail(String message) {
+		System.out.println("Test case failed! " + message);
+		System.exit(1);
+	}
+}
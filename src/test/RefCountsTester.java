@@ -0,0 +1,236 @@
+package test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import common.Constants;
+import common.DFileID;
+import dfs.DFSImpl;
+import dfs.Scrubber;
+
+/**
+ * Checks the counts of blocks shared by clones and by the index of
+ * deduplicated blocks, through what files read and what the scrubber finds.
+ * A file is cloned until its blocks count as many files as they can, its
+ * clones copy what they write until the blocks under a copy cannot count one
+ * more file either, and they are all destroyed again. A block held by the
+ * index is then released by its last owner, and must be neither mapped
+ * again nor freed twice. Exits with 1 on the first failure
+ */
+public class RefCountsTester {
+
+	private static final String VOLUME = "REFCOUNTS.dat";
+
+	/**
+	 * Most files that share a block, see RefCounts.MAX_COUNT
+	 */
+	private static final int MAX_SHARING = 128;
+
+	/**
+	 * Blocks of the file cloned, all under its first indirect block
+	 */
+	private static final int BLOCKS = Constants.INTS_IN_BLOCK;
+	private static final long SEED = 44;
+
+	public static void main(String args[]) throws Exception {
+		new File(VOLUME).delete();
+		DFSImpl dfs = new DFSImpl(VOLUME, true);
+		dfs.init();
+		testClones(dfs);
+		testIndexed(dfs);
+		dfs = remount(dfs);
+		scrub(dfs, "after a remount");
+		dfs.unmount();
+		new File(VOLUME).delete();
+		System.out.println("Test case passed!");
+		System.exit(0);
+	}
+
+	/**
+	 * Clones a file up to the limit, has every clone write a block so that
+	 * the blocks under the copies of its indirect block reach the limit too,
+	 * copies one of those copies once more, and destroys them all in random
+	 * order
+	 */
+	private static void testClones(DFSImpl dfs) {
+		Random random = new Random(SEED);
+		DFileID original = dfs.createDFile();
+		byte[] data = new byte[BLOCKS * Constants.BLOCK_SIZE];
+		random.nextBytes(data);
+		check(dfs.write(original, 0, new ByteBuffer[] { ByteBuffer.wrap(data) }) == data.length,
+				"the file to clone could not be written");
+
+		List<DFileID> clones = new ArrayList<>();
+		List<byte[]> contents = new ArrayList<>();
+		for (int i = 1; i < MAX_SHARING; i++) {
+			DFileID clone = dfs.cloneDFile(original);
+			check(clone != null, "clone " + i + " failed before the limit");
+			clones.add(clone);
+			contents.add(data.clone());
+		}
+		check(dfs.cloneDFile(original) == null, "a block was shared by more than " + MAX_SHARING + " files");
+
+		// Destroying a clone makes room for one more
+		dfs.destroyDFile(clones.remove(0));
+		contents.remove(0);
+		DFileID again = dfs.cloneDFile(original);
+		check(again != null, "no clone could be made once one was destroyed");
+		clones.add(again);
+		contents.add(data.clone());
+
+		// Each clone copies the first indirect block, sharing the blocks under it one more time
+		for (int i = 0; i < clones.size(); i++) {
+			byte[] block = new byte[Constants.BLOCK_SIZE];
+			random.nextBytes(block);
+			int slot = i % Constants.INTS_IN_BLOCK;
+			check(dfs.write(clones.get(i), (long) slot * Constants.BLOCK_SIZE,
+					new ByteBuffer[] { ByteBuffer.wrap(block) }) == block.length, "a write to clone " + i + " failed");
+			System.arraycopy(block, 0, contents.get(i), slot * Constants.BLOCK_SIZE, block.length);
+		}
+		checkFile(dfs, original, data, "the original after its clones wrote");
+
+		// A clone of a clone shares its copy, whose blocks cannot count one more file when copied again
+		DFileID deep = dfs.cloneDFile(clones.get(0));
+		check(deep != null, "a clone of a clone failed");
+		byte[] deepContents = contents.get(0).clone();
+		byte[] block = new byte[Constants.BLOCK_SIZE];
+		random.nextBytes(block);
+		check(dfs.write(deep, Constants.BLOCK_SIZE, new ByteBuffer[] { ByteBuffer.wrap(block) }) == block.length,
+				"a write to the clone of a clone failed");
+		System.arraycopy(block, 0, deepContents, Constants.BLOCK_SIZE, block.length);
+		clones.add(deep);
+		contents.add(deepContents);
+		for (int i = 0; i < clones.size(); i++) {
+			checkFile(dfs, clones.get(i), contents.get(i), "clone " + i + " after writing");
+		}
+		dfs.sync();
+		scrub(dfs, "with every block shared as much as it can be");
+
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < clones.size(); i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, random);
+		for (int n = 0; n < order.size(); n++) {
+			dfs.destroyDFile(clones.get(order.get(n)));
+			if (n % 32 == 0) {
+				// A block freed while others still map it would be taken here
+				fill(dfs, random);
+				checkFile(dfs, original, data, "the original after " + (n + 1) + " clones were destroyed");
+				int kept = order.get(order.size() - 1);
+				checkFile(dfs, clones.get(kept), contents.get(kept), "the last clone after " + (n + 1)
+						+ " were destroyed");
+			}
+		}
+		checkFile(dfs, original, data, "the original alone");
+		dfs.destroyDFile(original);
+		dfs.sync();
+		scrub(dfs, "after every clone was destroyed");
+	}
+
+	/**
+	 * A block held by the index goes with the last file mapping it. A file
+	 * written with the same bytes just before, and matched only after, must
+	 * keep a block of its own, which later files reusing the freed block
+	 * cannot change
+	 */
+	private static void testIndexed(DFSImpl dfs) {
+		Random random = new Random(SEED + 1);
+		dfs.setDeduplication(true);
+		byte[] block = new byte[Constants.BLOCK_SIZE];
+		random.nextBytes(block);
+
+		// Owned by one file and the index
+		DFileID first = dfs.createDFile();
+		write(dfs, first, block);
+		dfs.sync();
+		DFileID second = dfs.createDFile();
+		write(dfs, second, block);
+		dfs.destroyDFile(first);
+		dfs.sync();
+		fill(dfs, random);
+		checkFile(dfs, second, block, "a file written like an indexed block its last owner released");
+
+		// Owned by two files and the index
+		DFileID third = dfs.createDFile();
+		write(dfs, third, block);
+		dfs.sync();
+		dfs.destroyDFile(second);
+		checkFile(dfs, third, block, "a file sharing an indexed block once the other owner is gone");
+		DFileID fourth = dfs.createDFile();
+		write(dfs, fourth, block);
+		dfs.destroyDFile(third);
+		dfs.sync();
+		fill(dfs, random);
+		checkFile(dfs, fourth, block, "a file written like an indexed block both its owners released");
+		scrub(dfs, "after the indexed blocks were released");
+		dfs.setDeduplication(false);
+	}
+
+	/**
+	 * Writes files of random bytes, taking any block just freed
+	 */
+	private static void fill(DFSImpl dfs, Random random) {
+		for (int i = 0; i < 4; i++) {
+			byte[] data = new byte[64 * Constants.BLOCK_SIZE];
+			random.nextBytes(data);
+			write(dfs, dfs.createDFile(), data);
+		}
+		dfs.sync();
+	}
+
+	private static void write(DFSImpl dfs, DFileID file, byte[] data) {
+		check(dfs.write(file, 0, new ByteBuffer[] { ByteBuffer.wrap(data) }) == data.length, "a write of "
+				+ data.length + " bytes failed");
+	}
+
+	private static void checkFile(DFSImpl dfs, DFileID file, byte[] expected, String what) {
+		check(dfs.sizeDFile(file) == expected.length, what + " is " + dfs.sizeDFile(file) + " bytes");
+		ByteBuffer read = ByteBuffer.allocate(expected.length);
+		check(dfs.read(file, 0, new ByteBuffer[] { read }) == expected.length, what + " could not be read");
+		check(Arrays.equals(read.array(), expected), what + " differs");
+	}
+
+	/**
+	 * Runs the scrubber over the whole volume once
+	 */
+	private static void scrub(DFSImpl dfs, String when) {
+		final StringBuilder problems = new StringBuilder();
+		Scrubber scrubber = dfs.startScrubber(new Scrubber.Listener() {
+			public void problemFound(int fileID, int blockID, String problem) {
+				synchronized (problems) {
+					problems.append("\n  file " + fileID + " block " + blockID + ": " + problem);
+				}
+			}
+		}, 0);
+		while (scrubber.getPasses() < 1) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+			}
+		}
+		scrubber.stop();
+		synchronized (problems) {
+			check(problems.length() == 0, "the scrubber found problems " + when + problems);
+		}
+	}
+
+	private static DFSImpl remount(DFSImpl dfs) {
+		dfs.unmount();
+		dfs = new DFSImpl(VOLUME, false);
+		dfs.init();
+		return dfs;
+	}
+
+	private static void check(boolean passed, String message) {
+		if (passed)
+			return;
+		System.out.println("Test case failed! " + message);
+		System.exit(1);
+	}
+}
@@ -85,7 +85,7 @@ public class Tester implements Runnable {
 	}
 
 	private static void testDeleteDFiles() {
-		for (int i = 1; i <= 512; i++) {
+		for (int i = 1; i <= 514; i++) {
 			dfs.destroyDFile(new DFileID(i));
 		}
 	}
@@ -94,7 +94,7 @@ public class Tester implements Runnable {
 		for (int i = 0; i < 514; i++) {
 			DFileID fileId = dfs.createDFile();
 			if (fileId == null) {
-				System.out.println("Should fail at 512. FileId = " + i);
+				System.out.println("Should not fail, the inode table grows. FileId = " + i);
 			} else
 				System.out.println("fileId = " + fileId.getDFileID());
 		}
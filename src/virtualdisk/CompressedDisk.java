@@ -0,0 +1,625 @@
+package virtualdisk;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import common.Constants;
+import common.Constants.DiskOperationType;
+import dblockcache.DBuffer;
+
+/**
+ * A virtual asynchronous disk that stores the blocks compressed. The volume
+ * file is a header followed by containers of CONTAINER_SIZE bytes, each
+ * holding many blocks compressed with LZCodec, and a table kept in memory
+ * tells for every block the container, offset and length of its latest
+ * copy. Blocks are only compressed and decompressed by the thread of the
+ * disk, so the buffers of the cache always hold them as they are.
+ *
+ * The disk thread takes all the writes queued at once and packs them into as
+ * few containers as they fit, each written with a single write to a
+ * container with no live block, so a write completes once the container
+ * holding it is on the volume. A container is made of a magic number, the
+ * number of blocks it holds, the bytes it uses, a CRC32 of the rest, a
+ * sequence number, then an id and a location for every block, then the
+ * blocks. A block that does not compress is stored as is, and a block of
+ * zeros takes no room at all.
+ *
+ * When the disk is terminated the table is written after the last container
+ * and the header of the file marked to say so, and mounting reads it back,
+ * 8 bytes per block whatever the size of the volume. The mark is cleared
+ * before anything else is written, so a volume that was not terminated,
+ * after a crash, is mounted by reading every container and rebuilding the
+ * table from them in the order of their sequence numbers, skipping any
+ * container a crash left half written. That reads the whole volume file.
+ *
+ * Once the volume file reaches MAX_CONTAINERS containers, the blocks still
+ * live in the container with the fewest of them are written again with the
+ * next writes, so that container can be reused
+ */
+public class CompressedDisk implements IVirtualDisk {
+
+	private static final int FILE_MAGIC = 0x4C5A4449;
+	private static final int CONTAINER_MAGIC = 0x4C5A4331;
+	private static final int FILE_HEADER_SIZE = Constants.BLOCK_SIZE;
+	private static final int TABLE_MAGIC = 0x4C5A5442;
+
+	/**
+	 * Offset in the file header of the fields telling where the table saved
+	 * by terminate is: a magic number, the number of containers the table
+	 * follows, the next sequence number and a CRC32 of the table
+	 */
+	private static final int HEADER_TABLE = 2 * Constants.BYTES_PER_INT;
+	private static final int HEADER_TABLE_SIZE = 3 * Constants.BYTES_PER_INT + 8;
+	private static final int TABLE_SIZE = Constants.NUM_OF_BLOCKS * 8;
+
+	/**
+	 * Bytes of a container, the unit the volume file is written in
+	 */
+	private static final int CONTAINER_SIZE = 32 * Constants.BLOCK_SIZE;
+	private static final int CONTAINER_HEADER_SIZE = 4 * Constants.BYTES_PER_INT + 8;
+	private static final int ENTRY_SIZE = 2 * Constants.BYTES_PER_INT;
+	private static final int MAX_ENTRIES = 512;
+
+	/**
+	 * Containers the volume file holds before room is made by moving blocks:
+	 * enough for every block stored as is, and a quarter more
+	 */
+	private static final int MAX_CONTAINERS = Constants.NUM_OF_BLOCKS
+			/ ((CONTAINER_SIZE - CONTAINER_HEADER_SIZE) / (Constants.BLOCK_SIZE + ENTRY_SIZE)) * 5 / 4;
+
+	/**
+	 * Free containers under which blocks are moved out of containers, those
+	 * being emptied counting as free
+	 */
+	private static final int FREE_RESERVE = 16;
+
+	private static final long UNMAPPED = -1;
+
+	private String _volName;
+	private RandomAccessFile _file;
+	private Queue<Request> _queue;
+	/**
+	 * Requests served only while _queue is empty. Guarded by _queue
+	 */
+	private Queue<Request> _backgroundQueue;
+	private boolean _running;
+	/* Set once the disk thread is done with the volume file. Guarded by _queue */
+	private boolean _stopped;
+
+	/*
+	 * Used by the disk thread only, once the volume is open. A location is the
+	 * container in the high int, the offset of the block in the container in
+	 * the next 16 bits and its length in the low 16 bits
+	 */
+	private final long[] _map = new long[Constants.NUM_OF_BLOCKS];
+	private final int[] _live = new int[MAX_CONTAINERS];
+	private final int[] _liveBytes = new int[MAX_CONTAINERS];
+	private int _containers;
+	private long _sequence;
+	private final BitSet _free = new BitSet();
+	private final BitSet _moving = new BitSet();
+	private final LZCodec _codec = new LZCodec();
+
+	private volatile long _bytesWritten;
+	private volatile long _bytesRead;
+
+	public CompressedDisk(String volName, boolean format) throws FileNotFoundException, IOException {
+		_volName = volName;
+		_file = new RandomAccessFile(_volName, "rws");
+		Arrays.fill(_map, UNMAPPED);
+		if (format || _file.length() == 0) {
+			_file.setLength(0);
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(FILE_MAGIC);
+			header.putInt(CONTAINER_SIZE);
+			_file.write(header.array());
+		} else {
+			if (_file.readInt() != FILE_MAGIC || _file.readInt() != CONTAINER_SIZE)
+				throw new IOException(_volName + " is not a compressed volume");
+			if (!loadTable())
+				load();
+		}
+		_queue = new ArrayDeque<Request>();
+		_backgroundQueue = new ArrayDeque<Request>();
+		_running = true;
+	}
+
+	public void startRequest(DBuffer buf, DiskOperationType operation) throws IllegalArgumentException, IOException {
+		synchronized (_queue) {
+			_queue.offer(new Request(buf, operation, false));
+			DiskEvents.queued(buf.getBlockID(), operation, false, _queue.size() + _backgroundQueue.size() - 1);
+			_queue.notifyAll();
+		}
+	}
+
+	public void startBackgroundRequest(DBuffer buf, DiskOperationType operation) throws IllegalArgumentException,
+			IOException {
+		synchronized (_queue) {
+			_backgroundQueue.offer(new Request(buf, operation, true));
+			DiskEvents.queued(buf.getBlockID(), operation, true, _queue.size() + _backgroundQueue.size() - 1);
+			_queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Stops the disk once the requests queued are served, and waits for the
+	 * table to be saved and the volume file closed
+	 */
+	public void terminate() {
+		boolean interrupted = false;
+		synchronized (_queue) {
+			_running = false;
+			_queue.notifyAll();
+			while (!_stopped) {
+				try {
+					_queue.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * @return the bytes written to the volume file, headers included
+	 */
+	public long getBytesWritten() {
+		return _bytesWritten;
+	}
+
+	/**
+	 * @return the bytes read from the volume file to serve reads
+	 */
+	public long getBytesRead() {
+		return _bytesRead;
+	}
+
+	/**
+	 * Serves the requests outside the lock of the queue, so that new ones are
+	 * queued while the disk works. A run of writes at the head of the queue
+	 * is served as one batch. The requests still queued when the disk is
+	 * terminated are served first
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			List<Request> batch = new ArrayList<>();
+			synchronized (_queue) {
+				while (_queue.isEmpty() && _backgroundQueue.isEmpty() && _running) {
+					try {
+						_queue.wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				Request request = _queue.poll();
+				if (request == null)
+					request = _backgroundQueue.poll();
+				if (request == null)
+					break;
+				batch.add(request);
+				while (request.getOperation() == DiskOperationType.WRITE && !_queue.isEmpty()
+						&& _queue.peek().getOperation() == DiskOperationType.WRITE)
+					batch.add(_queue.poll());
+			}
+			DiskEvents.Served event = new DiskEvents.Served();
+			long started = event.start();
+			try {
+				if (batch.get(0).getOperation() == DiskOperationType.READ)
+					readBlock(batch.get(0).getDBuffer());
+				else
+					writeBlocks(batch);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				for (Request request : batch) {
+					request.getDBuffer().ioComplete();
+				}
+			}
+			Request first = batch.get(0);
+			event.served(first.getDBuffer().getBlockID(), batch.size(), first.getOperation(), first._background,
+					first._queued, started);
+		}
+		try {
+			saveTable();
+			_file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		synchronized (_queue) {
+			_stopped = true;
+			_queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Fills the buffer with the latest copy of its block, zeros for a block
+	 * never written
+	 */
+	private void readBlock(DBuffer buf) throws IOException {
+		byte[] data = buf.getBuffer();
+		long location = _map[buf.getBlockID()];
+		int length = lengthOf(location);
+		if (location == UNMAPPED || length == 0) {
+			Arrays.fill(data, (byte) 0);
+		} else {
+			byte[] stored = new byte[length];
+			_file.seek(positionOf(location));
+			_file.readFully(stored);
+			_bytesRead += length;
+			if (length == Constants.BLOCK_SIZE)
+				System.arraycopy(stored, 0, data, 0, length);
+			else if (_codec.decompress(stored, length, data) != Constants.BLOCK_SIZE)
+				throw new IllegalStateException("Compressed block " + buf.getBlockID() + " is short");
+		}
+		buf.ioComplete();
+	}
+
+	/**
+	 * Compresses the blocks of the requests and writes them in as many
+	 * containers as they take. The requests complete with the container
+	 * holding them
+	 */
+	private void writeBlocks(List<Request> requests) throws IOException {
+		Deque<Entry> pending = new ArrayDeque<>();
+		byte[] scratch = new byte[Constants.BLOCK_SIZE];
+		for (Request request : requests) {
+			DBuffer buf = request.getDBuffer();
+			byte[] data = buf.getBuffer();
+			Entry entry = new Entry(buf.getBlockID(), request);
+			if (isZero(data)) {
+				entry._data = new byte[0];
+			} else {
+				int length = _codec.compress(data, Constants.BLOCK_SIZE, scratch);
+				entry._data = length < 0 ? data.clone() : Arrays.copyOf(scratch, length);
+			}
+			pending.add(entry);
+		}
+		while (!pending.isEmpty()) {
+			int container = takeContainer(pending);
+			List<Entry> entries = new ArrayList<>();
+			int used = CONTAINER_HEADER_SIZE;
+			while (!pending.isEmpty() && entries.size() < MAX_ENTRIES
+					&& used + ENTRY_SIZE + pending.peek()._data.length <= CONTAINER_SIZE) {
+				Entry entry = pending.poll();
+				used += ENTRY_SIZE + entry._data.length;
+				entries.add(entry);
+			}
+			writeContainer(container, entries, used);
+			for (Entry entry : entries) {
+				if (entry._request != null)
+					entry._request.getDBuffer().ioComplete();
+			}
+		}
+	}
+
+	/**
+	 * Writes a container and points the table at the blocks it holds
+	 */
+	private void writeContainer(int container, List<Entry> entries, int used) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(used);
+		bytes.putInt(CONTAINER_MAGIC);
+		bytes.putInt(entries.size());
+		bytes.putInt(used);
+		bytes.putInt(0);
+		bytes.putLong(_sequence++);
+		int offset = CONTAINER_HEADER_SIZE + entries.size() * ENTRY_SIZE;
+		long[] locations = new long[entries.size()];
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			int length = entry._data.length;
+			bytes.putInt(entry._blockID);
+			bytes.putInt(offset << 16 | length);
+			locations[i] = (long) container << 32 | (offset << 16 | length) & 0xFFFFFFFFL;
+			offset += length;
+		}
+		for (Entry entry : entries) {
+			bytes.put(entry._data);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.array(), 4 * Constants.BYTES_PER_INT, used - 4 * Constants.BYTES_PER_INT);
+		bytes.putInt(3 * Constants.BYTES_PER_INT, (int) crc.getValue());
+		_file.seek(FILE_HEADER_SIZE + (long) container * CONTAINER_SIZE);
+		_file.write(bytes.array());
+		_bytesWritten += used;
+
+		_free.clear(container);
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			// A block written since it was moved keeps its new copy
+			if (entry._request != null || isLive(entry))
+				remap(entry._blockID, locations[i]);
+		}
+		if (_live[container] == 0)
+			_free.set(container);
+	}
+
+	/**
+	 * @return a container with no live block to write the next one to. When
+	 *         the volume file is full and few are left, the live blocks of the
+	 *         containers with the fewest of them are added to the blocks
+	 *         pending, so they are freed by the next containers written
+	 */
+	private int takeContainer(Deque<Entry> pending) throws IOException {
+		int free = _free.cardinality() + Math.max(0, MAX_CONTAINERS - _containers);
+		while (free + _moving.cardinality() < FREE_RESERVE && moveBlocks(pending))
+			;
+		int container = _free.nextSetBit(0);
+		if (container >= 0)
+			return container;
+		if (_containers == _live.length)
+			throw new IllegalStateException("The compressed volume " + _volName + " is full");
+		return _containers++;
+	}
+
+	/**
+	 * Adds the live blocks of the container with the fewest live bytes to the
+	 * front of pending, as they are stored. Nothing is moved if that would
+	 * not free at least an eighth of a container
+	 *
+	 * @return false if no container was worth emptying
+	 */
+	private boolean moveBlocks(Deque<Entry> pending) throws IOException {
+		int victim = -1;
+		for (int i = 0; i < _containers; i++) {
+			if (_live[i] > 0 && !_moving.get(i) && (victim < 0 || _liveBytes[i] < _liveBytes[victim]))
+				victim = i;
+		}
+		if (victim < 0 || _liveBytes[victim] > CONTAINER_SIZE - CONTAINER_SIZE / 8)
+			return false;
+		_moving.set(victim);
+		byte[] bytes = readContainer(victim);
+		ByteBuffer header = ByteBuffer.wrap(bytes);
+		int count = header.getInt(Constants.BYTES_PER_INT);
+		for (int i = count - 1; i >= 0; i--) {
+			int blockID = header.getInt(CONTAINER_HEADER_SIZE + i * ENTRY_SIZE);
+			int packed = header.getInt(CONTAINER_HEADER_SIZE + i * ENTRY_SIZE + Constants.BYTES_PER_INT);
+			long location = (long) victim << 32 | packed & 0xFFFFFFFFL;
+			if (_map[blockID] != location)
+				continue;
+			Entry entry = new Entry(blockID, null);
+			entry._moved = location;
+			entry._data = Arrays.copyOfRange(bytes, packed >>> 16, (packed >>> 16) + (packed & 0xFFFF));
+			pending.addFirst(entry);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the copy a moved entry was read from is still the
+	 *         latest one of its block. Once the container it was read from has
+	 *         no live block left, it may hold other blocks at the same place
+	 */
+	private boolean isLive(Entry entry) {
+		return _map[entry._blockID] == entry._moved && _moving.get((int) (entry._moved >>> 32));
+	}
+
+	/**
+	 * Points the table at a new copy of a block, and counts the copy it
+	 * replaces out of its container. The new copy is counted first, as a
+	 * block written twice in a container must not leave it free
+	 */
+	private void remap(int blockID, long location) {
+		int container = (int) (location >>> 32);
+		_live[container]++;
+		_liveBytes[container] += lengthOf(location);
+		long old = _map[blockID];
+		if (old != UNMAPPED) {
+			int previous = (int) (old >>> 32);
+			_live[previous]--;
+			_liveBytes[previous] -= lengthOf(old);
+			if (_live[previous] == 0) {
+				_free.set(previous);
+				_moving.clear(previous);
+			}
+		}
+		_map[blockID] = location;
+	}
+
+	/**
+	 * Writes the table after the last container, then marks the header of
+	 * the file to point at it
+	 */
+	private void saveTable() throws IOException {
+		ByteBuffer table = ByteBuffer.allocate(TABLE_SIZE);
+		for (long location : _map) {
+			table.putLong(location);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(table.array());
+		_file.seek(FILE_HEADER_SIZE + (long) _containers * CONTAINER_SIZE);
+		_file.write(table.array());
+		ByteBuffer header = ByteBuffer.allocate(HEADER_TABLE_SIZE);
+		header.putInt(TABLE_MAGIC);
+		header.putInt(_containers);
+		header.putLong(_sequence);
+		header.putInt((int) crc.getValue());
+		_file.seek(HEADER_TABLE);
+		_file.write(header.array());
+	}
+
+	/**
+	 * Reads the table saved by the last terminate, if the header points at
+	 * one that checks. The mark is cleared and the table cut off the file
+	 * either way, as the next containers are written over it
+	 *
+	 * @return false if the table must be rebuilt from the containers
+	 */
+	private boolean loadTable() throws IOException {
+		byte[] fields = new byte[HEADER_TABLE_SIZE];
+		_file.seek(HEADER_TABLE);
+		_file.readFully(fields);
+		ByteBuffer header = ByteBuffer.wrap(fields);
+		if (header.getInt() != TABLE_MAGIC)
+			return false;
+		int containers = header.getInt();
+		long sequence = header.getLong();
+		int crc = header.getInt();
+		long position = FILE_HEADER_SIZE + (long) containers * CONTAINER_SIZE;
+		_file.seek(HEADER_TABLE);
+		_file.write(new byte[HEADER_TABLE_SIZE]);
+		if (containers < 0 || containers > _live.length || _file.length() != position + TABLE_SIZE)
+			return false;
+		byte[] bytes = new byte[TABLE_SIZE];
+		_file.seek(position);
+		_file.readFully(bytes);
+		_file.setLength(position);
+		CRC32 check = new CRC32();
+		check.update(bytes);
+		if ((int) check.getValue() != crc)
+			return false;
+		long[] map = new long[Constants.NUM_OF_BLOCKS];
+		ByteBuffer.wrap(bytes).asLongBuffer().get(map);
+		for (long location : map) {
+			if (location != UNMAPPED && (location >>> 32) >= containers)
+				return false;
+		}
+		_containers = containers;
+		for (int blockID = 0; blockID < map.length; blockID++) {
+			if (map[blockID] != UNMAPPED)
+				remap(blockID, map[blockID]);
+		}
+		for (int i = 0; i < _containers; i++) {
+			if (_live[i] == 0)
+				_free.set(i);
+		}
+		_sequence = sequence;
+		return true;
+	}
+
+	/**
+	 * Rebuilds the table from the containers of the volume file, in the
+	 * order they were written. Containers that do not check are free
+	 */
+	private void load() throws IOException {
+		_containers = (int) Math.min(_live.length,
+				(_file.length() - FILE_HEADER_SIZE + CONTAINER_SIZE - 1) / CONTAINER_SIZE);
+		TreeMap<Long, Integer> bySequence = new TreeMap<>();
+		List<byte[]> contents = new ArrayList<>();
+		for (int i = 0; i < _containers; i++) {
+			byte[] bytes = readContainer(i);
+			contents.add(bytes);
+			if (bytes != null)
+				bySequence.put(ByteBuffer.wrap(bytes).getLong(4 * Constants.BYTES_PER_INT), i);
+		}
+		for (int container : bySequence.values()) {
+			ByteBuffer header = ByteBuffer.wrap(contents.get(container));
+			int count = header.getInt(Constants.BYTES_PER_INT);
+			for (int i = 0; i < count; i++) {
+				int blockID = header.getInt(CONTAINER_HEADER_SIZE + i * ENTRY_SIZE);
+				int packed = header.getInt(CONTAINER_HEADER_SIZE + i * ENTRY_SIZE + Constants.BYTES_PER_INT);
+				remap(blockID, (long) container << 32 | packed & 0xFFFFFFFFL);
+			}
+		}
+		for (int i = 0; i < _containers; i++) {
+			if (_live[i] == 0)
+				_free.set(i);
+		}
+		_sequence = bySequence.isEmpty() ? 0 : bySequence.lastKey() + 1;
+	}
+
+	/**
+	 * @return the bytes used by a container, or null if it was never
+	 *         written whole
+	 */
+	private byte[] readContainer(int container) throws IOException {
+		long position = FILE_HEADER_SIZE + (long) container * CONTAINER_SIZE;
+		if (position + CONTAINER_HEADER_SIZE > _file.length())
+			return null;
+		byte[] header = new byte[CONTAINER_HEADER_SIZE];
+		_file.seek(position);
+		_file.readFully(header);
+		ByteBuffer fields = ByteBuffer.wrap(header);
+		int magic = fields.getInt();
+		int count = fields.getInt();
+		int used = fields.getInt();
+		int crc = fields.getInt();
+		if (magic != CONTAINER_MAGIC || count < 0 || count > MAX_ENTRIES
+				|| used < CONTAINER_HEADER_SIZE + count * ENTRY_SIZE || used > CONTAINER_SIZE
+				|| position + used > _file.length())
+			return null;
+		byte[] bytes = new byte[used];
+		_file.seek(position);
+		_file.readFully(bytes);
+		CRC32 check = new CRC32();
+		check.update(bytes, 4 * Constants.BYTES_PER_INT, used - 4 * Constants.BYTES_PER_INT);
+		if ((int) check.getValue() != crc)
+			return null;
+		ByteBuffer entries = ByteBuffer.wrap(bytes);
+		for (int i = 0; i < count; i++) {
+			int blockID = entries.getInt(CONTAINER_HEADER_SIZE + i * ENTRY_SIZE);
+			int packed = entries.getInt(CONTAINER_HEADER_SIZE + i * ENTRY_SIZE + Constants.BYTES_PER_INT);
+			if (blockID < 0 || blockID >= Constants.NUM_OF_BLOCKS || (packed >>> 16) + (packed & 0xFFFF) > used)
+				return null;
+		}
+		return bytes;
+	}
+
+	private static long positionOf(long location) {
+		return FILE_HEADER_SIZE + (location >>> 32) * CONTAINER_SIZE + (location >>> 16 & 0xFFFF);
+	}
+
+	private static int lengthOf(long location) {
+		return (int) (location & 0xFFFF);
+	}
+
+	private static boolean isZero(byte[] data) {
+		for (byte b : data) {
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A block on its way to a container: a block written by a request, or a
+	 * live block moved out of its container, still compressed
+	 */
+	private static class Entry {
+		final int _blockID;
+		final Request _request;
+		long _moved = UNMAPPED;
+		byte[] _data;
+
+		Entry(int blockID, Request request) {
+			_blockID = blockID;
+			_request = request;
+		}
+	}
+
+	private static class Request {
+
+		private final DBuffer _buf;
+		private final DiskOperationType _op;
+		private final boolean _background;
+		/* When the request was queued, 0 if the disk requests are not recorded */
+		private final long _queued;
+
+		Request(DBuffer buf, DiskOperationType operation, boolean background) {
+			_buf = buf;
+			_op = operation;
+			_background = background;
+			_queued = DiskEvents.now();
+		}
+
+		DBuffer getDBuffer() {
+			return _buf;
+		}
+
+		DiskOperationType getOperation() {
+			return _op;
+		}
+	}
+}
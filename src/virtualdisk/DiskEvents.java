@@ -0,0 +1,114 @@
+package virtualdisk;
+
+import common.Constants.DiskOperationType;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events of the disks. A request is recorded when it is
+ * queued, and again once the disk thread has served it, with the time it
+ * waited in the queue. Until a recording enables them, an event is an
+ * allocation the JIT drops and a flag check: no field is set and no extra
+ * timestamp is taken
+ */
+final class DiskEvents {
+
+	private DiskEvents() {
+	}
+
+	@Name("defiler.DiskRequestQueued")
+	@Label("Disk Request Queued")
+	@Category({ "DeFiler", "Disk" })
+	@Description("A block read or write queued for the disk thread")
+	@StackTrace(false)
+	static class Queued extends Event {
+		@Label("Block ID")
+		int blockID;
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Background")
+		boolean background;
+
+		@Label("Queue Length")
+		@Description("Requests queued ahead of this one, background ones included")
+		int queueLength;
+	}
+
+	@Name("defiler.DiskRequest")
+	@Label("Disk Request")
+	@Category({ "DeFiler", "Disk" })
+	@Description("Requests served by the disk thread, the duration being the time they took to serve")
+	@StackTrace(false)
+	static class Served extends Event {
+		@Label("Block ID")
+		@Description("The block of the request, the first one of a batch")
+		int blockID;
+
+		@Label("Blocks")
+		@Description("Requests served together in one batch")
+		int blocks;
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Background")
+		boolean background;
+
+		@Label("Queue Time")
+		@Description("Time the oldest request of the batch waited in the queue")
+		@Timespan
+		long queueTime;
+
+		/**
+		 * @return the time served requests started being served, or 0 if the
+		 *         event is not recorded
+		 */
+		long start() {
+			begin();
+			return isEnabled() ? System.nanoTime() : 0;
+		}
+
+		/**
+		 * Records blocks served requests, the first of which was queued at
+		 * queued and started being served at started
+		 */
+		void served(int blockID, int blocks, DiskOperationType operation, boolean background, long queued,
+				long started) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.blockID = blockID;
+			this.blocks = blocks;
+			this.operation = operation.name();
+			this.background = background;
+			queueTime = queued == 0 ? 0 : started - queued;
+			commit();
+		}
+	}
+
+	/**
+	 * @return the time a request is queued at, or 0 if the requests served
+	 *         are not recorded
+	 */
+	static long now() {
+		return new Served().isEnabled() ? System.nanoTime() : 0;
+	}
+
+	static void queued(int blockID, DiskOperationType operation, boolean background, int queueLength) {
+		Queued event = new Queued();
+		if (!event.isEnabled())
+			return;
+		event.blockID = blockID;
+		event.operation = operation.name();
+		event.background = background;
+		event.queueLength = queueLength;
+		event.commit();
+	}
+}
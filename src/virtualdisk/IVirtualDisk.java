@@ -5,7 +5,11 @@ import common.Constants.DiskOperationType;
 import dblockcache.DBuffer;
 
 
-public interface IVirtualDisk {
+/**
+ * A disk serving the requests of the buffers of the cache on a thread of its
+ * own, the one running it
+ */
+public interface IVirtualDisk extends Runnable {
 	
 	/**
 	 * Start an asynchronous request to the underlying device/disk/volume.   
@@ -14,4 +18,16 @@ public interface IVirtualDisk {
 	 */
 	public void startRequest(DBuffer buf, DiskOperationType operation)
 			throws IllegalArgumentException, IOException;
+
+	/**
+	 * Start an asynchronous request that is only served while no request
+	 * started with startRequest is waiting
+	 */
+	public void startBackgroundRequest(DBuffer buf, DiskOperationType operation)
+			throws IllegalArgumentException, IOException;
+
+	/**
+	 * Stops the thread of the disk
+	 */
+	public void terminate();
 }
\ No newline at end of file
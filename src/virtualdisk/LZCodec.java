@@ -0,0 +1,170 @@
+package virtualdisk;
+
+import java.util.Arrays;
+
+/**
+ * A byte oriented LZ77 codec writing the block format of LZ4: a sequence is a
+ * token holding the number of literals and the length of the match in its
+ * two halves, the literals, and the offset of the match back from the
+ * current position in two bytes. A half of 15 is followed by bytes adding up
+ * to the rest of the length, 255 meaning another one follows. The last
+ * sequence holds literals only.
+ *
+ * Matches are found by hashing every four bytes into a table of the last
+ * position they were seen at, so a block is compressed in one pass. An
+ * instance keeps that table and must be used by one thread at a time
+ */
+class LZCodec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_BITS = 12;
+	private static final int MAX_OFFSET = 0xFFFF;
+
+	/**
+	 * The last bytes of the input are always literals, and no match starts
+	 * in the last MATCH_LIMIT bytes, as in LZ4
+	 */
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_LIMIT = 12;
+
+	private final int[] _table = new int[1 << HASH_BITS];
+
+	/**
+	 * Compresses length bytes of src into dst
+	 *
+	 * @return the number of bytes written to dst, or -1 if they would not
+	 *         be fewer than length
+	 */
+	int compress(byte[] src, int length, byte[] dst) {
+		int max = Math.min(dst.length, length - 1);
+		Arrays.fill(_table, -1);
+		int anchor = 0;
+		int ip = 0;
+		int op = 0;
+		while (ip < length - MATCH_LIMIT) {
+			int sequence = readInt(src, ip);
+			int h = sequence * 0x9E3779B1 >>> 32 - HASH_BITS;
+			int ref = _table[h];
+			_table[h] = ip;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				ip++;
+				continue;
+			}
+			int end = ip + MIN_MATCH;
+			int refEnd = ref + MIN_MATCH;
+			while (end < length - LAST_LITERALS && src[end] == src[refEnd]) {
+				end++;
+				refEnd++;
+			}
+			while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+				ip--;
+				ref--;
+			}
+			op = writeSequence(src, anchor, ip - anchor, dst, op, max, ip - ref, end - ip - MIN_MATCH);
+			if (op < 0)
+				return -1;
+			ip = end;
+			anchor = end;
+		}
+		return writeSequence(src, anchor, length - anchor, dst, op, max, 0, -1);
+	}
+
+	/**
+	 * Decompresses length bytes of src into dst
+	 *
+	 * @return the number of bytes written to dst
+	 * @throws IllegalStateException
+	 *             if src is not a valid block or does not fit in dst
+	 */
+	int decompress(byte[] src, int length, byte[] dst) {
+		int ip = 0;
+		int op = 0;
+		while (ip < length) {
+			int token = src[ip++] & 0xFF;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (ip >= length)
+						throw new IllegalStateException("Truncated compressed block");
+					b = src[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+			if (ip + literals > length || op + literals > dst.length)
+				throw new IllegalStateException("Corrupt compressed block");
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+			if (ip == length)
+				break;
+			if (ip + 2 > length)
+				throw new IllegalStateException("Truncated compressed block");
+			int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			int match = token & 15;
+			if (match == 15) {
+				int b;
+				do {
+					if (ip >= length)
+						throw new IllegalStateException("Truncated compressed block");
+					b = src[ip++] & 0xFF;
+					match += b;
+				} while (b == 255);
+			}
+			match += MIN_MATCH;
+			if (offset == 0 || offset > op || op + match > dst.length)
+				throw new IllegalStateException("Corrupt compressed block");
+			// The match may overlap the bytes it produces, so it is copied a byte at a time
+			for (int i = 0; i < match; i++) {
+				dst[op + i] = dst[op - offset + i];
+			}
+			op += match;
+		}
+		return op;
+	}
+
+	/**
+	 * Writes a sequence of literals followed by a match, or by nothing for a
+	 * match of length -1
+	 *
+	 * @return the position in dst after the sequence, or -1 if it would go
+	 *         past max
+	 */
+	private static int writeSequence(byte[] src, int start, int literals, byte[] dst, int op, int max, int offset,
+			int match) {
+		int needed = 1 + literals / 255 + 1 + literals + (match < 0 ? 0 : 2 + match / 255 + 1);
+		if (op + needed > max)
+			return -1;
+		int token = op++;
+		dst[token] = (byte) (Math.min(literals, 15) << 4);
+		op = writeLength(dst, op, literals);
+		System.arraycopy(src, start, dst, op, literals);
+		op += literals;
+		if (match < 0)
+			return op;
+		dst[op++] = (byte) offset;
+		dst[op++] = (byte) (offset >>> 8);
+		dst[token] |= (byte) Math.min(match, 15);
+		return writeLength(dst, op, match);
+	}
+
+	/**
+	 * Writes what a length holds past the 15 of its half of the token
+	 */
+	private static int writeLength(byte[] dst, int op, int length) {
+		if (length < 15)
+			return op;
+		length -= 15;
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+}
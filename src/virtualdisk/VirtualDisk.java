@@ -35,6 +35,10 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 	private RandomAccessFile _file;
 	private int _maxVolSize;
 	private Queue<Request> _queue;
+	/**
+	 * Requests served only while _queue is empty. Guarded by _queue
+	 */
+	private Queue<Request> _backgroundQueue;
 	private boolean _running;
 
 	/**
@@ -65,6 +69,7 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 
 		/* Initialize the request queue */
 		_queue = new ArrayDeque<Request>();
+		_backgroundQueue = new ArrayDeque<Request>();
 		_running = true;
 	}
 
@@ -86,6 +91,20 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 			while (!_queue.offer(new Request(buf, operation))) {
 				continue;
 			}
+			DiskEvents.queued(buf.getBlockID(), operation, false, _queue.size() + _backgroundQueue.size() - 1);
+			_queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Same as startRequest, but the request waits until no regular request is
+	 * queued, so background work never delays the requests of the file system
+	 */
+	public void startBackgroundRequest(DBuffer buf, DiskOperationType operation) throws IllegalArgumentException,
+			IOException {
+		synchronized (_queue) {
+			_backgroundQueue.offer(new Request(buf, operation, true));
+			DiskEvents.queued(buf.getBlockID(), operation, true, _queue.size() + _backgroundQueue.size() - 1);
 			_queue.notifyAll();
 		}
 	}
@@ -141,14 +160,17 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 	}
 
 	public void terminate() {
-		_running = false;
+		synchronized (_queue) {
+			_running = false;
+			_queue.notifyAll();
+		}
 	}
 
 	@Override
 	public void run() {
 		while (_running) {
 			synchronized (_queue) {
-				while (_queue.isEmpty()) {
+				while (_queue.isEmpty() && _backgroundQueue.isEmpty() && _running) {
 					try {
 						_queue.wait();
 					} catch (InterruptedException e) {
@@ -157,8 +179,12 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 					}
 				}
 				Request request = _queue.poll();
+				if (request == null)
+					request = _backgroundQueue.poll();
 				if (request == null)
 					return;
+				DiskEvents.Served event = new DiskEvents.Served();
+				long started = event.start();
 				try {
 					if (request.getOperation() == DiskOperationType.READ) {
 						readBlock(request.getDBuffer());
@@ -172,6 +198,8 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 				} finally {
 					request.getDBuffer().ioComplete();
 				}
+				event.served(request.getDBuffer().getBlockID(), 1, request.getOperation(), request.isBackground(),
+						request.getQueued(), started);
 
 			}
 		}
@@ -181,10 +209,18 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 
 		private DBuffer _buf = null;
 		private DiskOperationType _op = null;
+		private boolean _background;
+		private long _queued;
 
 		public Request(DBuffer buf, DiskOperationType operation) {
+			this(buf, operation, false);
+		}
+
+		public Request(DBuffer buf, DiskOperationType operation, boolean background) {
 			_buf = buf;
 			_op = operation;
+			_background = background;
+			_queued = DiskEvents.now();
 		}
 
 		public DBuffer getDBuffer() {
@@ -194,5 +230,17 @@ public class VirtualDisk implements IVirtualDisk, Runnable {
 		public DiskOperationType getOperation() {
 			return _op;
 		}
+
+		public boolean isBackground() {
+			return _background;
+		}
+
+		/**
+		 * @return when the request was queued, or 0 if the disk requests are
+		 *         not being recorded
+		 */
+		public long getQueued() {
+			return _queued;
+		}
 	}
 }